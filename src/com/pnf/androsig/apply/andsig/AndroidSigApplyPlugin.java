@@ -20,11 +20,22 @@ package com.pnf.androsig.apply.andsig;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
 
+import com.pnf.androsig.apply.matcher.DatabaseMatcherFactory;
 import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
 import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.DatabaseReferenceService;
 import com.pnf.androsig.apply.model.DexHashcodeList;
 import com.pnf.androsig.apply.model.StructureInfo;
 import com.pnf.androsig.apply.util.MetadataGroupHandler;
@@ -38,8 +49,6 @@ import com.pnfsoftware.jeb.core.IPluginInformation;
 import com.pnfsoftware.jeb.core.IRuntimeProject;
 import com.pnfsoftware.jeb.core.PluginInformation;
 import com.pnfsoftware.jeb.core.RuntimeProjectUtil;
-import com.pnfsoftware.jeb.core.events.J;
-import com.pnfsoftware.jeb.core.events.JebEvent;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
@@ -60,6 +69,11 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
 public class AndroidSigApplyPlugin extends AbstractEnginesPlugin {
     private final ILogger logger = GlobalLog.getLogger(AndroidSigApplyPlugin.class);
 
+    /** database kept loaded between executions (keep-warm mode) */
+    private DatabaseReference warmRef;
+    private Timer warmTimer;
+    private TimerTask warmReleaseTask;
+
     @Override
     public IPluginInformation getPluginInformation() {
         return new PluginInformation("Android Code Recognition",
@@ -78,6 +92,13 @@ public class AndroidSigApplyPlugin extends AbstractEnginesPlugin {
      */
     @Override
     public void dispose() {
+        synchronized(this) {
+            releaseWarmDatabase();
+            if(warmTimer != null) {
+                warmTimer.cancel();
+                warmTimer = null;
+            }
+        }
     }
 
     @Override
@@ -118,51 +139,265 @@ public class AndroidSigApplyPlugin extends AbstractEnginesPlugin {
             throw new RuntimeException(ex);
         }
 
-        DatabaseReference ref = new DatabaseReference();
-        StructureInfo struInfo = new StructureInfo(executionOptions, ref);
+        DatabaseMatcherParameters params = DatabaseMatcherParameters.parseParameters(executionOptions);
 
-        try {
-            // Load all hashcodes
-            ref.loadAllHashCodes(sigFolder);
+        // Load all hashcodes (shared with concurrent executions, immediate if kept warm) while the apk is hashed
+        Future<DatabaseReference> futureRef = startDatabaseLoading(sigFolder);
+        DatabaseReference ref = null;
+        ExecutorService executor = null;
+        // candidate searches of all dex units share the same threads
+        ExecutorService searchExecutor = DatabaseMatcherFactory.newSearchExecutor(params);
 
+        try {
             List<IDexUnit> dexlist = RuntimeProjectUtil.findUnitsByType(prj, IDexUnit.class, false);
-            for(IDexUnit dex: dexlist) {
+            if(dexlist.isEmpty()) {
+                // keep previous report files
+                logger.info("No dex unit to process");
+                return;
+            }
+            int concurrency = params.dexConcurrency == 0 ? Runtime.getRuntime().availableProcessors()
+                    : params.dexConcurrency;
+            concurrency = Math.min(concurrency, dexlist.size());
+            if(concurrency > 1) {
+                executor = Executors.newFixedThreadPool(concurrency, r -> {
+                    Thread t = new Thread(r, "androsig-dex");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+
+            long t1 = System.currentTimeMillis();
+            List<DexHashcodeList> dexHashCodeLists = runForAllUnits(executor, dexlist, dex -> {
                 DexHashcodeList dexHashCodeList = new DexHashcodeList();
                 dexHashCodeList.loadAPKHashcodes(dex);
+                return dexHashCodeList;
+            });
+            long t2 = System.currentTimeMillis();
+            logger.info("APK hashing phase took %dms (%d dex units)", t2 - t1, dexlist.size());
+            if(dexHashCodeLists == null) {
+                logger.info("Tread Interrupted!");
+                return;
+            }
+
+            ref = waitDatabase(futureRef);
+            logger.info("Waited %dms for signature database: matching starts %dms after start",
+                    System.currentTimeMillis() - t2, System.currentTimeMillis() - t0);
+
+            // Apply signature: units are matched independently, modifications are applied by StructureBatch
+            final DatabaseReference sharedRef = ref;
+            List<StructureInfo> struInfos = runForAllUnits(executor, dexlist, dex -> {
+                StructureInfo struInfo = new StructureInfo(params, sharedRef, searchExecutor);
 
                 // Create MetadataGroup
                 MetadataGroupHandler.createCodeGroupMethod(dex, struInfo.getStructureResult());
                 MetadataGroupHandler.createCodeGroupClass(dex, struInfo.getStructureResult());
 
-                // Apply signature
-                struInfo.rebuildStructure(dex, dexHashCodeList);
+                struInfo.rebuildStructure(dex, dexHashCodeLists.get(dexlist.indexOf(dex)));
+                return struInfo;
+            });
 
-                if(Thread.currentThread().isInterrupted()) {
-                    logger.info("Tread Interrupted!");
-                    return;
-                }
+            if(struInfos == null || Thread.currentThread().isInterrupted()) {
+                logger.info("Tread Interrupted!");
+                return;
+            }
 
-                // Notify system
-                dex.notifyListeners(new JebEvent(J.UnitChange));
-                // Output result
-                ReportHandler.generateRecord(dex, struInfo, ref);
+            // Output result
+            ReportHandler.generateRecord(dexlist, struInfos, ref);
 
-                /************* For testing *************/
-                //ReportHandler.serializeReport(dex, struInfo);
-                //ReportHandler.deserializeReport(dex, struInfo);          
-                //generatePaper(dex);
+            /************* For testing *************/
+            //ReportHandler.serializeReport(dex, struInfo);
+            //ReportHandler.deserializeReport(dex, struInfo);          
+            //generatePaper(dex);
 
-                break;
-            }
             logger.info("*************** Completed! ***************");
             logger.info("Signature recognition took %fs", (System.currentTimeMillis() - t0) / 1000.0);
         }
         finally {
-            // Just a hint to help jeb free memory consumption
-            struInfo = null;
-            ref.close();
-            ref = null;
+            if(executor != null) {
+                executor.shutdownNow();
+            }
+            if(searchExecutor != null) {
+                searchExecutor.shutdownNow();
+            }
+            if(ref == null) {
+                // loading may still be running: wait for it to release the database
+                try {
+                    ref = waitDatabase(futureRef);
+                }
+                catch(RuntimeException e) {
+                    logger.catchingSilent(e);
+                }
+            }
+            if(ref != null) {
+                DatabaseReference toRelease = ref;
+                ref = null;
+                try {
+                    toRelease = keepWarm(params, toRelease);
+                }
+                catch(RuntimeException e) {
+                    logger.catchingSilent(e);
+                }
+                finally {
+                    DatabaseReferenceService.release(toRelease);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a task on each dex unit, concurrently if an executor is provided.
+     * 
+     * @return task results, in dex unit order, or null if the current thread was interrupted
+     */
+    private static <T> List<T> runForAllUnits(ExecutorService executor, List<IDexUnit> dexlist,
+            Function<IDexUnit, T> task) {
+        List<T> results = new ArrayList<>();
+        if(executor == null) {
+            for(IDexUnit dex: dexlist) {
+                results.add(task.apply(dex));
+                if(Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for(IDexUnit dex: dexlist) {
+            futures.add(executor.submit(() -> task.apply(dex)));
+        }
+        try {
+            for(Future<T> future: futures) {
+                results.add(future.get());
+            }
+        }
+        catch(InterruptedException e) {
+            for(Future<T> future: futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException e) {
+            for(Future<T> future: futures) {
+                future.cancel(true);
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Start loading the signature database in background.
+     */
+    private Future<DatabaseReference> startDatabaseLoading(File sigFolder) {
+        FutureTask<DatabaseReference> task = new FutureTask<>(() -> {
+            long t = System.currentTimeMillis();
+            DatabaseReference ref = DatabaseReferenceService.acquire(sigFolder);
+            logger.info("Signature database loading phase took %dms", System.currentTimeMillis() - t);
+            return ref;
+        });
+        Thread loader = new Thread(task, "androsig-db-loader");
+        loader.setDaemon(true);
+        loader.start();
+        return task;
+    }
+
+    /**
+     * Wait for the database to be loaded. Database loading is not interruptible (it must be
+     * released), but interrupted status is restored.
+     */
+    private static DatabaseReference waitDatabase(Future<DatabaseReference> futureRef) {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    return futureRef.get();
+                }
+                catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Keep (or stop keeping) the signature database loaded for next executions, depending on
+     * keep-warm parameters. The reference held by the execution is kept as is: nothing is loaded
+     * on the exit path (next execution refreshes it if the signature folder was modified).
+     * 
+     * @param ref database acquired by the execution
+     * @return reference to release by caller (null if it was kept warm)
+     */
+    private synchronized DatabaseReference keepWarm(DatabaseMatcherParameters params, DatabaseReference ref) {
+        if(warmReleaseTask != null) {
+            warmReleaseTask.cancel();
+            warmReleaseTask = null;
+        }
+        if(!params.keepWarm) {
+            releaseWarmDatabase();
+            return ref;
+        }
+        if(params.keepWarmMemoryCeiling > 0) {
+            // do not count garbage of the execution
             System.gc();
+            Runtime rt = Runtime.getRuntime();
+            long memused = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+            if(memused > params.keepWarmMemoryCeiling) {
+                logger.info("Used memory %dMB exceeds keep-warm ceiling (%dMB): database released", memused,
+                        params.keepWarmMemoryCeiling);
+                releaseWarmDatabase();
+                return ref;
+            }
+        }
+
+        if(params.keepWarmIdleTimeout > 0) {
+            if(warmTimer == null) {
+                warmTimer = new Timer("androsig-keepwarm", true);
+            }
+            warmReleaseTask = new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized(AndroidSigApplyPlugin.this) {
+                        if(warmReleaseTask == this) {
+                            logger.info("Warm signature database idle timeout: database released");
+                            warmReleaseTask = null;
+                            releaseWarmDatabase();
+                        }
+                    }
+                }
+            };
+            warmTimer.schedule(warmReleaseTask, params.keepWarmIdleTimeout * 1000L);
+        }
+
+        if(!DatabaseReferenceService.isCurrent(ref)) {
+            // outdated by a refresh: keep the previous warm database, if any
+            return ref;
+        }
+        // take over the reference of the execution before releasing the previous one, so that an
+        // unchanged database is not closed in between
+        DatabaseReference previous = warmRef;
+        warmRef = ref;
+        try {
+            DatabaseReferenceService.release(previous);
+        }
+        catch(RuntimeException e) {
+            logger.catchingSilent(e);
+        }
+        return null;
+    }
+
+    private void releaseWarmDatabase() {
+        if(warmRef != null) {
+            DatabaseReferenceService.release(warmRef);
+            warmRef = null;
         }
     }
 
@@ -0,0 +1,182 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+import com.pnf.androsig.apply.model.CandidateIndex;
+
+/**
+ * Score accumulator of class candidates, with {@link CandidateIndex} keys. Keys and scores are
+ * stored in an open addressing table of primitives, best candidates are selected with a bounded
+ * heap. Hashcodes are weighted by inverse document frequency (see {@link #getWeight(int, int)}).
+ * Not thread-safe.
+ *
+ * @author Cedric Lucas
+ *
+ */
+class CandidateScorer {
+
+    private static final long EMPTY = -1L;
+    private static final double IDF_SCALE = 16.0;
+
+    private long[] keys;
+    private int[] scores;
+    private int size;
+
+    CandidateScorer() {
+        allocate(64);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        scores = new int[capacity];
+        size = 0;
+    }
+
+    /**
+     * @param documentFrequency number of files defining a hashcode
+     * @param fileCount number of files of the database
+     * @return weight of a hashcode: 1 for a hashcode defined by all files, bigger for rare ones
+     */
+    static int getWeight(int documentFrequency, int fileCount) {
+        if(documentFrequency <= 0 || documentFrequency >= fileCount) {
+            return 1;
+        }
+        return 1 + (int)(IDF_SCALE * Math.log((double)fileCount / documentFrequency));
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Add weight to the score of a candidate.
+     */
+    void add(long key, int weight) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while(keys[i] != EMPTY) {
+            if(keys[i] == key) {
+                scores[i] += weight;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        scores[i] = weight;
+        size++;
+        if(size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldScores = scores;
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        scores = new int[keys.length];
+        int mask = keys.length - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] == EMPTY) {
+                continue;
+            }
+            int i = slot(oldKeys[j], mask);
+            while(keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            scores[i] = oldScores[j];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Select the best candidates. Candidates with same score than the k-th best one are kept, so that
+     * selection does not depend on table order.
+     *
+     * @param k number of candidates to keep
+     * @param accept filter of candidates (called once per candidate)
+     * @return sorted keys of selected candidates
+     */
+    long[] selectTopK(int k, LongPredicate accept) {
+        // min-heap of slots, on score
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] == EMPTY) {
+                continue;
+            }
+            if(!accept.test(keys[i])) {
+                scores[i] = 0;
+                continue;
+            }
+            if(heapSize < k) {
+                heap[heapSize] = i;
+                siftUp(heap, heapSize);
+                heapSize++;
+            }
+            else if(scores[i] > scores[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, heapSize);
+            }
+        }
+        if(heapSize == 0) {
+            return new long[0];
+        }
+        int threshold = heapSize < k ? 1: scores[heap[0]];
+        long[] selected = new long[size];
+        int count = 0;
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != EMPTY && scores[i] >= threshold) {
+                selected[count++] = keys[i];
+            }
+        }
+        selected = Arrays.copyOf(selected, count);
+        Arrays.sort(selected);
+        return selected;
+    }
+
+    private void siftUp(int[] heap, int pos) {
+        int slot = heap[pos];
+        while(pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if(scores[heap[parent]] <= scores[slot]) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = slot;
+    }
+
+    private void siftDown(int[] heap, int heapSize) {
+        int slot = heap[0];
+        int pos = 0;
+        while(true) {
+            int child = 2 * pos + 1;
+            if(child >= heapSize) {
+                break;
+            }
+            if(child + 1 < heapSize && scores[heap[child + 1]] < scores[heap[child]]) {
+                child++;
+            }
+            if(scores[slot] <= scores[heap[child]]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = slot;
+    }
+}
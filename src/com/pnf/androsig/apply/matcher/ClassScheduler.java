@@ -0,0 +1,130 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.pnf.androsig.apply.model.CandidateIndex;
+import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.apply.model.DexSnapshot;
+import com.pnf.androsig.apply.util.DexUtilLocal;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+
+/**
+ * Order of class searches within a round. Classes with a high confidence pre-score are searched
+ * first, so that their matches (matched classes, used files) give context to ambiguous classes in
+ * the same round instead of the next one. The pre-score of a class is the sum of the weights (see
+ * {@link CandidateScorer#getWeight(int, int)}) of its method hashcodes known by the
+ * {@link CandidateIndex}: many unique, low frequency hashcodes give a high score.
+ * <p>
+ * Inner classes are always scheduled after their parent class, since they are first searched in
+ * the signature file of their parent. Scores only depend on the dex unit and the database, they are
+ * computed once per class (until the database is updated).
+ *
+ * @author Cedric Lucas
+ *
+ */
+class ClassScheduler {
+
+    private final DatabaseMatcherParameters params;
+
+    /** index used to compute scores */
+    private CandidateIndex candidateIndex;
+    /** pre-scores, with class index as key */
+    private final Map<Integer, Integer> scores = new HashMap<>();
+
+    ClassScheduler(DatabaseMatcherParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Sort classes by descending pre-score, parents first. Classes with same score keep their order.
+     *
+     * @param classes classes to sort (modified)
+     */
+    void schedule(IDexUnit unit, List<IDexClass> classes, DexSnapshot snapshot, DexHashcodeList dexHashCodeList,
+            CandidateIndex candidateIndex) {
+        if(candidateIndex != this.candidateIndex) {
+            // database was updated
+            scores.clear();
+            this.candidateIndex = candidateIndex;
+        }
+        for(IDexClass eClass: classes) {
+            if(!scores.containsKey(eClass.getIndex())) {
+                scores.put(eClass.getIndex(), computeScore(eClass, snapshot, dexHashCodeList));
+            }
+        }
+        classes.sort((c1, c2) -> Integer.compare(scores.get(c2.getIndex()), scores.get(c1.getIndex())));
+
+        // delay inner classes after their parent
+        Set<Integer> pending = new HashSet<>();
+        for(IDexClass eClass: classes) {
+            pending.add(eClass.getIndex());
+        }
+        Map<Integer, List<IDexClass>> delayed = new HashMap<>();
+        List<IDexClass> res = new ArrayList<>(classes.size());
+        for(IDexClass eClass: classes) {
+            String signature = snapshot.getClassSignature(eClass.getIndex());
+            if(DexUtilLocal.isInnerClass(signature)) {
+                IDexClass parentClass = snapshot.getClass(unit, DexUtilLocal.getParentSignature(signature));
+                if(parentClass != null && pending.contains(parentClass.getIndex())) {
+                    delayed.computeIfAbsent(parentClass.getIndex(), k -> new ArrayList<>()).add(eClass);
+                    continue;
+                }
+            }
+            add(eClass, res, pending, delayed);
+        }
+        classes.clear();
+        classes.addAll(res);
+    }
+
+    private static void add(IDexClass eClass, List<IDexClass> res, Set<Integer> pending,
+            Map<Integer, List<IDexClass>> delayed) {
+        res.add(eClass);
+        pending.remove(eClass.getIndex());
+        List<IDexClass> innerClasses = delayed.remove(eClass.getIndex());
+        if(innerClasses != null) {
+            for(IDexClass innerClass: innerClasses) {
+                add(innerClass, res, pending, delayed);
+            }
+        }
+    }
+
+    private int computeScore(IDexClass eClass, DexSnapshot snapshot, DexHashcodeList dexHashCodeList) {
+        List<? extends IDexMethod> methods = eClass.getMethods();
+        if(methods == null) {
+            return 0;
+        }
+        int score = 0;
+        for(IDexMethod eMethod: methods) {
+            if(!eMethod.isInternal()) {
+                continue;
+            }
+            int instructionCount = snapshot.getInstructionCount(eMethod.getIndex());
+            if(instructionCount == DexSnapshot.NO_CODE || instructionCount <= params.methodSizeBar) {
+                continue;
+            }
+            String mhash = dexHashCodeList.getTightHashcode(eMethod);
+            int documentFrequency = mhash == null ? 0: candidateIndex.getDocumentFrequency(mhash, true);
+            if(documentFrequency == 0) {
+                mhash = dexHashCodeList.getLooseHashcode(eMethod);
+                documentFrequency = mhash == null ? 0: candidateIndex.getDocumentFrequency(mhash, false);
+            }
+            if(documentFrequency == 0) {
+                continue;
+            }
+            score += CandidateScorer.getWeight(documentFrequency, candidateIndex.getIndexedFileCount());
+        }
+        return score;
+    }
+}
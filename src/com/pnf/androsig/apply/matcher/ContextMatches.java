@@ -6,37 +6,60 @@
 package com.pnf.androsig.apply.matcher;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.ToIntFunction;
 
+import com.pnf.androsig.apply.model.PrototypeDescriptor;
+import com.pnf.androsig.apply.model.PrototypeTable;
 import com.pnf.androsig.apply.util.DexUtilLocal;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 
 /**
  * Represent a binding from an old classname to a new classname.
+ * <p>
+ * Each old classname receives an id and is resolved to its class index when its first evidence is
+ * recorded, so that the context matching queue works on ids rather than on names. Candidate new
+ * classnames also receive an id (see {@link #getNameCount()}).
  * 
  * @author Cedric Lucas
  *
  */
 public class ContextMatches {
     public static class CMatch {
+        /** old classname */
+        final String key;
+        /** id of this binding, see {@link ContextMatches#get(int)} */
+        final int id;
+        /** index of the class named {@link #key} when first evidence was recorded, -1 if none */
+        final int classIndex;
         List<Match> matches = new ArrayList<>();
         boolean processed = false;
         String name = null;
+
+        CMatch(String key, int id, int classIndex) {
+            this.key = key;
+            this.id = id;
+            this.classIndex = classIndex;
+        }
     }
 
     public static class Match {
         String newName;
+        /** id of {@link #newName}, lower than {@link ContextMatches#getNameCount()} */
+        final int nameId;
         int count;
         List<Integer> methodIndexes = new ArrayList<>();
 
-        public Match(String newName) {
+        public Match(String newName, int nameId) {
             this.newName = newName;
+            this.nameId = nameId;
         }
 
         public void addMethod(Integer methodIndex) {
@@ -54,42 +77,60 @@ public class ContextMatches {
 
     private Map<String, CMatch> contextMatches = new HashMap<>();
 
+    /** bindings by id */
+    private List<CMatch> bindings = new ArrayList<>();
+
+    /** ids of candidate new classnames */
+    private Map<String, Integer> nameIds = new HashMap<>();
+
     private Map<Integer, String> methodMatches = new HashMap<>();
 
+    /** ids of bindings with new evidence since last {@link #pollModifiedClasses()} */
+    private BitSet modifiedClasses = new BitSet();
+
+    /** resolve old classnames to class indexes of current unit */
+    private ToIntFunction<String> classIndexes = className -> -1;
+
+    /** method matches not yet checked against file matches (see {@link #pollPendingMethods()}) */
+    private Set<Integer> pendingMethods = new LinkedHashSet<>();
+
+    /** parsed prototypes of current unit */
+    private PrototypeTable prototypeTable = new PrototypeTable();
+
+    void setPrototypeTable(PrototypeTable prototypeTable) {
+        this.prototypeTable = prototypeTable;
+    }
+
+    void setClassIndexes(ToIntFunction<String> classIndexes) {
+        this.classIndexes = classIndexes;
+    }
+
     public void saveParamMatching(String oldProto, String newProto, String className, Integer eMethodIndex,
             String methodName) {
-        // extract return type
-        String[] tokens1 = oldProto.substring(1).split("\\)");
         if(newProto.isEmpty()) {
             // several candidates: TODO check versions or wait for final matching
             return;
         }
-        String[] tokens2 = newProto.substring(1).split("\\)");
-        if(tokens1.length != 2 || tokens2.length != 2) {
+        PrototypeDescriptor oldDesc = prototypeTable.get(oldProto);
+        PrototypeDescriptor newDesc = prototypeTable.get(newProto);
+        if(oldDesc == null || newDesc == null) {
             return;
         }
-        List<String> oldClasses = DexUtilLocal.parseSignatureParameters(tokens1[0]);
-        oldClasses.add(tokens1[1]);
-        List<String> newClasses = DexUtilLocal.parseSignatureParameters(tokens2[0]);
-        newClasses.add(tokens2[1]);
-        if(oldClasses.size() != newClasses.size()) {
+        if(oldDesc.getTypeCount() != newDesc.getTypeCount()) {
             // parameter non use removed? too risky
             return;
         }
-        for(int i = 0; i < oldClasses.size(); i++) {
-            String oldClass = oldClasses.get(i);
-            String newClass = newClasses.get(i);
+        // parameters and return value
+        for(int i = 0; i < oldDesc.getTypeCount(); i++) {
+            String oldClass = oldDesc.getTypeName(i);
             if(oldClass.endsWith(";")) {
-                // return value updated
-                while(oldClass.charAt(0) == '[') {
-                    if(newClass.charAt(0) != '[') {
-                        // argument swaps?
-                        return;
-                    }
-                    oldClass = oldClass.substring(1);
-                    newClass = newClass.substring(1);
+                int dim = oldDesc.getDimension(i);
+                if(newDesc.getDimension(i) < dim) {
+                    // argument swaps?
+                    return;
                 }
-                saveClassMatch(oldClass, newClass, className, eMethodIndex, methodName);
+                saveClassMatch(oldClass.substring(dim), newDesc.getTypeName(i).substring(dim), className,
+                        eMethodIndex, methodName);
             }
         }
     }
@@ -149,6 +190,7 @@ public class ContextMatches {
 
     public void setInvalidMethod(Integer key) {
         methodMatches.put(key, INVALID_MATCH);
+        pendingMethods.remove(key);
     }
 
     private Match getMatch(CMatch value, String newName) {
@@ -173,15 +215,22 @@ public class ContextMatches {
         }
         CMatch value = contextMatches.get(oldClass);
         if(value == null) {
-            value = new CMatch();
+            value = new CMatch(oldClass, bindings.size(), classIndexes.applyAsInt(oldClass));
             contextMatches.put(oldClass, value);
+            bindings.add(value);
         }
         Match val = getMatch(value, newClass);
         if(val == null) {
-            val = new Match(newClass);
+            Integer nameId = nameIds.get(newClass);
+            if(nameId == null) {
+                nameId = nameIds.size();
+                nameIds.put(newClass, nameId);
+            }
+            val = new Match(newClass, nameId);
             value.matches.add(val);
         }
         val.addMethod(methodIndex);
+        modifiedClasses.set(value.id);
         if(value.processed && !newClass.equals(value.name)) {
             // wrong class match attempt
             value.processed = false;
@@ -198,21 +247,66 @@ public class ContextMatches {
             }
             else if(!value.equals(newMethod)) {
                 methodMatches.put(oldMethod, INVALID_MATCH);
+                pendingMethods.remove(oldMethod);
                 return false;
             }
         }
+        else {
+            pendingMethods.add(oldMethod);
+        }
         methodMatches.put(oldMethod, newMethod);
         return true;
     }
 
-    public Set<String> keySet() {
-        return new HashSet<>(contextMatches.keySet());
+    public int size() {
+        return bindings.size();
+    }
+
+    /**
+     * @return number of candidate new classnames: {@link Match#nameId} are lower than this count
+     */
+    public int getNameCount() {
+        return nameIds.size();
+    }
+
+    /**
+     * @return ids of bindings which received new evidence since previous call (may also contain
+     *         processed bindings)
+     */
+    public BitSet pollModifiedClasses() {
+        BitSet modified = modifiedClasses;
+        modifiedClasses = new BitSet();
+        return modified;
+    }
+
+    /**
+     * Method matches must be validated against file matches until the method is matched: the
+     * returned methods are not tracked anymore, caller must call {@link #keepPendingMethod(Integer)}
+     * for methods to check again later.
+     * 
+     * @return method matches which were not checked yet
+     */
+    public Set<Integer> pollPendingMethods() {
+        Set<Integer> pending = pendingMethods;
+        pendingMethods = new LinkedHashSet<>();
+        return pending;
+    }
+
+    public void keepPendingMethod(Integer key) {
+        pendingMethods.add(key);
     }
 
     public CMatch get(String key) {
         return contextMatches.get(key);
     }
 
+    /**
+     * @param id binding id, lower than {@link #size()}
+     */
+    public CMatch get(int id) {
+        return bindings.get(id);
+    }
+
     public String getMethod(Integer key) {
         return methodMatches.get(key);
     }
@@ -6,6 +6,8 @@
 package com.pnf.androsig.apply.matcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -13,26 +15,30 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import com.pnf.androsig.apply.matcher.ContextMatches.CMatch;
 import com.pnf.androsig.apply.matcher.ContextMatches.Match;
 import com.pnf.androsig.apply.matcher.MatchingSearch.InnerMatch;
+import com.pnf.androsig.apply.model.ClassShape;
 import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.apply.model.DexSnapshot;
 import com.pnf.androsig.apply.model.ISignatureFile;
 import com.pnf.androsig.apply.model.LibraryInfo;
 import com.pnf.androsig.apply.model.MethodSignature;
+import com.pnf.androsig.apply.model.SignatureLookupCache;
 import com.pnf.androsig.apply.modules.ApkCallerModule;
 import com.pnf.androsig.apply.modules.MethodFinderModule;
 import com.pnf.androsig.apply.modules.ReverseMatchingModule;
 import com.pnf.androsig.apply.util.DexUtilLocal;
-import com.pnfsoftware.jeb.core.units.code.IInstruction;
+import com.pnf.androsig.apply.util.IntList;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
 import com.pnfsoftware.jeb.util.format.Strings;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
@@ -84,8 +90,8 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
 
     private DatabaseReference ref;
 
-    // class which should not be checked again
-    private Set<Integer> ignoredClasses = new HashSet<>();
+    /** negative cache of candidate searches, across passes */
+    private RejectedClasses rejectedClasses = new RejectedClasses();
     // classes that seems to match but are not fully determined
     private Set<Integer> whiteListClasses = new HashSet<>();
 
@@ -93,21 +99,42 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
 
     private FileMatches fileMatches = new FileMatches(contextMatches);
 
+    /** executor of candidate searches (created on first parallel search if not shared) */
+    private ExecutorService searchExecutor;
+    private boolean ownSearchExecutor;
+
+    /** order of class searches, null to keep {@link DexUtilLocal#getSortedClasses(IDexUnit)} order */
+    private ClassScheduler scheduler;
+
     // **** Rebuild structure ****
     // Check duplicate classes (if two or more classes match to the same library class, we need to avoid rename these classes)
     private Map<String, List<Integer>> dupClasses = new HashMap<>();
     // Check duplicate methods (same as dupClass)
     private Map<Integer, List<Integer>> dupMethods = new HashMap<>();
 
-    /** Cache of total instruction lines per class */
-    private Map<Integer, Double> instruCount = new HashMap<>();
+    /** Structure of the dex unit being analyzed */
+    private DexSnapshot snapshot;
 
     /** Enabled modules */
     private List<IAndrosigModule> modules = new ArrayList<>();
 
-    public DatabaseMatcher2(DatabaseMatcherParameters params, DatabaseReference ref) {
+    /** Match modifications not yet notified to modules, per post-process callback */
+    private MatchDelta.Tracker classesDeltaTracker = fileMatches.newDeltaTracker();
+    private MatchDelta.Tracker methodsDeltaTracker = fileMatches.newDeltaTracker();
+    /** Match modifications not yet polled by {@link #pollMatchDelta()} */
+    private MatchDelta.Tracker pollDeltaTracker = fileMatches.newDeltaTracker();
+
+    /**
+     * @param searchExecutor shared executor of candidate searches, or null to create one if needed
+     */
+    public DatabaseMatcher2(DatabaseMatcherParameters params, DatabaseReference ref,
+            ExecutorService searchExecutor) {
         this.params = params;
         this.ref = ref;
+        this.searchExecutor = searchExecutor;
+        if(params.confidenceScheduling) {
+            scheduler = new ClassScheduler(params);
+        }
         // inner module, allow direct modification of matched methods
         modules.add(new MethodFinderModule(contextMatches, fileMatches, ref, params, modules));
         if(params.useCallerList) {
@@ -120,6 +147,17 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
 
     @Override
     public void storeMatchedClassesAndMethods(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound) {
+        storeMatchedClassesAndMethods(unit, dexHashCodeList, firstRound, null);
+    }
+
+    @Override
+    public void storeMatchedClassesAndMethods(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound,
+            Set<Integer> scope) {
+        snapshot = dexHashCodeList.getSnapshot();
+        fileMatches.setSnapshot(snapshot);
+        rejectedClasses.setEffectiveTypeNames(snapshot::getTypeEffectiveSignature);
+        contextMatches.setPrototypeTable(snapshot.getPrototypeTable());
+        contextMatches.setClassIndexes(snapshot::getClassIndex);
         for(IAndrosigModule module: modules) {
             module.initNewPass(unit, dexHashCodeList, firstRound);
         }
@@ -127,6 +165,13 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         if(sortedClasses == null) {
             return;
         }
+        if(scope != null) {
+            sortedClasses.removeIf(c -> !scope.contains(c.getIndex()));
+        }
+        if(scheduler != null) {
+            // most confident classes first: their matches give context to next ones within the round
+            scheduler.schedule(unit, sortedClasses, snapshot, dexHashCodeList, ref.getCandidateIndex());
+        }
 
         if(firstRound) {
             // clean up classes which have same name
@@ -159,44 +204,59 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         // GC
         dupClasses.clear();
         dupMethods.clear();
+        SignatureLookupCache lookupCache = ref.getLookupCache();
+        logger.debug("Signature lookup cache: %d entries, %d hits, %d misses (hit rate %.1f%%), %d evictions",
+                lookupCache.size(), lookupCache.getHitCount(), lookupCache.getMissCount(),
+                lookupCache.getHitRate() * 100, lookupCache.getEvictionCount());
     }
 
     private void applyContextMatch(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound,
             boolean firstPass) {
         // expand: Add classes and methods found by context (method signature, caller)
-        int size = 0;
-        int oldSize = 0;
-        do {
-            oldSize = size;
-            Set<String> matches = contextMatches.keySet();
-            size = matches.size();
-            Map<IDexClass, CMatch> bindings = new HashMap<>();
-            Map<String, IDexClass> classesMatched = new HashMap<>();
-            for(String oldName: matches) {
-                CMatch cMatch = contextMatches.get(oldName);
+        // first iteration checks all pending bindings, next ones only bindings with new evidence and undecided ones
+        BitSet queue = new BitSet();
+        for(int id = 0; id < contextMatches.size(); id++) {
+            if(!contextMatches.get(id).processed) {
+                queue.set(id);
+            }
+        }
+        contextMatches.pollModifiedClasses();
+        BitSet undecided = new BitSet();
+        // binding id + 1 by candidate name id, 0 if candidate name is free in current iteration
+        int[] classesMatched = new int[0];
+        BitSet bindings = new BitSet();
+        while(!queue.isEmpty()) {
+            int size = contextMatches.size();
+            boolean progress = false;
+            if(classesMatched.length < contextMatches.getNameCount()) {
+                classesMatched = new int[contextMatches.getNameCount()];
+            }
+            else {
+                Arrays.fill(classesMatched, 0);
+            }
+            bindings.clear();
+            for(int id = queue.nextSetBit(0); id >= 0; id = queue.nextSetBit(id + 1)) {
+                CMatch cMatch = contextMatches.get(id);
+                undecided.clear(id);
                 if(cMatch.processed) {
                     continue;
                 }
                 if(cMatch.name != null) {
                     removeWrongMethods(cMatch);
                     cMatch.processed = true;
+                    progress = true;
                     continue;
                 }
-                IDexClass cl = unit.getClass(oldName);
-                if(cl == null) {
+                if(cMatch.classIndex < 0 || fileMatches.containsMatchedClass(cMatch.classIndex)) {
                     continue;
                 }
-                String newName = fileMatches.getMatchedClass(cl);
-                if(newName != null) {
-                    continue;
-                }
-                String candidateNewName = null;
+                Match candidate = null;
                 List<Match> candidateNewNames = cMatch.matches;
                 if(candidateNewNames.size() != 1) {
                     Match bestCandidate = null;
                     boolean eq = false;
                     for(Match cand: candidateNewNames) {
-                        if(cand.newName.equals(cl.getSignature(true))) {
+                        if(cand.newName.equals(cMatch.key)) {
                             // quick win for samely named classes
                             bestCandidate = cand;
                             eq = false;
@@ -215,36 +275,41 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                     }
                     if(eq == true) {
                         // two candidates at same level, wait for more context matches
+                        undecided.set(id);
                         continue;
                     }
-                    candidateNewName = bestCandidate.newName;
+                    candidate = bestCandidate;
                 }
                 else {
-                    candidateNewName = candidateNewNames.get(0).newName;
+                    candidate = candidateNewNames.get(0);
                 }
 
-                if(fileMatches.containsMatchedClassValue(candidateNewName)) {
+                if(fileMatches.containsMatchedClassValue(candidate.newName)) {
                     // target class already exists! wait for more matching, since this one seems wrong
+                    undecided.set(id);
                     continue;
                 }
-                IDexClass cl2 = classesMatched.get(candidateNewName);
-                if(cl2 == null) {
-                    bindings.put(cl, cMatch);
-                    classesMatched.put(candidateNewName, cl);
-                    cMatch.name = candidateNewName;
+                int other = classesMatched[candidate.nameId] - 1;
+                if(other < 0) {
+                    bindings.set(id);
+                    classesMatched[candidate.nameId] = id + 1;
+                    cMatch.name = candidate.newName;
                 }
                 else {
-                    CMatch m = bindings.remove(cl2); // class name matches for 2 classes
-                    if(m != null) {
-                        // first duplicated discovered
+                    undecided.set(id);
+                    if(bindings.get(other)) {
+                        // class name matches for 2 classes, first duplicated discovered
+                        bindings.clear(other);
+                        CMatch m = contextMatches.get(other);
                         m.processed = false;
                         m.name = null;
+                        undecided.set(other);
                     }
                 }
             }
-            for(Entry<IDexClass, CMatch> entry: bindings.entrySet()) {
-                IDexClass cl = entry.getKey();
-                CMatch cMatch = entry.getValue();
+            for(int id = bindings.nextSetBit(0); id >= 0; id = bindings.nextSetBit(id + 1)) {
+                CMatch cMatch = contextMatches.get(id);
+                IDexClass cl = unit.getClass(cMatch.classIndex);
                 InnerMatch innerMatch = getClass(unit, cl, dexHashCodeList, firstRound, false, cMatch.name);
                 if(innerMatch != null) {
                     storeFinalCandidate(unit, cl, innerMatch, firstRound, false);
@@ -260,20 +325,39 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                 }
                 if(!cMatch.processed) {
                     cMatch.name = null;
+                    undecided.set(id);
+                }
+                else {
+                    progress = true;
                 }
             }
+            if(!progress && contextMatches.size() == size) {
+                // no new binding nor new key: undecided keys would stay undecided
+                break;
+            }
+            queue = contextMatches.pollModifiedClasses();
+            if(queue.isEmpty()) {
+                break;
+            }
+            queue.or(undecided);
         }
-        while(oldSize != size);
-        for(Entry<Integer, String> entry: contextMatches.methodsEntrySet()) {
-            if(!contextMatches.isValid(entry.getValue())) {
+        contextMatches.pollModifiedClasses();
+
+        // only method matches not validated yet
+        for(Integer methodIndex: contextMatches.pollPendingMethods()) {
+            String contextName = contextMatches.getMethod(methodIndex);
+            if(!contextMatches.isValid(contextName)) {
                 continue;
             }
-            IDexMethod m = unit.getMethod(entry.getKey());
-            String newName = fileMatches.getMatchedMethod(m);
-            if(newName != null && !newName.equals(entry.getValue())) {
+            String newName = fileMatches.getMatchedMethod(methodIndex);
+            if(newName == null) {
+                // not matched yet, check again on next call
+                contextMatches.keepPendingMethod(methodIndex);
+            }
+            else if(!newName.equals(contextName)) {
                 logger.warn("Conflict for method: Method %s was already renamed to %s. Can not rename to %s",
-                        m.getName(false), newName, entry.getValue());
-                contextMatches.setInvalidMethod(entry.getKey());
+                        unit.getMethod(methodIndex).getName(false), newName, contextName);
+                contextMatches.setInvalidMethod(methodIndex);
             }
         }
     }
@@ -293,7 +377,7 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
 
     private void bindUnrenamedClasses(IDexUnit dex, List<IDexClass> classes, DexHashcodeList dexHashCodeList) {
         for(IDexClass eClass: classes) {
-            String originalSignature = eClass.getSignature(true);
+            String originalSignature = snapshot.getClassSignature(eClass.getIndex());
             List<String> files = ref.getFilesContainingClass(originalSignature);
             if(files == null) {
                 continue;
@@ -338,20 +422,133 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
 
     private boolean storeFinalCandidates(IDexUnit unit, List<? extends IDexClass> classes,
             DexHashcodeList dexHashCodeList, boolean firstRound, boolean firstPass) {
+        // Phase 1: search candidates of all classes concurrently, against current state
+        Map<Integer, MatchingSearch> prefetched = prefetchCandidates(unit, classes, dexHashCodeList, firstRound,
+                firstPass);
+
+        // Phase 2: validate and commit in class order (prefetched searches are recomputed when invalidated by a previous commit)
         boolean found = false;
+        int reused = 0;
+        try {
+            for(IDexClass eClass: classes) {
+                if(fileMatches.containsMatchedClass(eClass)) {
+                    continue;
+                }
+                MatchingSearch prefetchedSearch = prefetched == null ? null: prefetched.remove(eClass.getIndex());
+                if(prefetchedSearch != null && !prefetchedSearch.isPrefetchValid()) {
+                    prefetchedSearch = null;
+                }
+                else if(prefetchedSearch != null) {
+                    reused++;
+                }
+                // Get all candidates
+                InnerMatch innerMatch = getClass(unit, eClass, dexHashCodeList, firstRound, firstPass, null,
+                        prefetchedSearch);
+                if(innerMatch != null) {
+                    if(storeFinalCandidate(unit, eClass, innerMatch, firstRound)) {
+                        found = true;
+                    }
+                }
+            }
+        }
+        finally {
+            fileMatches.stopChangeTracking();
+        }
+        if(prefetched != null) {
+            logger.debug("Parallel candidate search: %d prefetched searches reused", reused);
+        }
+        logger.debug("Rejected classes: %d cached, %d searches skipped (no candidate), %d (hierarchy mismatch)",
+                rejectedClasses.size(), rejectedClasses.getSkippedCount(RejectedClasses.Reason.NO_CANDIDATE),
+                rejectedClasses.getSkippedCount(RejectedClasses.Reason.HIERARCHY_MISMATCH));
+        return found;
+    }
+
+    /**
+     * Run the candidate search ({@link MatchingSearch#processClass}) of unmatched classes
+     * concurrently. No modification is made during this phase, then {@link FileMatches} starts to
+     * track modifications to invalidate searches.
+     * 
+     * @return prefetched searches per class index, or null in sequential mode
+     */
+    private Map<Integer, MatchingSearch> prefetchCandidates(IDexUnit unit, List<? extends IDexClass> classes,
+            DexHashcodeList dexHashCodeList, boolean firstRound, boolean firstPass) {
+        if(DatabaseMatcherFactory.getSearchThreads(params) <= 1) {
+            return null;
+        }
+        List<IDexClass> toSearch = new ArrayList<>();
         for(IDexClass eClass: classes) {
-            if(fileMatches.containsMatchedClass(eClass)) {
+            if(fileMatches.containsMatchedClass(eClass)
+                    || !firstRound && rejectedClasses.contains(eClass.getIndex(), firstPass, fileMatches)) {
                 continue;
             }
-            // Get all candidates
-            InnerMatch innerMatch = getClass(unit, eClass, dexHashCodeList, firstRound, firstPass, null);
-            if(innerMatch != null) {
-                if(storeFinalCandidate(unit, eClass, innerMatch, firstRound)) {
-                    found = true;
-                }
+            List<? extends IDexMethod> methods = eClass.getMethods();
+            if(methods == null || methods.size() == 0) {
+                continue;
+            }
+            String originalSignature = snapshot.getClassSignature(eClass.getIndex());
+            if(DexUtilLocal.isInnerClass(originalSignature)) {
+                // inner classes are first searched in their parent file, or skipped
+                continue;
             }
+            toSearch.add(eClass);
+        }
+        if(toSearch.size() < 2) {
+            return null;
+        }
+
+        Map<Integer, MatchingSearch> prefetched = new HashMap<>();
+        ExecutorService executor = getSearchExecutor();
+        List<Future<MatchingSearch>> futures = new ArrayList<>();
+        try {
+            for(IDexClass eClass: toSearch) {
+                futures.add(executor.submit(() -> {
+                    MatchingSearch search = new MatchingSearch(unit, dexHashCodeList, ref, params, fileMatches,
+                            modules, firstRound, firstPass);
+                    search.prefetchClass(this, eClass, eClass.getMethods(),
+                            DexUtilLocal.getInnerClassLevel(snapshot.getClassSignature(eClass.getIndex())));
+                    return search;
+                }));
+            }
+            for(int i = 0; i < toSearch.size(); i++) {
+                prefetched.put(toSearch.get(i).getIndex(), futures.get(i).get());
+            }
+        }
+        catch(InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException e) {
+            cancelAll(futures);
+            logger.catchingSilent(e.getCause());
+            logger.warn("Parallel candidate search failed: fallback to sequential search");
+            return null;
+        }
+        fileMatches.startChangeTracking();
+        return prefetched;
+    }
+
+    private synchronized ExecutorService getSearchExecutor() {
+        if(searchExecutor == null) {
+            searchExecutor = DatabaseMatcherFactory.newSearchExecutor(params);
+            ownSearchExecutor = true;
+        }
+        return searchExecutor;
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for(Future<?> future: futures) {
+            future.cancel(true);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if(ownSearchExecutor) {
+            searchExecutor.shutdownNow();
+            searchExecutor = null;
+            ownSearchExecutor = false;
         }
-        return found;
     }
 
     /**
@@ -361,6 +558,14 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
      */
     protected InnerMatch getClass(IDexUnit dex, IDexClass eClass, DexHashcodeList dexHashCodeList, boolean firstRound,
             boolean unique, String hintName) {
+        return getClass(dex, eClass, dexHashCodeList, firstRound, unique, hintName, null);
+    }
+
+    /**
+     * @param prefetched optional valid candidate search performed by {@link #prefetchCandidates}
+     */
+    private InnerMatch getClass(IDexUnit dex, IDexClass eClass, DexHashcodeList dexHashCodeList,
+            boolean firstRound, boolean unique, String hintName, MatchingSearch prefetched) {
         List<? extends IDexMethod> methods = eClass.getMethods();
         if(hintName == null && (methods == null || methods.size() == 0)) {
             // since signature only contains non empty classes, there is no chance that we found by matching
@@ -369,11 +574,11 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
 
         MatchingSearch matching = new MatchingSearch(dex, dexHashCodeList, ref, params, fileMatches,
                 modules, firstRound, unique);
-        String originalSignature = eClass.getSignature(true);
+        String originalSignature = snapshot.getClassSignature(eClass.getIndex());
         int innerLevel = DexUtilLocal.getInnerClassLevel(originalSignature);
         boolean parentClassFound = false;
         if(DexUtilLocal.isInnerClass(originalSignature)) {
-            IDexClass parentClass = DexUtilLocal.getParentClass(dex, originalSignature);
+            IDexClass parentClass = snapshot.getClass(dex, DexUtilLocal.getParentSignature(originalSignature));
             String name = parentClass == null ? null: fileMatches.getMatchedClass(parentClass);
             if(name != null) {
                 parentClassFound = true;
@@ -382,28 +587,47 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                 if(file != null) {
                     // Retrieve all inner class belonging to parent
                     String innerClass = hintName == null ? (name.substring(0, name.length() - 1) + "$"): hintName;
-                    List<MethodSignature> innerSignatures = ref.getSignaturesForClassname(file, innerClass, false);
-                    HierarchyMatcher hierarchy = new HierarchyMatcher(eClass);
+                    HierarchyMatcher hierarchy = new HierarchyMatcher(snapshot, eClass);
+                    List<MethodSignature> innerSignatures;
+                    Set<String> candidates;
+                    List<String> innerNames = ref.getCandidateIndex().getClassNames(file.file, innerClass);
+                    if(innerNames != null) {
+                        // filter classes first (class shapes): only load signatures of candidates
+                        innerSignatures = new ArrayList<>();
+                        candidates = new HashSet<>();
+                        for(String cname: innerNames) {
+                            if(!isInnerClassCandidate(dex, file, hierarchy, cname, eClass, innerLevel)) {
+                                continue;
+                            }
+                            List<MethodSignature> sigs = ref.getSignaturesForClassname(file, cname, true);
+                            if(sigs != null && !sigs.isEmpty()) {
+                                candidates.add(cname);
+                                innerSignatures.addAll(sigs);
+                            }
+                        }
+                    }
+                    else {
+                        innerSignatures = ref.getSignaturesForClassname(file, innerClass, false);
+                        candidates = innerSignatures.stream().map(s -> s.getCname()).collect(Collectors.toSet());
+                        candidates = candidates.stream().filter(
+                                cname -> isInnerClassCandidate(dex, file, hierarchy, cname, eClass, innerLevel))
+                                .collect(Collectors.toSet());
+                        Set<String> innerCandidates = candidates;
+                        innerSignatures = innerSignatures.stream()
+                                .filter(inner -> innerCandidates.contains(inner.getCname()))
+                                .collect(Collectors.toList());
+                    }
 
                     // is there only one class that can match?
-                    Set<String> candidates = innerSignatures.stream().map(s -> s.getCname())
-                            .collect(Collectors.toSet());
-                    candidates = candidates.stream()
-                            .filter(cname -> isInnerClassCandidate(dex, file, hierarchy, cname, eClass, innerLevel))
-                            .collect(Collectors.toSet());
                     if(hintName == null && candidates.size() == 1) {
                         // bypass f validation
                         contextMatches.saveClassMatch(originalSignature, candidates.iterator().next(), name);
                         return null;
                     }
 
-                    innerSignatures = innerSignatures.stream()
-                            .filter(inner -> isInnerClassCandidate(dex, file, hierarchy, inner.getCname(), eClass,
-                                    innerLevel))
-                            .collect(Collectors.toList());
                     matching.processInnerClass(file, eClass, methods, innerClass, innerLevel,
                             innerSignatures);
-                    ignoredClasses.remove(eClass.getIndex());
+                    rejectedClasses.remove(eClass.getIndex());
 
                     if(matching.isEmpty() && hintName != null) {
                         // no matching/no methods?
@@ -425,18 +649,23 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
             }
         }
 
-        if(hintName == null && ignoredClasses.contains(eClass.getIndex())) {
+        // failures of the search only depend on recorded FileMatches state (inner classes also depend on parent)
+        boolean cacheRejection = hintName == null && !firstRound && !DexUtilLocal.isInnerClass(originalSignature)
+                && matching.isEmpty();
+        if(cacheRejection && rejectedClasses.isRejected(eClass.getIndex(), unique, fileMatches)) {
             return null;
         }
         // First round: attempt to match a whole class
         // Look for candidate files: only uses hashcodes + prototype/compatible prototype
-        boolean hasCandidates = true;
-        if(matching.isEmpty()) {
-            hasCandidates = matching.processClass(this, eClass, methods, innerLevel);
-            if(!hasCandidates && !whiteListClasses.contains(eClass.getIndex())) {
-                // there may be alternative, multi matching, by finding context
-                //ignoredClasses.add(eClass.getIndex());
+        if(matching.isEmpty() && prefetched != null) {
+            matching = prefetched;
+            prefetched.endPrefetch();
+        }
+        else if(matching.isEmpty()) {
+            if(cacheRejection) {
+                matching.recordDependencies();
             }
+            matching.processClass(this, eClass, methods, innerLevel);
         }
 
         if (hintName != null) {
@@ -444,6 +673,10 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         }
 
         if(matching.isEmpty()) {
+            if(cacheRejection && !whiteListClasses.contains(eClass.getIndex())) {
+                rejectedClasses.reject(eClass.getIndex(), unique, RejectedClasses.Reason.NO_CANDIDATE,
+                        matching.getDependencies(), fileMatches);
+            }
             return null;
         }
 
@@ -452,6 +685,17 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         if(unique) {
             // do not filter on second pass because interfaces can easily be modified (or new versions may be missed)
             filterHierarchy(matching, eClass);
+            if(cacheRejection && !whiteListClasses.contains(eClass.getIndex()) && !hasClassCandidates(matching)) {
+                // hierarchy check also depends on names of super type and interfaces (parent match)
+                SearchDependencies dependencies = matching.getDependencies();
+                addTypeName(dependencies, snapshot.getSuperType(eClass.getIndex()));
+                for(int typeId: snapshot.getInterfaces(eClass.getIndex())) {
+                    addTypeName(dependencies, typeId);
+                }
+                rejectedClasses.reject(eClass.getIndex(), unique, RejectedClasses.Reason.HIERARCHY_MISMATCH,
+                        dependencies, fileMatches);
+                return null;
+            }
         }
 
         findSmallMethods(matching, originalSignature, methods, unique);
@@ -520,7 +764,7 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                         List<InnerMatch> newBestCandidates = new ArrayList<>();
                         for(InnerMatch cand: bestCandidates) {
                             if(hintName != null
-                                    || f(dex, eClass, new ArrayList<>(cand.getMatchedMethodIndexes())) == null) {
+                                    || f(dex, eClass, new IntList(cand.getMatchedMethodIndexes())) == null) {
                                 newBestCandidates.add(cand);
                             }
                         }
@@ -584,7 +828,7 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                 }
                 else {
                     // same name (except generic names)
-                    String methodName = dex.getMethod(entry.getKey()).getName(true);
+                    String methodName = snapshot.getMethodName(entry.getKey());
                     if(!entry.getValue().getMname().equals(methodName)) {
                         continue;
                     }
@@ -601,11 +845,17 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
     }
 
     private void filterHierarchy(MatchingSearch fileCandidates, IDexClass eClass) {
-        HierarchyMatcher hierarchy = new HierarchyMatcher(eClass);
+        HierarchyMatcher hierarchy = new HierarchyMatcher(snapshot, eClass);
         for(Entry<String, Map<String, InnerMatch>> entry: fileCandidates.entrySet()) {
             List<String> toRemove = new ArrayList<>();
             for(Entry<String, InnerMatch> cand: entry.getValue().entrySet()) {
-                if(!hierarchy.isCompatible(ref, cand.getValue().getFirstRefFile(), cand.getValue().getCname())) {
+                DatabaseReferenceFile file = cand.getValue().getFirstRefFile();
+                ClassShape shape = ref.getCandidateIndex().getClassShape(file.file, cand.getValue().getCname());
+                if(shape != null && shape.isIncompatibleSuperType(hierarchy.getSuperType())) {
+                    // no need to load hierarchy
+                    toRemove.add(cand.getKey());
+                }
+                else if(!hierarchy.isCompatible(ref, file, cand.getValue().getCname())) {
                     toRemove.add(cand.getKey());
                 }
             }
@@ -615,6 +865,21 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         }
     }
 
+    private void addTypeName(SearchDependencies dependencies, int typeId) {
+        if(typeId >= 0) {
+            dependencies.addTypeName(typeId, snapshot.getTypeEffectiveSignature(typeId));
+        }
+    }
+
+    private static boolean hasClassCandidates(MatchingSearch fileCandidates) {
+        for(Entry<String, Map<String, InnerMatch>> entry: fileCandidates.entrySet()) {
+            if(!entry.getValue().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void filterVersions(MatchingSearch fileCandidates) {
         // here, we clean up the methods which don't belong to same version
         for(Entry<String, Map<String, InnerMatch>> entry: fileCandidates.entrySet()) {
@@ -651,8 +916,11 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                     if(cand.containsMethod(eMethod.getIndex())) {
                         continue;
                     }
-                    MethodSignature strArray = fileCandidates.findMethodMatch(cand.getFirstRefFile(), cand.getCname(),
-                            cand.getUsedMethodSignatures(), eMethod, true);
+                    MethodSignature strArray = null;
+                    if(fileCandidates.mayDefineMethod(cand.getFirstRefFile(), cand.getCname(), eMethod)) {
+                        strArray = fileCandidates.findMethodMatch(cand.getFirstRefFile(), cand.getCname(),
+                                cand.getUsedMethodSignatures(), eMethod, true);
+                    }
                     if(strArray != null) {
                         cand.addMethod(eMethod, strArray);
                     }
@@ -673,11 +941,18 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
 
     private boolean isInnerClassCandidate(IDexUnit dex, DatabaseReferenceFile file, HierarchyMatcher hierarchy,
             String classname, IDexClass eClass, int innerLevel) {
-        IDexClass innerCl = dex.getClass(classname);
+        IDexClass innerCl = snapshot.getClass(dex, classname);
         // remove classes that already matched
         if(innerCl != null && fileMatches.containsMatchedClass(innerCl)) {
             return false;
         }
+        ClassShape shape = ref.getCandidateIndex().getClassShape(file.file, classname);
+        if(shape != null) {
+            // same checks, without parsing name nor loading hierarchy
+            return shape.getMethodCount() > 0 && DexUtilLocal.isAnonymous(eClass) == shape.isAnonymous()
+                    && innerLevel == shape.getInnerLevel() && !shape.isIncompatibleSuperType(hierarchy.getSuperType())
+                    && hierarchy.isCompatible(ref, file, classname);
+        }
         if(DexUtilLocal.isAnonymous(eClass) != DexUtilLocal.isAnonymous(classname)) {
             return false;
         }
@@ -807,7 +1082,7 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         if(fileMatches.containsMatchedClassValue(innerMatch.getCname())) {
             return false;
         }
-        String originalSignature = eClass.getSignature(true);
+        String originalSignature = snapshot.getClassSignature(eClass.getIndex());
         if(DexUtilLocal.getInnerClassLevel(innerMatch.getCname()) != DexUtilLocal
                 .getInnerClassLevel(originalSignature)) {
             return false;
@@ -834,11 +1109,11 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                     while(DexUtilLocal.isInnerClass(newParentClass)) {
                         oldParentClass = DexUtilLocal.getParentSignature(oldParentClass);
                         newParentClass = DexUtilLocal.getParentSignature(newParentClass);
-                        IDexClass oldParentClassObj = unit.getClass(oldParentClass);
+                        IDexClass oldParentClassObj = snapshot.getClass(unit, oldParentClass);
                         if(oldParentClassObj == null) {
                             continue;
                         }
-                        IDexClass newParentClassObj = unit.getClass(newParentClass);
+                        IDexClass newParentClassObj = snapshot.getClass(unit, newParentClass);
                         String oldParentMatch = fileMatches.getMatchedClass(oldParentClassObj);
                         if(oldParentMatch != null) {
                             // parent class has already a match: must be the same
@@ -860,7 +1135,7 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         }
         List<Integer> temp1 = new ArrayList<>(innerMatch.getMatchedMethodIndexes());
         if(!checkCoverage || temp1.size() != 0) {
-            String errorMessage = checkCoverage ? f(unit, eClass, temp1): null;
+            String errorMessage = checkCoverage ? f(unit, eClass, new IntList(temp1)): null;
             if(errorMessage == null) {
                 logger.debug("Found match class: %s from file %s", innerMatch.getCname(),
                         Strings.join(",", innerMatch.getFiles()));
@@ -908,49 +1183,22 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
     }
 
     @Override
-    public String f(IDexUnit unit, IDexClass eClass, List<Integer> matchedMethods) {
+    public String f(IDexUnit unit, IDexClass eClass, IntList matchedMethods) {
         double totalInstrus = 0;
         double matchedInstrus = 0;
 
         List<? extends IDexMethod> methods = eClass.getMethods();
-        Double c = instruCount.get(eClass.getIndex());
-        if(c != null) {
-            totalInstrus = c;
-            for(int e: matchedMethods) {
-                IDexMethod m = unit.getMethod(e);
-                List<? extends IInstruction> insns = m.getInstructions();
-                matchedInstrus += (insns == null ? 0: insns.size());
-            }
+        if(methods == null || methods.size() == 0) {
+            return "No method";
         }
-        else {
-            if(methods == null || methods.size() == 0) {
-                return "No method";
-            }
-            for(IDexMethod m: methods) {
-                if(!m.isInternal()) {
-                    continue;
-                }
-
-                IDexMethodData md = m.getData();
-                if(md == null) {
-                    continue;
-                }
-                IDexCodeItem ci = md.getCodeItem();
-                if(ci == null) {
-                    continue;
-                }
-                int count = ci.getInstructions().size();
-                if(matchedMethods.contains(m.getIndex())) {
-                    matchedInstrus += count;
-                }
-                totalInstrus += count;
-            }
-            instruCount.put(eClass.getIndex(), totalInstrus);
+        totalInstrus = snapshot.getClassInstructionCount(eClass.getIndex());
+        for(int i = 0; i < matchedMethods.size(); i++) {
+            matchedInstrus += Math.max(0, snapshot.getInstructionCount(matchedMethods.get(i)));
         }
 
-        if(methods.size() == 1 && !DexUtilLocal.isInnerClass(eClass.getSignature(true))) {
+        if(methods.size() == 1 && !DexUtilLocal.isInnerClass(snapshot.getClassSignature(eClass.getIndex()))) {
             // possible false positive: same constructor/super constructor only
-            String name = methods.get(0).getName(true);
+            String name = snapshot.getMethodName(methods.get(0).getIndex());
             if(name.equals("<init>") || name.equals("<clinit>")) {
                 return matchedInstrus > params.standaloneConstructorMethodSizeBar ? null
                         : "Only simple constructor match found";
@@ -963,12 +1211,18 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         return null;
     }
 
+    @Override
+    public MatchDelta pollMatchDelta() {
+        return pollDeltaTracker.next(fileMatches.getMatchedClasses(), fileMatches.getMatchedMethods());
+    }
+
     @Override
     public Map<Integer, String> postProcessRenameMethods(IDexUnit unit, DexHashcodeList dexHashCodeList,
             boolean firstRound) {
+        MatchDelta delta = methodsDeltaTracker.next(fileMatches.getMatchedClasses(), fileMatches.getMatchedMethods());
         Map<Integer, String> result = new HashMap<>();
         for(IAndrosigModule module: modules) {
-            result.putAll(module.postProcessRenameMethods(unit, dexHashCodeList, firstRound));
+            result.putAll(module.postProcessRenameMethods(unit, dexHashCodeList, firstRound, delta));
         }
         return result;
     }
@@ -976,9 +1230,10 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
     @Override
     public Map<Integer, String> postProcessRenameClasses(IDexUnit dex, DexHashcodeList dexHashCodeList,
             boolean firstRound) {
+        MatchDelta delta = classesDeltaTracker.next(fileMatches.getMatchedClasses(), fileMatches.getMatchedMethods());
         Map<Integer, String> result = new HashMap<>();
         for(IAndrosigModule module: modules) {
-            result.putAll(module.postProcessRenameClasses(dex, dexHashCodeList, firstRound));
+            result.putAll(module.postProcessRenameClasses(dex, dexHashCodeList, firstRound, delta));
         }
         return result;
     }
@@ -1034,9 +1289,16 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
         return fileMatches.getSignatureFileUsed().size();
     }
 
+    @Override
+    public Set<String> getUsedSignatureFiles() {
+        return fileMatches.getSignatureFileUsed();
+    }
+
     @Override
     public Map<String, LibraryInfo> getAllLibraryInfos() {
         Map<String, LibraryInfo> libs = new HashMap<>();
+        // one copy per file, completed with the versions of this execution
+        Map<String, LibraryInfo> fileLibs = new HashMap<>();
         for(Entry<Integer, String> entry: fileMatches.entrySetMatchedClasses()) {
             DatabaseReferenceFile file = fileMatches.getFileFromClassId(entry.getKey());
             if(file == null) {
@@ -1049,9 +1311,13 @@ class DatabaseMatcher2 implements IDatabaseMatcher, ISignatureMetrics, IMatcherV
                 }
             }
             else {
-                LibraryInfo res = ref.getLibraryInfos(file.file, null);
-                if(file.getMergedVersions() != null && res.getVersions() == null) {
-                    res.setVersions(file.getReducedVersions());
+                LibraryInfo res = fileLibs.get(file.file);
+                if(res == null) {
+                    res = ref.getLibraryInfos(file.file, null);
+                    if(file.getMergedVersions() != null && res.getVersions() == null) {
+                        res.setVersions(file.getReducedVersions());
+                    }
+                    fileLibs.put(file.file, res);
                 }
                 libs.put(entry.getValue(), res);
             }
@@ -6,6 +6,8 @@
 package com.pnf.androsig.apply.matcher;
 
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.pnf.androsig.apply.model.DatabaseReference;
 
@@ -16,7 +18,39 @@ import com.pnf.androsig.apply.model.DatabaseReference;
 public class DatabaseMatcherFactory {
 
     public static IDatabaseMatcher build(DatabaseMatcherParameters params, DatabaseReference ref) {
-        return new DatabaseMatcher2(params, ref);
+        return new DatabaseMatcher2(params, ref, null);
+    }
+
+    /**
+     * @param searchExecutor executor of candidate searches, shared by several matchers (may be null:
+     *        matcher creates its own if needed). Not shut down by matchers.
+     */
+    public static IDatabaseMatcher build(DatabaseMatcherParameters params, DatabaseReference ref,
+            ExecutorService searchExecutor) {
+        return new DatabaseMatcher2(params, ref, searchExecutor);
+    }
+
+    /**
+     * Create the executor of candidate searches, bounded by
+     * {@link DatabaseMatcherParameters#matcherThreads}. Tasks never wait for other tasks: it can be
+     * shared by matchers running concurrently.
+     * 
+     * @return executor to shut down by caller, or null if searches are sequential
+     */
+    public static ExecutorService newSearchExecutor(DatabaseMatcherParameters params) {
+        int threads = getSearchThreads(params);
+        if(threads <= 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "androsig-search");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static int getSearchThreads(DatabaseMatcherParameters params) {
+        return params.matcherThreads == 0 ? Runtime.getRuntime().availableProcessors(): params.matcherThreads;
     }
 
     public static IDatabaseMatcher build(Map<String, String> executionOptions, DatabaseReference ref) {
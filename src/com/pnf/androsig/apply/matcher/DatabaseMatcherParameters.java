@@ -33,33 +33,78 @@ public class DatabaseMatcherParameters {
     public double reverseMatchingFoundClassPercentage = 0.1; // will perform reverse matching only if (matched classes per file / total classes per file) is not greater than reverseMatchingFoundClassPercentage
     public int reverseMatchingMethodThreshold = 8; // minimum number of methods required to analyze a class
     public int reverseMatchingComplexObjectThreshold = 10; // minimum number of complex objects used in method signatures
+    public int reverseMatchingTimeBudget = 0; // in ms, maximum time spent by reverse matching per round (0: no limit)
     //public double reverseMatchingOpcountDeltaPercentage = 0.2; // delta allowed between two methods that do not have same hashcode
 
     public int matchedMethodsOneMatch = 10;
 
     public int complexSignatureParams = 2;
 
+    public int matcherThreads = 0; // threads used for candidate search (0: number of available processors, 1: sequential)
+
+    public int dexConcurrency = 0; // number of dex units processed concurrently (0: number of available processors)
+
+    public boolean worklistMatching = false; // after first round, only search classes impacted by new matches
+
+    public boolean confidenceScheduling = true; // search classes with many rare hashcodes first, parent classes before inner classes
+
+    public int candidateTopK = 32; // number of best scored class candidates kept per class search (0: no limit)
+    public int firstRoundFilesBar = 10; // in first round, skip method hashcodes found in more than firstRoundFilesBar candidate files
+    public int stopListFrequency = 0; // ignore method hashcodes defined in more than stopListFrequency signature files (0: no stop-list)
+    public boolean fingerprintMatching = false; // first look for class candidates by class fingerprint, before per method search
+    public double fingerprintMinSimilarity = 0.5; // minimum similarity of hashcode sets for a fingerprint candidate
+    public int fingerprintMaxCandidates = 8; // number of most similar fingerprint candidates kept per class (0: no limit)
+
+    public boolean keepWarm = false; // keep signature database loaded between executions
+    public int keepWarmIdleTimeout = 600; // seconds before a warm database is released if not used
+    public int keepWarmMemoryCeiling = 0; // in MB, do not keep database warm if used memory exceeds this value (0: no limit)
+
     public static DatabaseMatcherParameters parseParameters(Map<String, String> executionOptions) {
         DatabaseMatcherParameters params = new DatabaseMatcherParameters();
+        if(executionOptions == null) {
+            return params;
+        }
         params.methodSizeBar = parsePositiveInt(executionOptions, "methodSizeBar", 6);
         params.matchedMethodsOneMatch = parsePositiveInt(executionOptions, "matchedMethodsOneMatch", 10);
         params.complexSignatureParams = parsePositiveInt(executionOptions, "complexSignatureParams", 2);
+        params.matcherThreads = parsePositiveInt(executionOptions, "matcherThreads", 0);
+        params.dexConcurrency = parsePositiveInt(executionOptions, "dexConcurrency", 0);
+        params.worklistMatching = parseBoolean(executionOptions, "worklistMatching", false);
+        params.confidenceScheduling = parseBoolean(executionOptions, "confidenceScheduling", true);
+        params.candidateTopK = parsePositiveInt(executionOptions, "candidateTopK", 32);
+        params.firstRoundFilesBar = parsePositiveInt(executionOptions, "firstRoundFilesBar", 10);
+        params.stopListFrequency = parsePositiveInt(executionOptions, "stopListFrequency", 0);
+        params.fingerprintMatching = parseBoolean(executionOptions, "fingerprintMatching", false);
+        params.fingerprintMinSimilarity = parseRatio(executionOptions, "fingerprintMinSimilarity", 0.5);
+        params.fingerprintMaxCandidates = parsePositiveInt(executionOptions, "fingerprintMaxCandidates", 8);
+        params.reverseMatchingTimeBudget = parsePositiveInt(executionOptions, "reverseMatchingTimeBudget", 0);
+        params.keepWarm = parseBoolean(executionOptions, "keepWarm", false);
+        params.keepWarmIdleTimeout = parsePositiveInt(executionOptions, "keepWarmIdleTimeout", 600);
+        params.keepWarmMemoryCeiling = parsePositiveInt(executionOptions, "keepWarmMemoryCeiling", 0);
 
+        params.matchedInstusPercentageBar = parseRatio(executionOptions, "matchedInstusPercentageBar", 0.5);
+        return params;
+    }
 
-        String matchedInstusPercentageBar = executionOptions.get("matchedInstusPercentageBar");
-        if(!Strings.isBlank(matchedInstusPercentageBar)) {
+    /**
+     * @return double value of parameter, defaultValue if it is not in [0.0, 1.0]
+     */
+    private static double parseRatio(Map<String, String> executionOptions, String paramName, double defaultValue) {
+        String paramValue = executionOptions.get(paramName);
+        double paramValueDouble = defaultValue;
+        if(!Strings.isBlank(paramValue)) {
             try {
-                params.matchedInstusPercentageBar = Double.parseDouble(matchedInstusPercentageBar);
+                paramValueDouble = Double.parseDouble(paramValue);
             }
             catch(NumberFormatException e) {
-                logger.warn("Illegal matchedInstusPercentageBar parameter: \"%s\" (must be a double)",
-                        Formatter.escapeString(matchedInstusPercentageBar));
+                logger.warn("Illegal %s parameter: \"%s\" (must be a double)", paramName,
+                        Formatter.escapeString(paramValue));
             }
-            if(params.matchedInstusPercentageBar < 0.0 || params.matchedInstusPercentageBar > 1.0) {
-                params.matchedInstusPercentageBar = 0.5;
+            if(paramValueDouble < 0.0 || paramValueDouble > 1.0) {
+                paramValueDouble = defaultValue;
             }
         }
-        return params;
+        return paramValueDouble;
     }
 
     private static int parsePositiveInt(Map<String, String> executionOptions, String paramName, int defaultValue) {
@@ -80,6 +125,24 @@ public class DatabaseMatcherParameters {
         return paramValueInt;
     }
 
+    private static boolean parseBoolean(Map<String, String> executionOptions, String paramName,
+            boolean defaultValue) {
+        String paramValue = executionOptions.get(paramName);
+        if(Strings.isBlank(paramValue)) {
+            return defaultValue;
+        }
+        paramValue = paramValue.trim();
+        if(paramValue.equalsIgnoreCase("true")) {
+            return true;
+        }
+        else if(paramValue.equalsIgnoreCase("false")) {
+            return false;
+        }
+        logger.warn("Illegal %s parameter: \"%s\" (must be true or false)", paramName,
+                Formatter.escapeString(paramValue));
+        return defaultValue;
+    }
+
     public static List<? extends IOptionDefinition> getExecutionOptionDefinitions() {
         return Arrays.asList(new OptionDefinition(null,
                 "Minimum number of instructions required to analyze a method by signature hashcode\n"
@@ -106,6 +169,83 @@ public class DatabaseMatcherParameters {
                                 + " \"Minimum number of complex parameters\" to consider that the matching is safe.\n"
                                 + " This is to avoid percentage bar matching when only getter/setter matches for example)\n"
                                 + "Value range: >= 0 (Default value: 2). The bigger will reduce false positive, the smaller will increase matching results"),
-                new OptionDefinition("complexSignatureParams", "Minimum number of complex parameters"));
+                new OptionDefinition("complexSignatureParams", "Minimum number of complex parameters"),
+
+                new OptionDefinition(null,
+                        "Number of threads used to search class candidates (results are the same as sequential search)\n"
+                                + "Value range: >= 0 (Default value: 0, number of available processors; 1: sequential search)"),
+                new OptionDefinition("matcherThreads", "Candidate search threads"),
+
+                new OptionDefinition(null,
+                        "Number of dex units processed concurrently (multidex or multiple apks)\n"
+                                + "Value range: >= 0 (Default value: 0, number of available processors)"),
+                new OptionDefinition("dexConcurrency", "Dex units concurrency"),
+
+                new OptionDefinition(null,
+                        "Only search again classes impacted by the matches of previous round (referenced by a prototype,\n"
+                                + " caller, inner/outer class or hierarchy). Faster, but may miss matches enabled by file version\n"
+                                + " narrowing or by a taken class name (found when searching all unmatched classes at each round)\n"
+                                + "Value: true/false (Default value: false)"),
+                new OptionDefinition("worklistMatching", "Worklist matching"),
+
+                new OptionDefinition(null,
+                        "Search first the classes with many rare method hashcodes, and parent classes before their inner classes\n"
+                                + "(their matches give context to ambiguous classes within the same round; disable to search by signature length)\n"
+                                + "Value: true/false (Default value: true)"),
+                new OptionDefinition("confidenceScheduling", "Confidence scheduling"),
+
+                new OptionDefinition(null,
+                        "Number of class candidates kept per class search, the best ones by number of methods sharing a hashcode\n"
+                                + "(signatures are only loaded for these candidates; ties are kept)\n"
+                                + "Value range: >= 0 (Default value: 32, 0: no limit)"),
+                new OptionDefinition("candidateTopK", "Class candidates limit"),
+
+                new OptionDefinition(null,
+                        "Maximum number of candidate files of a method hashcode in first round\n"
+                                + "(more common hashcodes are ignored in first round, they are considered in next rounds)\n"
+                                + "Value range: >= 0 (Default value: 10)"),
+                new OptionDefinition("firstRoundFilesBar", "First round files bar"),
+
+                new OptionDefinition(null,
+                        "Maximum number of signature files defining a method hashcode (document frequency)\n"
+                                + "(more common hashcodes, like getters or trivial constructors, are never used to look for candidates)\n"
+                                + "Value range: >= 0 (Default value: 0, no stop-list)"),
+                new OptionDefinition("stopListFrequency", "Hashcode stop-list frequency"),
+
+                new OptionDefinition(null,
+                        "Look for class candidates by class fingerprint (similar sets of method hashcodes) before searching method per method\n"
+                                + "(per method search is only performed when no fingerprint candidate is found; fingerprints use additional memory)\n"
+                                + "Value: true/false (Default value: false)"),
+                new OptionDefinition("fingerprintMatching", "Fingerprint matching"),
+
+                new OptionDefinition(null,
+                        "Minimum similarity of method hashcode sets for a fingerprint class candidate (see fingerprint matching)\n"
+                                + "Value range: 0.0 - 1.0 (Default value: 0.5). The bigger will reduce false positive, the smaller will increase matching results"),
+                new OptionDefinition("fingerprintMinSimilarity", "Fingerprint minimum similarity"),
+
+                new OptionDefinition(null,
+                        "Number of fingerprint class candidates kept per class search, the most similar ones (ties are kept)\n"
+                                + "Value range: >= 0 (Default value: 8, 0: no limit)"),
+                new OptionDefinition("fingerprintMaxCandidates", "Fingerprint candidates limit"),
+
+                new OptionDefinition(null,
+                        "Maximum time (in ms) spent by reverse matching per round (remaining library classes are skipped)\n"
+                                + "Value range: >= 0 (Default value: 0, no limit)"),
+                new OptionDefinition("reverseMatchingTimeBudget", "Reverse matching time budget"),
+
+                new OptionDefinition(null,
+                        "Keep the signature database loaded after execution, so that next executions start matching immediately\n"
+                                + "Value: true/false (Default value: false)"),
+                new OptionDefinition("keepWarm", "Keep database warm"),
+
+                new OptionDefinition(null,
+                        "Number of seconds a warm signature database is kept without being used\n"
+                                + "Value range: >= 0 (Default value: 600)"),
+                new OptionDefinition("keepWarmIdleTimeout", "Warm database idle timeout"),
+
+                new OptionDefinition(null,
+                        "Maximum used memory (in MB) after execution to keep the signature database warm\n"
+                                + "Value range: >= 0 (Default value: 0, no limit)"),
+                new OptionDefinition("keepWarmMemoryCeiling", "Warm database memory ceiling"));
     }
 }
@@ -5,6 +5,7 @@
  */
 package com.pnf.androsig.apply.matcher;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -15,12 +16,13 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.DexSnapshot;
 import com.pnf.androsig.apply.model.MethodSignature;
+import com.pnf.androsig.apply.model.SignatureFilter;
 import com.pnf.androsig.apply.util.DexUtilLocal;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 
@@ -51,6 +53,16 @@ public class FileMatches {
     /** Extended candidate list, not stable enough (several candidates for same class) */
     private Map<Integer, Set<DatabaseReferenceFile>> candidateMatchedClassesFile = new HashMap<>();
 
+    /** Modifications since {@link #startChangeTracking()} (null if not tracked) */
+    private SearchDependencies changes;
+    /** Modifications since last {@link #pollHistory()} (always tracked) */
+    private SearchDependencies history = new SearchDependencies();
+    /** match modifications not yet delivered to modules */
+    private List<MatchDelta.Tracker> deltaTrackers = new ArrayList<>();
+
+    /** effective names of current unit */
+    private DexSnapshot snapshot;
+
     public FileMatches(ContextMatches contextMatches) {
         this.contextMatches = contextMatches;
     }
@@ -72,6 +84,84 @@ public class FileMatches {
         return usedSigFiles.containsKey(f);
     }
 
+    void setSnapshot(DexSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Start recording modifications that may invalidate candidate searches performed on current
+     * state.
+     */
+    void startChangeTracking() {
+        changes = new SearchDependencies();
+    }
+
+    void stopChangeTracking() {
+        changes = null;
+    }
+
+    SearchDependencies getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return modifications performed since previous call
+     */
+    SearchDependencies pollHistory() {
+        SearchDependencies res = history;
+        history = new SearchDependencies();
+        return res;
+    }
+
+    /**
+     * @return new tracker of match modifications, whose first delta contains current matches
+     */
+    MatchDelta.Tracker newDeltaTracker() {
+        MatchDelta.Tracker tracker = new MatchDelta.Tracker(matchedClasses, matchedMethods);
+        deltaTrackers.add(tracker);
+        return tracker;
+    }
+
+    private void recordClass(int index, String classname) {
+        if(changes != null) {
+            changes.addClassValue(classname);
+        }
+        history.addClassValue(classname);
+        for(MatchDelta.Tracker tracker: deltaTrackers) {
+            tracker.classModified(index);
+        }
+    }
+
+    private void recordMethod(int index) {
+        if(changes != null) {
+            changes.addMethod(index);
+        }
+        history.addMethod(index);
+        for(MatchDelta.Tracker tracker: deltaTrackers) {
+            tracker.methodModified(index);
+        }
+    }
+
+    private void recordFile(String file) {
+        if(changes != null) {
+            changes.addFile(file);
+        }
+        history.addFile(file);
+    }
+
+    private void recordUsedFiles(String file) {
+        if(changes != null) {
+            changes.setUsedFiles();
+        }
+        history.setUsedFiles();
+        recordFile(file);
+    }
+
+    private void putUsedSigFile(String file, DatabaseReferenceFile refFile) {
+        usedSigFiles.put(file, refFile);
+        recordUsedFiles(file);
+    }
+
     //    public DatabaseReferenceFile getFromFilename(String file) {
     //        return usedSigFiles.get(file);
     //    }
@@ -82,9 +172,10 @@ public class FileMatches {
         }
         DatabaseReferenceFile refFile = getFileFromClassId(dexClass.getIndex());
         if(refFile == null) {
-            String signature = dexClass.getSignature(true);
+            String signature = snapshot.getClassSignature(dexClass.getIndex());
             if(DexUtilLocal.isInnerClass(signature)) {
-                refFile = getFileFromClass(dex, DexUtilLocal.getParentClass(dex, signature));
+                refFile = getFileFromClass(dex,
+                        snapshot.getClass(dex, DexUtilLocal.getParentSignature(signature)));
                 if(refFile != null) {
                     matchedClassesFile.put(dexClass.getIndex(), refFile);
                 }
@@ -103,9 +194,10 @@ public class FileMatches {
         }
         Set<DatabaseReferenceFile> refFiles = candidateMatchedClassesFile.get(dexClass.getIndex());
         if(refFiles == null) {
-            String signature = dexClass.getSignature(true);
+            String signature = snapshot.getClassSignature(dexClass.getIndex());
             if(DexUtilLocal.isInnerClass(signature)) {
-                refFiles = getCandidateFilesFromClass(dex, DexUtilLocal.getParentClass(dex, signature));
+                refFiles = getCandidateFilesFromClass(dex,
+                        snapshot.getClass(dex, DexUtilLocal.getParentSignature(signature)));
                 if(refFiles != null) {
                     candidateMatchedClassesFile.put(dexClass.getIndex(), refFiles);
                 }
@@ -125,14 +217,14 @@ public class FileMatches {
         DatabaseReferenceFile refFile = usedSigFiles.get(file);
         if(refFile == null) {
             refFile = new DatabaseReferenceFile(file, null);
-            usedSigFiles.put(file, refFile);
+            putUsedSigFile(file, refFile);
         }
         matchedClassesFile.put(dexClassIndex, refFile);
         processNewReferenceFile(refFile);
     }
 
     private void addMatchedClassFiles(int dexClassIndex, DatabaseReferenceFile refFile, boolean recurse) {
-        usedSigFiles.put(refFile.file, refFile);
+        putUsedSigFile(refFile.file, refFile);
         matchedClassesFile.put(dexClassIndex, refFile);
         if(recurse) {
             processNewReferenceFile(refFile);
@@ -208,9 +300,10 @@ public class FileMatches {
         DatabaseReferenceFile refFile = usedSigFiles.get(file);
         if(refFile == null) {
             refFile = new DatabaseReferenceFile(file, null);
-            usedSigFiles.put(file, refFile);
+            putUsedSigFile(file, refFile);
         }
         refFile.mergeVersions(values);
+        recordFile(file);
         return true;
     }
 
@@ -221,6 +314,9 @@ public class FileMatches {
                 refFile = new DatabaseReferenceFile(file, null);
                 tempSigFiles.put(file, refFile);
             }
+            else {
+                recordFile(file);
+            }
             refFile.mergeVersions(values);
         }
     }
@@ -243,7 +339,7 @@ public class FileMatches {
         if(fs.size() == 1) {
             f = fs.get(0);
             if(!usedSigFiles.containsKey(f)) {
-                usedSigFiles.put(f, null);
+                putUsedSigFile(f, null);
             }
             addMatchedClassFiles(cl, f);
             return usedSigFiles.get(f);
@@ -252,12 +348,13 @@ public class FileMatches {
         return null;// maybe duplicated, wait for other part to decide
     }
 
-    public List<MethodSignature> getSignatureLines(DatabaseReference ref, String file, String hashcode, boolean tight) {
+    public List<MethodSignature> getSignatureLines(DatabaseReference ref, String file, String hashcode, boolean tight,
+            SignatureFilter filter) {
         if(!usedSigFiles.containsKey(file)) {
-            return ref.getSignatureLines(file, hashcode, tight);
+            return ref.getSignatureLines(file, hashcode, tight, filter);
         }
         DatabaseReferenceFile refFile = usedSigFiles.get(file);
-        return ref.getSignatureLines(refFile, hashcode, tight);
+        return ref.getSignatureLines(refFile, hashcode, tight, filter);
     }
 
     public void addMatchedClass(IDexClass cl, String classname, List<String> files,
@@ -268,10 +365,11 @@ public class FileMatches {
         }
         if(matchedClasses.containsValue(classname)) {
             logger.error("Conflict: Try to bind class %s to %s which is already bind to ", classname,
-                    cl.getSignature(false), cl.getSignature(true));
+                    cl.getSignature(false), snapshot.getClassSignature(cl.getIndex()));
             return;
         }
         matchedClasses.put(cl.getIndex(), classname);
+        recordClass(cl.getIndex(), classname);
         removeClassFiles(cl);
         if(files != null && !files.isEmpty()) {
             if(files.size() == 1) {
@@ -287,7 +385,10 @@ public class FileMatches {
     }
 
     public void removeMatchedClass(int index) {
-        matchedClasses.remove(index);
+        String classname = matchedClasses.remove(index);
+        if(classname != null) {
+            recordClass(index, classname);
+        }
         matchedClassesFile.remove(index);
     }
 
@@ -332,6 +433,7 @@ public class FileMatches {
             return;
         }
         matchedMethods.put(index, sig.getMname());
+        recordMethod(index);
     }
 
     public void bindMatchedSigMethod(IDexUnit unit, IDexMethod m, MethodSignature ms) {
@@ -344,8 +446,7 @@ public class FileMatches {
             return;
         }
 
-        IDexPrototype proto = unit.getPrototype(m.getPrototypeIndex());
-        String prototypes = proto.generate(true);
+        String prototypes = snapshot.getMethodEffectivePrototype(m.getIndex());
         //if(prototypes.equals(sig.getPrototype())) {
         //    return;
         //}
@@ -379,6 +480,7 @@ public class FileMatches {
     public void removeMatchedMethod(int index) {
         matchedMethods.remove(index);
         matchedSigMethods.remove(index);
+        recordMethod(index);
     }
 
     public Map<Integer, String> getMatchedMethods() {
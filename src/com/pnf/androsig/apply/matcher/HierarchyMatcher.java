@@ -5,10 +5,12 @@
  */
 package com.pnf.androsig.apply.matcher;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.DexSnapshot;
 import com.pnf.androsig.apply.util.DexUtilLocal;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.util.base.Couple;
@@ -22,10 +24,10 @@ public class HierarchyMatcher {
     private String origin;
     private List<String> interfaces;
 
-    public HierarchyMatcher(IDexClass eClass) {
-        origin = eClass.getSupertypes().get(0).getSignature(true);
-        interfaces = eClass.getImplementedInterfaces().stream().map(c -> c.getSignature(true))
-                .collect(Collectors.toList());
+    public HierarchyMatcher(DexSnapshot snapshot, IDexClass eClass) {
+        origin = snapshot.getTypeEffectiveSignature(snapshot.getSuperType(eClass.getIndex()));
+        interfaces = Arrays.stream(snapshot.getInterfaces(eClass.getIndex()))
+                .mapToObj(snapshot::getTypeEffectiveSignature).collect(Collectors.toList());
     }
 
     public String getSuperType() {
@@ -32,5 +32,29 @@ public interface IAndrosigModule {
 
     Map<Integer, String> postProcessRenameMethods(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound);
 
+    /**
+     * Same as {@link #postProcessRenameClasses(IDexUnit, DexHashcodeList, boolean)}, with the matches
+     * modified since the previous call, so that module can only process what changed. Default
+     * implementation performs a full processing.
+     * 
+     * @param delta class and method matches modified since previous call
+     */
+    default Map<Integer, String> postProcessRenameClasses(IDexUnit unit, DexHashcodeList dexHashCodeList,
+            boolean firstRound, MatchDelta delta) {
+        return postProcessRenameClasses(unit, dexHashCodeList, firstRound);
+    }
+
+    /**
+     * Same as {@link #postProcessRenameMethods(IDexUnit, DexHashcodeList, boolean)}, with the matches
+     * modified since the previous call, so that module can only process what changed. Default
+     * implementation performs a full processing.
+     * 
+     * @param delta class and method matches modified since previous call
+     */
+    default Map<Integer, String> postProcessRenameMethods(IDexUnit unit, DexHashcodeList dexHashCodeList,
+            boolean firstRound, MatchDelta delta) {
+        return postProcessRenameMethods(unit, dexHashCodeList, firstRound);
+    }
+
     Set<MethodSignature> filterList(IDexUnit dex, IDexMethod eMethod, List<MethodSignature> results);
 }
@@ -6,6 +6,7 @@
 package com.pnf.androsig.apply.matcher;
 
 import java.util.Map;
+import java.util.Set;
 
 import com.pnf.androsig.apply.model.DexHashcodeList;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
@@ -17,6 +18,15 @@ import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 public interface IDatabaseMatcher {
     void storeMatchedClassesAndMethods(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound);
 
+    /**
+     * Same as {@link #storeMatchedClassesAndMethods(IDexUnit, DexHashcodeList, boolean)}, but only
+     * search candidates for a subset of classes. Context matches are always processed.
+     * 
+     * @param scope indexes of classes to search, null to search all classes
+     */
+    void storeMatchedClassesAndMethods(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound,
+            Set<Integer> scope);
+
     /**
      * Get all matched classes.
      * 
@@ -39,4 +49,16 @@ public interface IDatabaseMatcher {
     Map<Integer, String> postProcessRenameMethods(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound);
 
     ISignatureMetrics getSignatureMetrics();
+
+    /**
+     * @return class and method matches modified since previous call (first call: all current
+     *         matches)
+     */
+    MatchDelta pollMatchDelta();
+
+    /**
+     * Release resources used for matching (search threads owned by the matcher). Results remain
+     * available, but no more matching must be performed.
+     */
+    void close();
 }
@@ -5,8 +5,7 @@
  */
 package com.pnf.androsig.apply.matcher;
 
-import java.util.List;
-
+import com.pnf.androsig.apply.util.IntList;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 
@@ -23,5 +22,5 @@ interface IMatcherValidation {
      * @param matchedMethods
      * @return error message, null if successful
      */
-    String f(IDexUnit unit, IDexClass eClass, List<Integer> matchedMethods);
+    String f(IDexUnit unit, IDexClass eClass, IntList matchedMethods);
 }
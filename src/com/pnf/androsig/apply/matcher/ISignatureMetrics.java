@@ -6,6 +6,7 @@
 package com.pnf.androsig.apply.matcher;
 
 import java.util.Map;
+import java.util.Set;
 
 import com.pnf.androsig.apply.model.LibraryInfo;
 
@@ -18,5 +19,7 @@ public interface ISignatureMetrics {
 
     int getAllUsedSignatureFileCount();
 
+    Set<String> getUsedSignatureFiles();
+
     Map<String, LibraryInfo> getAllLibraryInfos();
 }
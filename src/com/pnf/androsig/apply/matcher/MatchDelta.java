@@ -0,0 +1,101 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class and method matches modified since the previous notification of a module (see
+ * {@link IAndrosigModule#postProcessRenameClasses(com.pnfsoftware.jeb.core.units.code.android.IDexUnit, com.pnf.androsig.apply.model.DexHashcodeList, boolean, MatchDelta)}).
+ * The first delta of an analysis contains all current matches. A match removed and set again
+ * between two deltas may be reported as modified even if its value did not change.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class MatchDelta {
+    /** new or modified class matches (key: class index, value: matched class name) */
+    private final Map<Integer, String> classes = new HashMap<>();
+    private final Set<Integer> removedClasses = new HashSet<>();
+    /** new or modified method matches (key: method index, value: matched method name) */
+    private final Map<Integer, String> methods = new HashMap<>();
+    private final Set<Integer> removedMethods = new HashSet<>();
+
+    /**
+     * Collects the indexes of class and method matches modified since the last delta (see
+     * {@link FileMatches#newDeltaTracker()}), so that a delta costs the number of modifications
+     * instead of the number of matches. Delivered indexes are kept to report removals.
+     */
+    static class Tracker {
+        private Set<Integer> modifiedClasses = new HashSet<>();
+        private Set<Integer> modifiedMethods = new HashSet<>();
+        private final Set<Integer> deliveredClasses = new HashSet<>();
+        private final Set<Integer> deliveredMethods = new HashSet<>();
+
+        /**
+         * @param matchedClasses current class matches, delivered by the first delta
+         * @param matchedMethods current method matches, delivered by the first delta
+         */
+        Tracker(Map<Integer, String> matchedClasses, Map<Integer, String> matchedMethods) {
+            modifiedClasses.addAll(matchedClasses.keySet());
+            modifiedMethods.addAll(matchedMethods.keySet());
+        }
+
+        void classModified(int index) {
+            modifiedClasses.add(index);
+        }
+
+        void methodModified(int index) {
+            modifiedMethods.add(index);
+        }
+
+        MatchDelta next(Map<Integer, String> matchedClasses, Map<Integer, String> matchedMethods) {
+            MatchDelta delta = new MatchDelta();
+            collect(modifiedClasses, deliveredClasses, matchedClasses, delta.classes, delta.removedClasses);
+            collect(modifiedMethods, deliveredMethods, matchedMethods, delta.methods, delta.removedMethods);
+            modifiedClasses = new HashSet<>();
+            modifiedMethods = new HashSet<>();
+            return delta;
+        }
+
+        private static void collect(Set<Integer> modifiedKeys, Set<Integer> delivered, Map<Integer, String> current,
+                Map<Integer, String> modified, Set<Integer> removed) {
+            for(Integer key: modifiedKeys) {
+                String value = current.get(key);
+                if(value != null) {
+                    modified.put(key, value);
+                    delivered.add(key);
+                }
+                else if(delivered.remove(key)) {
+                    removed.add(key);
+                }
+            }
+        }
+    }
+
+    public Map<Integer, String> getClasses() {
+        return classes;
+    }
+
+    public Set<Integer> getRemovedClasses() {
+        return removedClasses;
+    }
+
+    public Map<Integer, String> getMethods() {
+        return methods;
+    }
+
+    public Set<Integer> getRemovedMethods() {
+        return removedMethods;
+    }
+
+    public boolean isEmpty() {
+        return classes.isEmpty() && removedClasses.isEmpty() && methods.isEmpty() && removedMethods.isEmpty();
+    }
+}
@@ -6,7 +6,10 @@
 package com.pnf.androsig.apply.matcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -14,17 +17,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.stream.Collectors;
 
+import com.pnf.androsig.apply.model.CandidateIndex;
+import com.pnf.androsig.apply.model.ClassFingerprintIndex;
 import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.apply.model.DexSnapshot;
 import com.pnf.androsig.apply.model.MethodSignature;
+import com.pnf.androsig.apply.model.PrototypeDescriptor;
+import com.pnf.androsig.apply.model.PrototypeTable;
+import com.pnf.androsig.apply.model.SignatureFilter;
 import com.pnf.androsig.apply.util.DexUtilLocal;
-import com.pnfsoftware.jeb.core.units.code.IInstruction;
+import com.pnf.androsig.apply.util.IntList;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
 import com.pnfsoftware.jeb.util.collect.CollectionUtil;
 import com.pnfsoftware.jeb.util.format.Strings;
 
@@ -305,8 +312,39 @@ public class MatchingSearch {
         }
     }
 
+    /**
+     * Scratch objects of one thread, shared by its searches: each one is only used during one call,
+     * which does not start another search.
+     */
+    private static class SearchBuffers {
+        final SignatureFilter shortyFilter = new SignatureFilter(null, null, false);
+        final SignatureFilter innerClassFilter = new SignatureFilter(null, null, false);
+        final SignatureFilter methodFilter = new SignatureFilter(null, null, false);
+        /** compatible signatures of {@link MatchingSearch#processInnerClass} */
+        final List<MethodSignature> signatures = new ArrayList<>();
+        /** {@link MatchingSearch#getValidFiles}: slot of each candidate file */
+        final Map<String, Integer> fileSlots = new HashMap<>();
+        /** methods per slot, above and below method size bar (only the first fileSlots.size() are in use) */
+        final List<IntList> methods = new ArrayList<>();
+        final List<IntList> smallMethods = new ArrayList<>();
+        final IntList allMethods = new IntList();
+
+        IntList getMethods(List<IntList> methodsPerSlot, int slot) {
+            if(slot == methodsPerSlot.size()) {
+                methodsPerSlot.add(new IntList());
+            }
+            return methodsPerSlot.get(slot);
+        }
+    }
+
+    private static final ThreadLocal<SearchBuffers> BUFFERS = ThreadLocal.withInitial(SearchBuffers::new);
+
     private IDexUnit dex;
     private DexHashcodeList dexHashCodeList;
+    private DexSnapshot snapshot;
+
+    /** reused by {@link #filterCandidates(List, IDexMethod, boolean, String)}: a search is used by one thread */
+    private final List<MethodSignature> candidatesBuffer = new ArrayList<>();
     private DatabaseReference ref;
     private DatabaseMatcherParameters params;
     private FileMatches fileMatches;
@@ -314,13 +352,19 @@ public class MatchingSearch {
     private boolean firstRound;
     private boolean firstPass;
 
-    private Map<String, Map<String, InnerMatch>> fileCandidates = new HashMap<>(); // file -> (classname->count)
+    /** file -> (classname->count), created with first candidate: most searches find none */
+    private Map<String, Map<String, InnerMatch>> fileCandidates = Collections.emptyMap();
+
+    /** {@link FileMatches} state observed by this search (null if not recorded) */
+    private SearchDependencies dependencies;
+    private boolean hasCandidates;
 
     public MatchingSearch(IDexUnit dex, DexHashcodeList dexHashCodeList,
             DatabaseReference ref, DatabaseMatcherParameters params, FileMatches fileMatches,
             List<IAndrosigModule> modules, boolean firstRound, boolean firstPass) {
         this.dex = dex;
         this.dexHashCodeList = dexHashCodeList;
+        this.snapshot = dexHashCodeList.getSnapshot();
         this.ref = ref;
         this.params = params;
         this.fileMatches = fileMatches;
@@ -329,13 +373,75 @@ public class MatchingSearch {
         this.firstPass = firstPass;
     }
 
+    /**
+     * Perform {@link #processClass(IMatcherValidation, IDexClass, List, int)} ahead of time, while
+     * recording the {@link FileMatches} state it depends on. Thread-safe as long as
+     * {@link FileMatches} is not modified.
+     */
+    void prefetchClass(IMatcherValidation validation, IDexClass eClass, List<? extends IDexMethod> methods,
+            int innerLevel) {
+        dependencies = new SearchDependencies();
+        hasCandidates = processClass(validation, eClass, methods, innerLevel);
+    }
+
+    /**
+     * @return true if the prefetched search is still the same as a search performed on current state
+     */
+    boolean isPrefetchValid() {
+        return dependencies != null && !dependencies.isInvalidatedBy(fileMatches.getChanges());
+    }
+
+    /**
+     * @return result of the prefetched {@link #processClass(IMatcherValidation, IDexClass, List, int)}
+     *         (dependencies are still recorded)
+     */
+    boolean endPrefetch() {
+        return hasCandidates;
+    }
+
+    /**
+     * Start recording the {@link FileMatches} state observed by next searches.
+     */
+    void recordDependencies() {
+        if(dependencies == null) {
+            dependencies = new SearchDependencies();
+        }
+    }
+
+    /**
+     * @return {@link FileMatches} state observed since {@link #recordDependencies()} or
+     *         {@link #prefetchClass}, or null if not recorded
+     */
+    SearchDependencies getDependencies() {
+        return dependencies;
+    }
+
+    private boolean containsMatchedClassValue(String className) {
+        if(dependencies != null) {
+            dependencies.addClassValue(className);
+        }
+        return fileMatches.containsMatchedClassValue(className);
+    }
+
+    private String getMatchedMethod(IDexMethod eMethod) {
+        if(dependencies != null) {
+            dependencies.addMethod(eMethod.getIndex());
+        }
+        return fileMatches.getMatchedMethod(eMethod);
+    }
+
+    private List<MethodSignature> getSignatureLines(String file, String hashcode, boolean tight,
+            SignatureFilter filter) {
+        if(dependencies != null) {
+            dependencies.addFile(file);
+        }
+        return fileMatches.getSignatureLines(ref, file, hashcode, tight, filter);
+    }
+
     private List<MethodSignature> getInnerClassSignatureLines(DatabaseReferenceFile file, String mhash, boolean tight,
             String innerClass) {
-        List<MethodSignature> sigLine = ref.getSignatureLines(file, mhash, tight);
-        if(sigLine != null) {
-            sigLine = sigLine.stream().filter(s -> s.getCname().startsWith(innerClass)).collect(Collectors.toList());
-        }
-        return sigLine;
+        SignatureFilter filter = BUFFERS.get().innerClassFilter.reset(null, innerClass, false);
+        return ref.getSignatureLines(file, mhash, tight, filter);
     }
 
     public void processInnerClass(DatabaseReferenceFile file, IDexClass eClass, List<? extends IDexMethod> methods,
@@ -345,10 +451,10 @@ public class MatchingSearch {
                 continue;
             }
 
-            List<? extends IInstruction> instructions = eMethod.getInstructions();
-            boolean instructionBarReached = instructions == null ? false: instructions.size() > params.methodSizeBar;
+            boolean instructionBarReached = snapshot.getInstructionCount(eMethod.getIndex()) > params.methodSizeBar;
             if(!instructionBarReached) {
-                instructionBarReached = !eClass.getSupertypes().get(0).getSignature(true).equals("Ljava/lang/Object;");
+                instructionBarReached = !"Ljava/lang/Object;"
+                        .equals(snapshot.getTypeSignature(snapshot.getSuperType(eClass.getIndex())));
             }
             List<MethodSignature> sigLine = null;
             if(instructionBarReached) {
@@ -367,76 +473,117 @@ public class MatchingSearch {
                 }
                 if(sigLine == null || sigLine.isEmpty()) {
                     // look for candidates based on signature match
-                    IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
-                    String prototypes = proto.generate(true);
-                    String shorty = null;//proto.getShorty();
-
-                    sigLine = compatibleSignatures.stream()
-                            .filter(s -> isCompatibleSignature(s, SignatureCheck.PROTOTYPE_STRICT, shorty, prototypes,
-                                    eMethod))
-                            .collect(Collectors.toList());
-                    if(!isComplexSignature(prototypes)) {
-                        String mname = eMethod.getName(true);
-                        sigLine = sigLine.stream()
-                                .filter(s -> s.getMname().equals(mname)
-                                        && !DexUtilLocal.isObjectInheritedMethod(s.getMname(), s.getPrototype()))
-                                .collect(Collectors.toList());
+                    String prototypes = snapshot.getMethodEffectivePrototype(eMethod.getIndex());
+                    // simple signatures: same name (except generic names)
+                    String mname = isComplexSignature(prototypes) ? null
+                            : snapshot.getMethodName(eMethod.getIndex());
+                    sigLine = BUFFERS.get().signatures;
+                    sigLine.clear();
+                    for(MethodSignature sig: compatibleSignatures) {
+                        if(!isCompatibleSignature(sig, SignatureCheck.PROTOTYPE_STRICT, null, prototypes, eMethod)) {
+                            continue;
+                        }
+                        if(mname != null && (!sig.getMname().equals(mname)
+                                || DexUtilLocal.isObjectInheritedMethod(sig.getMname(), sig.getPrototype()))) {
+                            continue;
+                        }
+                        sigLine.add(sig);
                     }
                 }
             }
             if(sigLine == null || sigLine.isEmpty()) {
                 continue;
             }
-            String mname = fileMatches.getMatchedMethod(eMethod);
-            if(mname != null) {
-                sigLine = sigLine.stream().filter(s -> mname.equals(s.getMname())).collect(Collectors.toList());
-                if(sigLine.isEmpty()) {
-                    continue;
-                }
+            // filter methodName hint and incompatible prototypes
+            List<MethodSignature> candidates = filterCandidates(sigLine, eMethod, false,
+                    fileMatches.getMatchedMethod(eMethod));
+            if(candidates.isEmpty()) {
+                continue;
             }
 
-            Map<String, InnerMatch> classes = fileCandidates.get(file.file);
-            if(classes == null) {
-                classes = new HashMap<>();
-                fileCandidates.put(file.file, classes);
-            }
-            saveTemporaryCandidate(eMethod, sigLine, firstRound, classes, file.file, innerLevel);
+            saveCompatibleCandidates(eMethod, candidates, getCandidateClasses(file.file), file.file, innerLevel,
+                    null);
         }
     }
 
     public boolean isComplexSignature(String prototypes) {
-        String params1 = DexUtilLocal.extractParamsFromSignature(prototypes);
-        List<String> paramList = DexUtilLocal.parseSignatureParameters(params1);
-        // do not consider one argument methods
-        if(paramList.isEmpty() || (paramList.size() == 1 && paramList.get(0).length() == 1)) {
-            return false;
-        }
-        paramList.add(DexUtilLocal.extractReturnValueFromSignature(prototypes));
-        int genericApiParams = 0;
-        for(String param: paramList) {
-            if(param.length() == 1) {
-                continue;
-            }
-            if(DexUtilLocal.isAndroidPlatformClass(param) || DexUtilLocal.isJavaPlatformClass(param)) {
-                genericApiParams++;
-            }
-            return true;
+        PrototypeDescriptor desc = snapshot.getPrototypeTable().get(prototypes);
+        if(desc == null) {
+            throw new IllegalArgumentException("Illegal signature " + prototypes);
         }
-        return genericApiParams >= params.complexSignatureParams;
+        return desc.isComplex(params.complexSignatureParams);
     }
 
     public boolean processClass(IMatcherValidation validation, IDexClass eClass, List<? extends IDexMethod> methods,
             int innerLevel) {
+        if(params.fingerprintMatching && processFingerprintCandidates(validation, eClass, methods, innerLevel)) {
+            return true;
+        }
         List<String> validFiles = getValidFiles(validation, eClass, methods);
         return processClass(validation, eClass, methods, innerLevel, validFiles);
     }
 
+    /**
+     * Restrict search to the classes of {@link ClassFingerprintIndex} similar to eClass.
+     *
+     * @return true if candidates were found this way
+     */
+    private boolean processFingerprintCandidates(IMatcherValidation validation, IDexClass eClass,
+            List<? extends IDexMethod> methods, int innerLevel) {
+        Set<String> hashcodes = new HashSet<>();
+        for(IDexMethod eMethod: methods) {
+            if(!eMethod.isInternal()) {
+                continue;
+            }
+            int instructionCount = snapshot.getInstructionCount(eMethod.getIndex());
+            if(instructionCount == DexSnapshot.NO_CODE || instructionCount <= params.methodSizeBar) {
+                continue;
+            }
+            String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+            if(mhash_tight != null) {
+                hashcodes.add(mhash_tight);
+            }
+        }
+        ClassFingerprintIndex fingerprints = ref.getClassFingerprintIndex();
+        CandidateIndex candidateIndex = fingerprints.getCandidateIndex();
+        int maxCandidates = params.fingerprintMaxCandidates == 0 ? Integer.MAX_VALUE
+                : params.fingerprintMaxCandidates;
+        long[] similar = fingerprints.findSimilarClasses(hashcodes, params.fingerprintMinSimilarity, maxCandidates,
+                key -> {
+                    String className = candidateIndex.getClassName(key);
+                    return DexUtilLocal.getInnerClassLevel(className) == innerLevel
+                            && !containsMatchedClassValue(className);
+                });
+        if(similar.length == 0) {
+            return false;
+        }
+        List<String> validFiles = new ArrayList<>();
+        for(long key: similar) {
+            String file = candidateIndex.getFile(CandidateIndex.getFileId(key));
+            if(!validFiles.contains(file)) {
+                validFiles.add(file);
+            }
+        }
+        return processClass(validation, eClass, methods, innerLevel, validFiles, similar) && !isEmpty();
+    }
+
     public boolean processClass(IMatcherValidation validation, IDexClass eClass, List<? extends IDexMethod> methods,
             int innerLevel, List<String> validFiles) {
+        return processClass(validation, eClass, methods, innerLevel, validFiles, null);
+    }
+
+    /**
+     * @param selected sorted keys of the only classes to consider, or null to select them by scoring
+     */
+    private boolean processClass(IMatcherValidation validation, IDexClass eClass,
+            List<? extends IDexMethod> methods, int innerLevel, List<String> validFiles, long[] selected) {
         // quick win: to avoid loading all files, consider first if valid in best case
         // meaning: if all methods really match (without looking at prototypes)
         if(!firstRound && !firstPass && validFiles.size() > 1) {
             // restrict list of available files
+            if(dependencies != null) {
+                dependencies.setUsedFiles();
+            }
             validFiles = new ArrayList<>(
                     CollectionUtil.intersect(validFiles, new ArrayList<>(fileMatches.getSignatureFileUsed())));
         }
@@ -444,6 +591,26 @@ public class MatchingSearch {
             return false;
         }
 
+        // score classes from index postings: only load signature lines of the best candidates
+        if(selected == null) {
+            selected = selectCandidates(methods, validFiles, innerLevel);
+        }
+        Map<String, Set<String>> selectedClasses = null;
+        if(selected != null) {
+            selectedClasses = new HashMap<>();
+            CandidateIndex candidateIndex = ref.getCandidateIndex();
+            for(long key: selected) {
+                String file = candidateIndex.getFile(CandidateIndex.getFileId(key));
+                Set<String> classes = selectedClasses.get(file);
+                if(classes == null) {
+                    classes = new HashSet<>();
+                    selectedClasses.put(file, classes);
+                }
+                classes.add(candidateIndex.getClassName(key));
+            }
+        }
+
+        SearchBuffers buffers = BUFFERS.get();
         List<IDexMethod> easyMatches = new ArrayList<>();
         for(IDexMethod eMethod: methods) {
             if(!eMethod.isInternal()) {
@@ -455,50 +622,53 @@ public class MatchingSearch {
             //    continue;
             //}
 
-            List<? extends IInstruction> instructions = eMethod.getInstructions();
-            if(instructions == null) {
+            int instructionCount = snapshot.getInstructionCount(eMethod.getIndex());
+            if(instructionCount == DexSnapshot.NO_CODE) {
                 continue;
             }
-            if(instructions.size() <= params.methodSizeBar) {
+            if(instructionCount <= params.methodSizeBar) {
                 continue;
             }
 
             String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
-            if(mhash_tight == null) {
+            if(mhash_tight == null || isStopListed(mhash_tight, true)) {
                 continue;
             }
             List<String> candidateFiles = ref.getFilesContainingTightHashcode(mhash_tight);
             if(candidateFiles != null) {
                 candidateFiles = new ArrayList<>(CollectionUtil.intersect(validFiles, candidateFiles));
-                if(firstRound && candidateFiles.size() > 10) {
+                if(firstRound && candidateFiles.size() > params.firstRoundFilesBar) {
                     // do not process here: will be considered as small method
                     easyMatches.add(eMethod);
                     continue;
                 }
 
+                boolean hintLoaded = false;
+                String mname = null;
+                // compatible prototypes have same shorty: no need to load other lines
+                SignatureFilter shortyFilter = buffers.shortyFilter
+                        .reset(snapshot.getMethodShorty(eMethod.getIndex()), null, false);
                 for(String file: candidateFiles) {
-                    List<MethodSignature> sigLines = fileMatches.getSignatureLines(ref, file, mhash_tight, true);
+                    if(selected != null && !isSelected(file, mhash_tight, true, selected)) {
+                        continue;
+                    }
+                    List<MethodSignature> sigLines = getSignatureLines(file, mhash_tight, true, shortyFilter);
                     if(sigLines == null || sigLines.isEmpty()) {
                         continue;
                     }
-                    // remove already matched classes
-                    sigLines = sigLines.stream().filter(s -> !fileMatches.containsMatchedClassValue(s.getCname()))
-                            .collect(Collectors.toList());
-
-                    // filter methodName hint
-                    String mname = fileMatches.getMatchedMethod(eMethod);
-                    if(mname != null) {
-                        sigLines = sigLines.stream().filter(s -> mname.equals(s.getMname())).collect(Collectors.toList());
-                        if(sigLines.isEmpty()) {
-                            continue;
-                        }
+                    if(!hintLoaded) {
+                        // methodName hint
+                        mname = getMatchedMethod(eMethod);
+                        hintLoaded = true;
                     }
-                    Map<String, InnerMatch> classes = fileCandidates.get(file);
-                    if(classes == null) {
-                        classes = new HashMap<>();
-                        fileCandidates.put(file, classes);
+                    // remove already matched classes, filter methodName hint and incompatible prototypes
+                    List<MethodSignature> candidates = filterCandidates(sigLines, eMethod, true, mname);
+                    if(candidates.isEmpty()) {
+                        continue;
                     }
-                    saveTemporaryCandidate(eMethod, sigLines, firstRound, classes, file, innerLevel);
+                    Map<String, InnerMatch> classes = getCandidateClasses(file);
+                    saveCompatibleCandidates(eMethod, candidates, classes, file, innerLevel,
+                            selectedClasses == null ? null: selectedClasses.get(file));
                     if(classes.isEmpty()) {
                         fileCandidates.remove(file);
                     }
@@ -507,33 +677,32 @@ public class MatchingSearch {
             else if(!firstRound) {
                 // may be done even if tight is found
                 String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
-                if(mhash_loose == null) {
+                if(mhash_loose == null || isStopListed(mhash_loose, false)) {
                     continue;
                 }
                 candidateFiles = ref.getFilesContainingLooseHashcode(mhash_loose);
                 if(candidateFiles != null) {
+                    SignatureFilter shortyFilter = buffers.shortyFilter
+                            .reset(snapshot.getMethodShorty(eMethod.getIndex()), null, false);
                     for(String file: candidateFiles) {
                         if(!validFiles.contains(file)) {
                             continue;
                         }
-                        List<MethodSignature> sigLines = fileMatches.getSignatureLines(ref, file, mhash_loose, false);
-                        if(sigLines == null || sigLines.isEmpty()) {
+                        if(selected != null && !isSelected(file, mhash_loose, false, selected)) {
                             continue;
                         }
-                        String mname = fileMatches.getMatchedMethod(eMethod);
-                        if(mname != null) {
-                            sigLines = sigLines.stream().filter(s -> mname.equals(s.getMname()))
-                                    .collect(Collectors.toList());
-                            if(sigLines.isEmpty()) {
-                                continue;
-                            }
+                        List<MethodSignature> sigLines = getSignatureLines(file, mhash_loose, false, shortyFilter);
+                        if(sigLines == null || sigLines.isEmpty()) {
+                            continue;
                         }
-                        Map<String, InnerMatch> classes = fileCandidates.get(file);
-                        if(classes == null) {
-                            classes = new HashMap<>();
-                            fileCandidates.put(file, classes);
+                        List<MethodSignature> candidates = filterCandidates(sigLines, eMethod, false,
+                                getMatchedMethod(eMethod));
+                        if(candidates.isEmpty()) {
+                            continue;
                         }
-                        saveTemporaryCandidate(eMethod, sigLines, firstRound, classes, file, innerLevel);
+                        Map<String, InnerMatch> classes = getCandidateClasses(file);
+                        saveCompatibleCandidates(eMethod, candidates, classes, file, innerLevel,
+                                selectedClasses == null ? null: selectedClasses.get(file));
                         if(classes.isEmpty()) {
                             fileCandidates.remove(file);
                         }
@@ -544,28 +713,140 @@ public class MatchingSearch {
         return true;
     }
 
+    /**
+     * Score classes by methods sharing a hashcode (weighted by hashcode rarity), using the postings of
+     * {@link CandidateIndex} (same methods and hashcodes than
+     * {@link #processClass(IMatcherValidation, IDexClass, List, int, List)}), and keep the
+     * {@link DatabaseMatcherParameters#candidateTopK} best ones.
+     *
+     * @return sorted keys of selected classes, or null if there is no need to restrict candidates
+     */
+    private long[] selectCandidates(List<? extends IDexMethod> methods, List<String> validFiles, int innerLevel) {
+        if(params.candidateTopK <= 0) {
+            return null;
+        }
+        CandidateIndex candidateIndex = ref.getCandidateIndex();
+        BitSet valid = new BitSet(candidateIndex.getFileCount());
+        for(String file: validFiles) {
+            int fileId = candidateIndex.getFileId(file);
+            if(fileId >= 0) {
+                valid.set(fileId);
+            }
+        }
+        CandidateScorer scorer = new CandidateScorer();
+        for(IDexMethod eMethod: methods) {
+            if(!eMethod.isInternal()) {
+                continue;
+            }
+            int instructionCount = snapshot.getInstructionCount(eMethod.getIndex());
+            if(instructionCount == DexSnapshot.NO_CODE || instructionCount <= params.methodSizeBar) {
+                continue;
+            }
+            String mhash = dexHashCodeList.getTightHashcode(eMethod);
+            if(mhash == null || isStopListed(mhash, true)) {
+                continue;
+            }
+            boolean tight = true;
+            long[] postings = candidateIndex.getPostings(mhash, true);
+            if(postings == null && !firstRound) {
+                mhash = dexHashCodeList.getLooseHashcode(eMethod);
+                if(mhash == null || isStopListed(mhash, false)) {
+                    continue;
+                }
+                tight = false;
+                postings = candidateIndex.getPostings(mhash, false);
+            }
+            else if(postings != null && firstRound && countFiles(postings, valid) > params.firstRoundFilesBar) {
+                // considered as small method
+                continue;
+            }
+            if(postings == null) {
+                continue;
+            }
+            int weight = CandidateScorer.getWeight(candidateIndex.getDocumentFrequency(mhash, tight),
+                    candidateIndex.getIndexedFileCount());
+            for(long key: postings) {
+                if(valid.get(CandidateIndex.getFileId(key))) {
+                    scorer.add(key, weight);
+                }
+            }
+        }
+        if(scorer.size() <= params.candidateTopK) {
+            return null;
+        }
+        return scorer.selectTopK(params.candidateTopK, key -> {
+            String className = candidateIndex.getClassName(key);
+            return DexUtilLocal.getInnerClassLevel(className) == innerLevel && !containsMatchedClassValue(className);
+        });
+    }
+
+    /**
+     * @return true if hashcode is defined by more than {@link DatabaseMatcherParameters#stopListFrequency}
+     *         files: it is not discriminant enough to look for candidates
+     */
+    private boolean isStopListed(String hashcode, boolean tight) {
+        return params.stopListFrequency > 0
+                && ref.getCandidateIndex().getDocumentFrequency(hashcode, tight) > params.stopListFrequency;
+    }
+
+    private static int countFiles(long[] postings, BitSet valid) {
+        int count = 0;
+        int lastFileId = -1;
+        for(long key: postings) {
+            int fileId = CandidateIndex.getFileId(key);
+            if(fileId != lastFileId && valid.get(fileId)) {
+                count++;
+            }
+            lastFileId = fileId;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if one selected class of file defines a method with this hashcode
+     */
+    private boolean isSelected(String file, String hashcode, boolean tight, long[] selected) {
+        CandidateIndex candidateIndex = ref.getCandidateIndex();
+        int fileId = candidateIndex.getFileId(file);
+        long[] postings = candidateIndex.getPostings(hashcode, tight);
+        if(fileId < 0 || postings == null) {
+            return false;
+        }
+        int i = Arrays.binarySearch(postings, CandidateIndex.key(fileId, 0));
+        if(i < 0) {
+            i = -i - 1;
+        }
+        for(; i < postings.length && CandidateIndex.getFileId(postings[i]) == fileId; i++) {
+            if(Arrays.binarySearch(selected, postings[i]) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private List<String> getValidFiles(IMatcherValidation validation, IDexClass eClass,
             List<? extends IDexMethod> methods) {
-        Map<String, List<Integer>> methodsPerFile = new HashMap<>();
-        Map<String, List<Integer>> methodsPerFileSmalls = new HashMap<>();
+        SearchBuffers buffers = BUFFERS.get();
+        Map<String, Integer> fileSlots = buffers.fileSlots;
+        fileSlots.clear();
         for(IDexMethod eMethod: methods) {
             if(!eMethod.isInternal()) {
                 continue;
             }
 
-            List<? extends IInstruction> instructions = eMethod.getInstructions();
-            if(instructions == null) {
+            int instructionCount = snapshot.getInstructionCount(eMethod.getIndex());
+            if(instructionCount == DexSnapshot.NO_CODE) {
                 continue;
             }
 
             String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
-            if(mhash_tight == null) {
+            if(mhash_tight == null || isStopListed(mhash_tight, true)) {
                 continue;
             }
             List<String> candidateFiles = ref.getFilesContainingTightHashcode(mhash_tight);
             if(candidateFiles == null && !firstRound) {
                 String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
-                if(mhash_loose == null) {
+                if(mhash_loose == null || isStopListed(mhash_loose, false)) {
                     continue;
                 }
                 candidateFiles = ref.getFilesContainingLooseHashcode(mhash_loose);
@@ -573,54 +854,87 @@ public class MatchingSearch {
             if(candidateFiles == null || candidateFiles.isEmpty()) {
                 continue;
             }
-            Map<String, List<Integer>> indexMap = methodsPerFile;
-            if(/*(!firstRound && !firstPass) &&*/ instructions.size() <= params.methodSizeBar) {
-                indexMap = methodsPerFileSmalls;
-            }
+            boolean small = /*(!firstRound && !firstPass) &&*/ instructionCount <= params.methodSizeBar;
             for(String file: candidateFiles) {
-                List<Integer> methodIds = indexMap.get(file);
-                if(methodIds == null) {
-                    methodIds = new ArrayList<>();
-                    indexMap.put(file, methodIds);
+                Integer slot = fileSlots.get(file);
+                if(slot == null) {
+                    slot = fileSlots.size();
+                    fileSlots.put(file, slot);
+                    buffers.getMethods(buffers.methods, slot).clear();
+                    buffers.getMethods(buffers.smallMethods, slot).clear();
                 }
-                methodIds.add(eMethod.getIndex());
+                buffers.getMethods(small ? buffers.smallMethods: buffers.methods, slot).add(eMethod.getIndex());
             }
         }
         List<String> validFiles = new ArrayList<>();
         // Very important: do not consider Classes with only small method matches
-        for(Entry<String, List<Integer>> entry: methodsPerFile.entrySet()) {
-            List<Integer> allMethodsMatch = new ArrayList<>();
-            allMethodsMatch.addAll(entry.getValue());
-            List<Integer> smalls = methodsPerFileSmalls.get(entry.getKey());
-            if(smalls != null) {
-                allMethodsMatch.addAll(smalls);
-            }
-            if(!firstRound || validation.f(dex, eClass, allMethodsMatch) == null) {
+        for(Entry<String, Integer> entry: fileSlots.entrySet()) {
+            IntList methodIds = buffers.methods.get(entry.getValue());
+            if(methodIds.isEmpty()) {
+                continue;
+            }
+            if(!firstRound) {
+                validFiles.add(entry.getKey());
+                continue;
+            }
+            IntList allMethodsMatch = buffers.allMethods;
+            allMethodsMatch.clear();
+            allMethodsMatch.addAll(methodIds);
+            allMethodsMatch.addAll(buffers.smallMethods.get(entry.getValue()));
+            if(validation.f(dex, eClass, allMethodsMatch) == null) {
                 // would ignore small methods
                 validFiles.add(entry.getKey());
             }
         }
+        fileSlots.clear();
         return validFiles;
     }
 
-    private void saveTemporaryCandidate(IDexMethod eMethod, List<MethodSignature> elts,
-            boolean firstRound, Map<String, InnerMatch> classes, String file, int innerLevel) {
-        IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
-        String shorty = proto.getShorty();
-        String prototype = proto.generate(true);
+    /**
+     * Filter signature lines in one pass. The returned list is a buffer reused by next call: it must
+     * not be kept.
+     * 
+     * @param excludeMatchedClasses remove signatures of classes already matched
+     * @param mname method name hint (null if none)
+     * @return signatures with a compatible prototype
+     */
+    private List<MethodSignature> filterCandidates(List<MethodSignature> sigLines, IDexMethod eMethod,
+            boolean excludeMatchedClasses, String mname) {
+        String shorty = snapshot.getMethodShorty(eMethod.getIndex());
+        String prototype = snapshot.getMethodEffectivePrototype(eMethod.getIndex());
+        List<MethodSignature> candidates = candidatesBuffer;
+        candidates.clear();
+        for(MethodSignature sig: sigLines) {
+            if(excludeMatchedClasses && containsMatchedClassValue(sig.getCname())) {
+                continue;
+            }
+            if(mname != null && !mname.equals(sig.getMname())) {
+                continue;
+            }
+            if(isCompatibleSignature(sig, SignatureCheck.PROTOTYPE_COMPATIBLE, shorty, prototype, eMethod)) {
+                candidates.add(sig);
+            }
+        }
+        return candidates;
+    }
 
+    /**
+     * @param selectedClasses if not null, only create candidates for these classes
+     */
+    private void saveCompatibleCandidates(IDexMethod eMethod, List<MethodSignature> realCandidates,
+            Map<String, InnerMatch> classes, String file, int innerLevel, Set<String> selectedClasses) {
         // One class has several same sigs
-        List<MethodSignature> realCandidates = elts.stream()
-                .filter(strArray -> isCompatibleSignature(strArray, SignatureCheck.PROTOTYPE_COMPATIBLE, shorty,
-                        prototype, eMethod))
-                .collect(Collectors.toList());
         if(!realCandidates.isEmpty()) {
-            List<MethodSignature> strArrays = mergeSignaturesPerClass(realCandidates, eMethod);
+            List<MethodSignature> strArrays = mergeSignaturesPerClass(realCandidates,
+                    snapshot.getMethodName(eMethod.getIndex()));
             for(MethodSignature strArray: strArrays) {
                 String className = strArray.getCname();
                 if(DexUtilLocal.getInnerClassLevel(className) != innerLevel) {
                     continue;
                 }
+                if(selectedClasses != null && !selectedClasses.contains(className)) {
+                    continue;
+                }
                 InnerMatch inner = classes.get(className);
                 if(inner == null) {
                     inner = new InnerMatch(className, file);
@@ -639,33 +953,70 @@ public class MatchingSearch {
     public List<MethodSignature> getSignaturesForClassname(DatabaseReferenceFile file, String className,
             boolean exactName, IDexMethod eMethod) {
         List<MethodSignature> sigs = ref.getSignaturesForClassname(file, className, true);
-        List<? extends IInstruction> instructions = eMethod.getInstructions();
+        return filterEmptyOp(sigs, eMethod);
+    }
+
+    /**
+     * Same as {@link #getSignaturesForClassname(DatabaseReferenceFile, String, boolean, IDexMethod)},
+     * restricted to one method name (all prototypes), without loading the whole class.
+     */
+    public List<MethodSignature> getSignaturesForMethod(DatabaseReferenceFile file, String className,
+            String methodName, IDexMethod eMethod) {
+        List<MethodSignature> sigs = ref.getSignaturesForMethod(file, className, methodName, null);
+        return filterEmptyOp(sigs, eMethod);
+    }
+
+    private List<MethodSignature> filterEmptyOp(List<MethodSignature> sigs, IDexMethod eMethod) {
+        boolean noCode = snapshot.getInstructionCount(eMethod.getIndex()) == DexSnapshot.NO_CODE;
         // filter abstracts or not
-        return sigs = sigs.stream().filter(s -> instructions == null ? s.isEmptyOp(): !s.isEmptyOp())
-                .collect(Collectors.toList());
+        List<MethodSignature> filtered = new ArrayList<>(sigs.size());
+        for(MethodSignature sig: sigs) {
+            if(sig.isEmptyOp() == noCode) {
+                filtered.add(sig);
+            }
+        }
+        return filtered;
     }
 
     public MethodSignature findMethodMatch(DatabaseReferenceFile file, String className, IDexMethod eMethod,
             String methodName) {
-        IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
-        String prototypes = proto.generate(true);
-        List<MethodSignature> sigs = getSignaturesForClassname(file, className, true, eMethod);
-        sigs = sigs.stream().filter(s -> s.getMname().equals(methodName)).collect(Collectors.toList());
+        String prototypes = snapshot.getMethodEffectivePrototype(eMethod.getIndex());
+        List<MethodSignature> sigs = getSignaturesForMethod(file, className, methodName, eMethod);
         MethodSignature ms = findMethodName(sigs, SignatureCheck.PROTOTYPE_STRICT, prototypes, null, className,
-                new ArrayList<>(), eMethod);
+                Collections.emptyList(), eMethod);
         if(ms != null) {
             return ms;
         }
-        String shorty = proto.getShorty();
+        String shorty = snapshot.getMethodShorty(eMethod.getIndex());
         return findMethodName(sigs, SignatureCheck.PROTOTYPE_COMPATIBLE, prototypes, shorty, className,
-                new ArrayList<>(), eMethod);
+                Collections.emptyList(), eMethod);
+    }
+
+    /**
+     * Check index postings before {@link #findMethodMatch(DatabaseReferenceFile, String, Collection, IDexMethod, boolean)}.
+     * 
+     * @return false if class can not define a method with the tight or loose hashcode of eMethod
+     */
+    public boolean mayDefineMethod(DatabaseReferenceFile file, String classPath, IDexMethod eMethod) {
+        CandidateIndex candidateIndex = ref.getCandidateIndex();
+        if(candidateIndex.getFileId(file.file) < 0) {
+            return true;
+        }
+        String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+        if(mhash_tight == null) {
+            return false;
+        }
+        if(candidateIndex.hasPosting(mhash_tight, true, file.file, classPath)) {
+            return true;
+        }
+        String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
+        return mhash_loose != null && candidateIndex.hasPosting(mhash_loose, false, file.file, classPath);
     }
 
     public MethodSignature findMethodMatch(DatabaseReferenceFile file, String classPath,
             Collection<MethodSignature> alreadyProcessedMethods, IDexMethod eMethod, boolean allowEmptyMName) {
-        IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
-        String prototypes = proto.generate(true);
-        String shorty = proto.getShorty();
+        String prototypes = snapshot.getMethodEffectivePrototype(eMethod.getIndex());
+        String shorty = snapshot.getMethodShorty(eMethod.getIndex());
         String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
         if(mhash_tight == null) {
             return null;
@@ -678,13 +1029,17 @@ public class MatchingSearch {
             String shorty, String classPath, Collection<MethodSignature> alreadyProcessedMethods, IDexMethod eMethod,
             boolean allowEmptyMName) {
         MethodSignature strArray = null;
-        List<MethodSignature> sigs = ref.getSignatureLines(file, mhash_tight, true);
+        // only lines of classPath with a compatible prototype (same shorty) can be selected
+        SignatureFilter filter = BUFFERS.get().methodFilter.reset(shorty, classPath, true);
+        List<MethodSignature> sigs = ref.getSignatureLines(file, mhash_tight, true, filter);
         if(sigs != null) {
             strArray = findMethodName(sigs, prototypes, shorty, classPath, alreadyProcessedMethods, eMethod);
         }
         if(strArray == null || (!allowEmptyMName && strArray.getMname().isEmpty())) {
             String mhash_loose = dexHashCodeList.getLooseHashcode(eMethod);
-            sigs = ref.getSignatureLines(file, mhash_loose, false);
+            // findMethodName may have used the filter of this thread
+            filter.reset(shorty, classPath, true);
+            sigs = ref.getSignatureLines(file, mhash_loose, false, filter);
             if(sigs != null) {
                 strArray = findMethodName(sigs, prototypes, shorty, classPath, alreadyProcessedMethods, eMethod);
             }
@@ -694,9 +1049,8 @@ public class MatchingSearch {
 
     public MethodSignature findMethodName(List<MethodSignature> sigs, String classPath,
             Collection<MethodSignature> alreadyProcessedMethods, IDexMethod eMethod) {
-        IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
-        String prototypes = proto.generate(true);
-        String shorty = proto.getShorty();
+        String prototypes = snapshot.getMethodEffectivePrototype(eMethod.getIndex());
+        String shorty = snapshot.getMethodShorty(eMethod.getIndex());
         return findMethodName(sigs, prototypes, shorty, classPath, alreadyProcessedMethods, eMethod);
     }
 
@@ -717,7 +1071,8 @@ public class MatchingSearch {
     private List<MethodSignature> findMethodNames(List<MethodSignature> sigs, SignatureCheck check,
             String prototypes, String shorty, String classPath, Collection<MethodSignature> alreadyProcessedMethods,
             IDexMethod eMethod) {
-        List<MethodSignature> results = new ArrayList<>();
+        // most lookups find nothing: only allocate with first result
+        List<MethodSignature> results = null;
         for(MethodSignature strArray: sigs) {
             if(!strArray.getCname().equals(classPath)) {
                 continue;
@@ -729,9 +1084,12 @@ public class MatchingSearch {
                     check != SignatureCheck.PROTOTYPE_STRICT)) {
                 continue;
             }
+            if(results == null) {
+                results = new ArrayList<>();
+            }
             results.add(strArray);
         }
-        return results;
+        return results == null ? Collections.emptyList(): results;
     }
 
     private static boolean isAlreadyProcessed(MethodSignature strArray,
@@ -762,7 +1120,7 @@ public class MatchingSearch {
             if(results.size() == 1) {
                 return results.get(0);
             }
-            return MethodSignature.mergeSignatures(results, true, eMethod);
+            return MethodSignature.mergeSignatures(results, true, snapshot.getMethodName(eMethod.getIndex()));
         }
         return null;
     }
@@ -778,7 +1136,7 @@ public class MatchingSearch {
         }
 
         // init/clinit can not be changed, but is a good indicator for matching
-        String methodName = eMethod.getName(true);
+        String methodName = snapshot.getMethodName(eMethod.getIndex());
         if(check == SignatureCheck.PROTOTYPE_COMPATIBLE || check == SignatureCheck.PROTOTYPE_STRICT) {
             return DexUtilLocal.isMethodCompatibleWithSignatures(methodName, prototypes, strArray.getMname(),
                     strArray.getPrototype());
@@ -808,26 +1166,25 @@ public class MatchingSearch {
     }
 
     private boolean isCompatiblePrototypeSignature(MethodSignature strArray, String prototypes) {
-        String returnVal1 = prototypes.substring(prototypes.indexOf(")") + 1);
-        String originalReturnVal = strArray.getPrototype().substring(strArray.getPrototype().indexOf(")") + 1);
-        if(!DexUtilLocal.isCompatibleClasses(returnVal1, originalReturnVal)) {
+        PrototypeTable table = snapshot.getPrototypeTable();
+        PrototypeDescriptor proto = table.get(prototypes);
+        PrototypeDescriptor original = table.get(strArray.getPrototype());
+        if(proto == null || original == null || proto.getTypeCount() != original.getTypeCount()) {
+            return false;
+        }
+        int returnIndex = proto.getParameterCount();
+        if(!proto.isCompatibleType(returnIndex, original, returnIndex)) {
             return false;
         }
-        String params1 = DexUtilLocal.extractParamsFromSignature(prototypes);
-        String originalParams = DexUtilLocal.extractParamsFromSignature(strArray.getPrototype());
-        List<String> paramList = DexUtilLocal.parseSignatureParameters(params1);
-        List<String> originalParamList = DexUtilLocal.parseSignatureParameters(originalParams);
-        for(int i = 0; i < paramList.size(); i++) {
-            String paramI = paramList.get(i);
-            String originalParamI = originalParamList.get(i);
-            if(paramI.equals(originalParamI)) {
+        for(int i = 0; i < returnIndex; i++) {
+            if(proto.getTypeId(i) == original.getTypeId(i)) {
                 continue;
             }
-            if(fileMatches.containsMatchedClassValue(paramI)) {
+            if(containsMatchedClassValue(proto.getTypeName(i))) {
                 // not equals, already renamed => either wrong renaming (should not happen often) or not valid candidate
                 return false;
             }
-            if(!DexUtilLocal.isCompatibleClasses(paramI, originalParamI)) {
+            if(!proto.isCompatibleType(i, original, i)) {
                 return false;
             }
         }
@@ -847,7 +1204,7 @@ public class MatchingSearch {
         }
     }
 
-    static List<MethodSignature> mergeSignaturesPerClass(List<MethodSignature> results, IDexMethod eMethod) {
+    static List<MethodSignature> mergeSignaturesPerClass(List<MethodSignature> results, String mname) {
         if(results.size() < 2) {
             return results;
         }
@@ -863,11 +1220,23 @@ public class MatchingSearch {
         }
         List<MethodSignature> merged = new ArrayList<>();
         for(List<MethodSignature> values: sigs.values()) {
-            merged.add(MethodSignature.mergeSignatures(values, true, eMethod));
+            merged.add(MethodSignature.mergeSignatures(values, true, mname));
         }
         return merged;
     }
 
+    private Map<String, InnerMatch> getCandidateClasses(String file) {
+        if(fileCandidates.isEmpty()) {
+            fileCandidates = new HashMap<>();
+        }
+        Map<String, InnerMatch> classes = fileCandidates.get(file);
+        if(classes == null) {
+            classes = new HashMap<>();
+            fileCandidates.put(file, classes);
+        }
+        return classes;
+    }
+
     public boolean isEmpty() {
         return fileCandidates.isEmpty();
     }
@@ -901,9 +1270,7 @@ public class MatchingSearch {
             }
             for(String f: files) {
                 InnerMatch m = new InnerMatch(hintName, f);
-                Map<String, InnerMatch> value = new HashMap<>();
-                value.put(hintName, m);
-                fileCandidates.put(f, value);
+                getCandidateClasses(f).put(hintName, m);
             }
         }
     }
@@ -0,0 +1,129 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Negative cache of the candidate search of {@link DatabaseMatcher2}: dex classes whose search
+ * failed, with the reason and the {@link FileMatches} state the search depended on (see
+ * {@link SearchDependencies}). A rejection is dropped as soon as a modification of
+ * {@link FileMatches} impacts its dependencies (new class or method match, file versions, new used
+ * file) or when a type observed by a hierarchy check is renamed, so that next passes only search
+ * again the classes whose context changed.
+ * <p>
+ * Searches depend on the pass mode: rejections are kept separately for unique (first pass) and
+ * open (second pass) searches.
+ *
+ * @author Cedric Lucas
+ *
+ */
+class RejectedClasses {
+
+    enum Reason {
+        /** no class candidate found from hashcodes */
+        NO_CANDIDATE,
+        /** all class candidates have an incompatible hierarchy */
+        HIERARCHY_MISMATCH
+    }
+
+    private static class Rejection {
+        final Reason reason;
+        final SearchDependencies dependencies;
+
+        Rejection(Reason reason, SearchDependencies dependencies) {
+            this.reason = reason;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /** rejections, with class index as key */
+    private final Map<Integer, Rejection> uniqueRejections = new HashMap<>();
+    private final Map<Integer, Rejection> openRejections = new HashMap<>();
+
+    private final int[] skipped = new int[Reason.values().length];
+
+    /** current effective name of a dex type id (null: type renames are not checked) */
+    private IntFunction<String> effectiveTypeNames;
+
+    /**
+     * @param effectiveTypeNames current effective name of a dex type id
+     */
+    void setEffectiveTypeNames(IntFunction<String> effectiveTypeNames) {
+        this.effectiveTypeNames = effectiveTypeNames;
+    }
+
+    /**
+     * @param dependencies {@link FileMatches} state observed by the failed search
+     */
+    void reject(int classIndex, boolean unique, Reason reason, SearchDependencies dependencies,
+            FileMatches fileMatches) {
+        // previous modifications were visible to the search
+        invalidate(fileMatches.pollHistory());
+        getRejections(unique).put(classIndex, new Rejection(reason, dependencies));
+    }
+
+    /**
+     * @return true if the search of class is known to fail again
+     */
+    boolean isRejected(int classIndex, boolean unique, FileMatches fileMatches) {
+        Rejection rejection = getRejection(classIndex, unique, fileMatches);
+        if(rejection == null) {
+            return false;
+        }
+        skipped[rejection.reason.ordinal()]++;
+        return true;
+    }
+
+    /**
+     * Same as {@link #isRejected(int, boolean, FileMatches)}, without counting a skipped search.
+     */
+    boolean contains(int classIndex, boolean unique, FileMatches fileMatches) {
+        return getRejection(classIndex, unique, fileMatches) != null;
+    }
+
+    private Rejection getRejection(int classIndex, boolean unique, FileMatches fileMatches) {
+        invalidate(fileMatches.pollHistory());
+        Map<Integer, Rejection> rejections = getRejections(unique);
+        Rejection rejection = rejections.get(classIndex);
+        if(rejection != null && effectiveTypeNames != null
+                && rejection.dependencies.isTypeRenamed(effectiveTypeNames)) {
+            rejections.remove(classIndex);
+            return null;
+        }
+        return rejection;
+    }
+
+    void remove(int classIndex) {
+        uniqueRejections.remove(classIndex);
+        openRejections.remove(classIndex);
+    }
+
+    private Map<Integer, Rejection> getRejections(boolean unique) {
+        return unique ? uniqueRejections: openRejections;
+    }
+
+    private void invalidate(SearchDependencies changes) {
+        if(changes.isEmpty()) {
+            return;
+        }
+        uniqueRejections.values().removeIf(r -> r.dependencies.isInvalidatedBy(changes));
+        openRejections.values().removeIf(r -> r.dependencies.isInvalidatedBy(changes));
+    }
+
+    int size() {
+        return uniqueRejections.size() + openRejections.size();
+    }
+
+    /**
+     * @return number of searches skipped because of a rejection for this reason
+     */
+    int getSkippedCount(Reason reason) {
+        return skipped[reason.ordinal()];
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Parts of the {@link FileMatches} state that a candidate search depends on. The same structure is
+ * used twice:
+ * <li>to record what a speculative {@link MatchingSearch} observed (matched class names, method
+ * name hints, signature files and their versions, used file set)</li>
+ * <li>to record what was modified in {@link FileMatches} since the speculative searches started</li>
+ * <p>
+ * A speculative search is still valid if both do not intersect.
+ * <p>
+ * Hierarchy checks also depend on the effective names of the super type and interfaces of the dex
+ * class. They are not modified through {@link FileMatches} (renames are applied once the round is
+ * over), so they are recorded with their observed names and checked against current names (see
+ * {@link #isTypeRenamed(IntFunction)}).
+ *
+ * @author Cedric Lucas
+ *
+ */
+class SearchDependencies {
+    private final Set<String> classValues = new HashSet<>();
+    private final Set<Integer> methods = new HashSet<>();
+    private final Set<String> files = new HashSet<>();
+    private boolean usedFiles;
+    /** effective names of dex types observed by a hierarchy check, with type id as key */
+    private final Map<Integer, String> typeNames = new HashMap<>();
+
+    void addClassValue(String className) {
+        classValues.add(className);
+    }
+
+    void addMethod(int index) {
+        methods.add(index);
+    }
+
+    void addFile(String file) {
+        files.add(file);
+    }
+
+    void setUsedFiles() {
+        usedFiles = true;
+    }
+
+    /**
+     * @param effectiveName name of the type when it was observed
+     */
+    void addTypeName(int typeId, String effectiveName) {
+        typeNames.put(typeId, effectiveName);
+    }
+
+    boolean isEmpty() {
+        return classValues.isEmpty() && methods.isEmpty() && files.isEmpty() && !usedFiles && typeNames.isEmpty();
+    }
+
+    /**
+     * @param effectiveTypeNames current effective name of a type id
+     * @return true if one of the recorded types was renamed or moved since it was observed
+     */
+    boolean isTypeRenamed(IntFunction<String> effectiveTypeNames) {
+        for(Entry<Integer, String> entry: typeNames.entrySet()) {
+            if(!Objects.equals(entry.getValue(), effectiveTypeNames.apply(entry.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param changes modifications performed since this dependencies were recorded
+     * @return true if one of the modifications impacts a recorded dependency
+     */
+    boolean isInvalidatedBy(SearchDependencies changes) {
+        if(changes == null || changes.isEmpty()) {
+            return false;
+        }
+        if(usedFiles && changes.usedFiles) {
+            return true;
+        }
+        return intersects(classValues, changes.classValues) || intersects(methods, changes.methods)
+                || intersects(files, changes.files);
+    }
+
+    private static <T> boolean intersects(Set<T> a, Set<T> b) {
+        if(a.size() > b.size()) {
+            Set<T> tmp = a;
+            a = b;
+            b = tmp;
+        }
+        for(T e: a) {
+            if(b.contains(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Inverted index of method hashcodes resolved to classes: each hashcode is associated to the sorted
+ * list of (file id, class id) keys of the classes defining a method with this hashcode (see
+ * {@link #key(int, int)}). Keys of a file are contiguous, files are sorted by load order. The
+ * document frequency of a hashcode is the number of files defining it. A {@link ClassShape} is also
+ * available for each class.
+ * <p>
+ * Filled by {@link IndexedSignatureFile#populate}, then immutable once {@link #freeze()} is called.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class CandidateIndex {
+
+    /** file path, with file id as index (null if file was removed) */
+    private List<String> files = new ArrayList<>();
+    private Map<String, Integer> fileIds = new HashMap<>();
+    /** sorted class names, with file id as index, then class id */
+    private List<String[]> classNames = new ArrayList<>();
+    /** encoded {@link ClassShape}, with file id as index, then class id (null if not available) */
+    private List<int[]> classShapes = new ArrayList<>();
+
+    private Map<String, long[]> tightPostings = new HashMap<>();
+    private Map<String, long[]> loosePostings = new HashMap<>();
+
+    /** document frequencies greater than 1, with hashcode as key (computed by {@link #freeze()}) */
+    private Map<String, Integer> tightFrequencies = new HashMap<>();
+    private Map<String, Integer> looseFrequencies = new HashMap<>();
+    private int indexedFileCount;
+
+    /** postings added since last {@link #freeze()} */
+    private Map<String, PostingList> tightBuilder = new HashMap<>();
+    private Map<String, PostingList> looseBuilder = new HashMap<>();
+
+    private static class PostingList {
+        long[] data = new long[4];
+        int size;
+
+        void add(long key) {
+            if(size == data.length) {
+                long[] newData = new long[size * 2];
+                System.arraycopy(data, 0, newData, 0, size);
+                data = newData;
+            }
+            data[size++] = key;
+        }
+    }
+
+    public static long key(int fileId, int classId) {
+        return ((long)fileId << 32) | (classId & 0xFFFFFFFFL);
+    }
+
+    public static int getFileId(long key) {
+        return (int)(key >>> 32);
+    }
+
+    public static int getClassId(long key) {
+        return (int)key;
+    }
+
+    /**
+     * Register a signature file. Must be called before adding its postings.
+     *
+     * @param file signature file absolute path
+     * @param classes sorted classes of the file: class id is the position in list
+     * @return file id
+     */
+    int addFile(String file, List<String> classes) {
+        checkNotFrozen();
+        int fileId = files.size();
+        files.add(file);
+        fileIds.put(file, fileId);
+        classNames.add(classes.toArray(new String[classes.size()]));
+        classShapes.add(null);
+        return fileId;
+    }
+
+    /**
+     * @param shapes encoded shapes of all classes of file, in class id order
+     */
+    void setClassShapes(int fileId, int[] shapes) {
+        checkNotFrozen();
+        classShapes.set(fileId, shapes);
+    }
+
+    /**
+     * @param classIds class ids of the file defining the hashcode (no duplicate)
+     */
+    void addPostings(boolean tight, String hashcode, int fileId, List<Integer> classIds) {
+        checkNotFrozen();
+        Map<String, PostingList> builder = tight ? tightBuilder: looseBuilder;
+        PostingList postings = builder.get(hashcode);
+        if(postings == null) {
+            postings = new PostingList();
+            builder.put(hashcode, postings);
+        }
+        int start = postings.size;
+        for(Integer classId: classIds) {
+            postings.add(key(fileId, classId));
+        }
+        Arrays.sort(postings.data, start, postings.size);
+    }
+
+    private void checkNotFrozen() {
+        if(tightBuilder == null) {
+            throw new IllegalStateException("Candidate index is frozen");
+        }
+    }
+
+    /**
+     * Merge added postings. The index can not be modified anymore.
+     */
+    public void freeze() {
+        checkNotFrozen();
+        tightPostings = Collections.unmodifiableMap(merge(tightPostings, tightBuilder));
+        loosePostings = Collections.unmodifiableMap(merge(loosePostings, looseBuilder));
+        tightFrequencies = Collections.unmodifiableMap(computeFrequencies(tightPostings));
+        looseFrequencies = Collections.unmodifiableMap(computeFrequencies(loosePostings));
+        fileIds = Collections.unmodifiableMap(fileIds);
+        indexedFileCount = fileIds.size();
+        tightBuilder = null;
+        looseBuilder = null;
+    }
+
+    private static Map<String, long[]> merge(Map<String, long[]> postings, Map<String, PostingList> builder) {
+        Map<String, long[]> res = new HashMap<>(postings);
+        for(Entry<String, PostingList> entry: builder.entrySet()) {
+            PostingList added = entry.getValue();
+            long[] current = res.get(entry.getKey());
+            int currentSize = current == null ? 0: current.length;
+            // new file ids are greater than existing ones: concatenation is sorted
+            long[] merged = new long[currentSize + added.size];
+            if(current != null) {
+                System.arraycopy(current, 0, merged, 0, currentSize);
+            }
+            System.arraycopy(added.data, 0, merged, currentSize, added.size);
+            res.put(entry.getKey(), merged);
+        }
+        return res;
+    }
+
+    private static Map<String, Integer> computeFrequencies(Map<String, long[]> postings) {
+        Map<String, Integer> res = new HashMap<>();
+        for(Entry<String, long[]> entry: postings.entrySet()) {
+            int frequency = 0;
+            int lastFileId = -1;
+            for(long key: entry.getValue()) {
+                if(getFileId(key) != lastFileId) {
+                    frequency++;
+                    lastFileId = getFileId(key);
+                }
+            }
+            if(frequency > 1) {
+                res.put(entry.getKey(), frequency);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Copy this index without some files, to be completed with {@link IndexedSignatureFile#populate}
+     * then frozen. File ids of remaining files are preserved. Postings that do not reference removed
+     * files are shared.
+     *
+     * @param removedFiles file absolute paths
+     */
+    public CandidateIndex without(Set<String> removedFiles) {
+        CandidateIndex res = new CandidateIndex();
+        res.files = new ArrayList<>(files);
+        res.fileIds = new HashMap<>(fileIds);
+        res.classNames = new ArrayList<>(classNames);
+        res.classShapes = new ArrayList<>(classShapes);
+        boolean[] removedIds = new boolean[files.size()];
+        for(String f: removedFiles) {
+            Integer fileId = res.fileIds.remove(f);
+            if(fileId != null) {
+                removedIds[fileId] = true;
+                res.files.set(fileId, null);
+                res.classNames.set(fileId, null);
+                res.classShapes.set(fileId, null);
+            }
+        }
+        res.tightPostings = removeFiles(tightPostings, removedIds);
+        res.loosePostings = removeFiles(loosePostings, removedIds);
+        return res;
+    }
+
+    private static Map<String, long[]> removeFiles(Map<String, long[]> postings, boolean[] removedIds) {
+        Map<String, long[]> res = new HashMap<>(postings);
+        for(Entry<String, long[]> entry: postings.entrySet()) {
+            long[] keys = entry.getValue();
+            int kept = 0;
+            for(long key: keys) {
+                if(!removedIds[getFileId(key)]) {
+                    kept++;
+                }
+            }
+            if(kept == keys.length) {
+                continue;
+            }
+            if(kept == 0) {
+                res.remove(entry.getKey());
+                continue;
+            }
+            long[] filtered = new long[kept];
+            int i = 0;
+            for(long key: keys) {
+                if(!removedIds[getFileId(key)]) {
+                    filtered[i++] = key;
+                }
+            }
+            res.put(entry.getKey(), filtered);
+        }
+        return res;
+    }
+
+    /**
+     * @return sorted class keys defining a method with this hashcode, or null. Must not be modified.
+     */
+    public long[] getPostings(String hashcode, boolean tight) {
+        return tight ? tightPostings.get(hashcode): loosePostings.get(hashcode);
+    }
+
+    /**
+     * @return number of files defining this hashcode (0 if unknown)
+     */
+    public int getDocumentFrequency(String hashcode, boolean tight) {
+        Integer frequency = tight ? tightFrequencies.get(hashcode): looseFrequencies.get(hashcode);
+        if(frequency != null) {
+            return frequency;
+        }
+        return getPostings(hashcode, tight) == null ? 0: 1;
+    }
+
+    /**
+     * @return number of indexed files (removed files excluded)
+     */
+    public int getIndexedFileCount() {
+        return indexedFileCount;
+    }
+
+    /**
+     * @return file id, or -1 if file is not indexed
+     */
+    public int getFileId(String file) {
+        Integer fileId = fileIds.get(file);
+        return fileId == null ? -1: fileId;
+    }
+
+    public String getFile(int fileId) {
+        return files.get(fileId);
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return number of classes of file, or -1 if file was removed
+     */
+    int getClassCount(int fileId) {
+        String[] classes = classNames.get(fileId);
+        return classes == null ? -1: classes.length;
+    }
+
+    /**
+     * @return all postings, with hashcode as key. Must not be modified.
+     */
+    Map<String, long[]> getAllPostings(boolean tight) {
+        return tight ? tightPostings: loosePostings;
+    }
+
+    public String getClassName(long key) {
+        return classNames.get(getFileId(key))[getClassId(key)];
+    }
+
+    /**
+     * @return class id, or -1 if file does not define this class
+     */
+    public int getClassId(int fileId, String className) {
+        String[] classes = classNames.get(fileId);
+        if(classes == null) {
+            return -1;
+        }
+        int classId = Arrays.binarySearch(classes, className);
+        return classId < 0 ? -1: classId;
+    }
+
+    /**
+     * @return classes of file starting with prefix, or null if file is not indexed
+     */
+    public List<String> getClassNames(String file, String prefix) {
+        int fileId = getFileId(file);
+        if(fileId < 0) {
+            return null;
+        }
+        String[] classes = classNames.get(fileId);
+        int i = Arrays.binarySearch(classes, prefix);
+        if(i < 0) {
+            i = -i - 1;
+        }
+        List<String> res = new ArrayList<>();
+        for(; i < classes.length && classes[i].startsWith(prefix); i++) {
+            res.add(classes[i]);
+        }
+        return res;
+    }
+
+    /**
+     * @return shape of class, or null if not available
+     */
+    public ClassShape getClassShape(String file, String className) {
+        int fileId = getFileId(file);
+        if(fileId < 0 || classShapes.get(fileId) == null) {
+            return null;
+        }
+        int classId = getClassId(fileId, className);
+        return classId < 0 ? null: ClassShape.decode(classShapes.get(fileId), classId * ClassShape.SIZE);
+    }
+
+    /**
+     * @return true if class of file defines a method with this hashcode (false if file is not indexed)
+     */
+    public boolean hasPosting(String hashcode, boolean tight, String file, String className) {
+        int fileId = getFileId(file);
+        long[] postings = getPostings(hashcode, tight);
+        if(fileId < 0 || postings == null) {
+            return false;
+        }
+        int classId = getClassId(fileId, className);
+        return classId >= 0 && Arrays.binarySearch(postings, key(fileId, classId)) >= 0;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.LongPredicate;
+
+/**
+ * Class fingerprints of the database: for each class of {@link CandidateIndex}, the sorted set of
+ * its tight hashcodes (as int values) and a MinHash sketch of this set. Sketches are indexed in a
+ * LSH table (banding), so that the classes most similar to a dex class are found with a few
+ * lookups. Immutable.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class ClassFingerprintIndex {
+
+    private static final int SKETCH_SIZE = 16;
+    private static final int BANDS = 8;
+    private static final int ROWS = SKETCH_SIZE / BANDS;
+    /** classes with less hashcodes are not indexed: too many collisions */
+    private static final int MIN_HASHCODES = 3;
+    /** buckets with more classes are ignored: not discriminant */
+    private static final int MAX_BUCKET_SIZE = 64;
+
+    private final CandidateIndex candidateIndex;
+    /** sorted hashcode values, with file id then class id as indexes */
+    private final int[][][] classHashcodes;
+    /** class keys, with band key as key */
+    private final Map<Long, long[]> buckets;
+
+    private ClassFingerprintIndex(CandidateIndex candidateIndex, int[][][] classHashcodes, Map<Long, long[]> buckets) {
+        this.candidateIndex = candidateIndex;
+        this.classHashcodes = classHashcodes;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Build fingerprints of all classes from the tight postings of a frozen index.
+     */
+    public static ClassFingerprintIndex build(CandidateIndex candidateIndex) {
+        int fileCount = candidateIndex.getFileCount();
+        Map<String, long[]> postings = candidateIndex.getAllPostings(true);
+
+        // count, allocate, then fill hashcode values per class
+        int[][] counts = new int[fileCount][];
+        for(int fileId = 0; fileId < fileCount; fileId++) {
+            int classCount = candidateIndex.getClassCount(fileId);
+            counts[fileId] = classCount < 0 ? null: new int[classCount];
+        }
+        for(long[] keys: postings.values()) {
+            for(long key: keys) {
+                counts[CandidateIndex.getFileId(key)][CandidateIndex.getClassId(key)]++;
+            }
+        }
+        int[][][] classHashcodes = new int[fileCount][][];
+        for(int fileId = 0; fileId < fileCount; fileId++) {
+            if(counts[fileId] == null) {
+                continue;
+            }
+            classHashcodes[fileId] = new int[counts[fileId].length][];
+            for(int classId = 0; classId < counts[fileId].length; classId++) {
+                classHashcodes[fileId][classId] = new int[counts[fileId][classId]];
+                counts[fileId][classId] = 0;
+            }
+        }
+        for(Entry<String, long[]> entry: postings.entrySet()) {
+            int value = getHashcodeValue(entry.getKey());
+            for(long key: entry.getValue()) {
+                int fileId = CandidateIndex.getFileId(key);
+                int classId = CandidateIndex.getClassId(key);
+                classHashcodes[fileId][classId][counts[fileId][classId]++] = value;
+            }
+        }
+
+        Map<Long, List<Long>> bucketLists = new HashMap<>();
+        for(int fileId = 0; fileId < fileCount; fileId++) {
+            if(classHashcodes[fileId] == null) {
+                continue;
+            }
+            for(int classId = 0; classId < classHashcodes[fileId].length; classId++) {
+                int[] values = sortDistinct(classHashcodes[fileId][classId]);
+                classHashcodes[fileId][classId] = values;
+                if(values.length < MIN_HASHCODES) {
+                    continue;
+                }
+                long key = CandidateIndex.key(fileId, classId);
+                for(long bandKey: getBandKeys(computeSketch(values))) {
+                    List<Long> bucket = bucketLists.get(bandKey);
+                    if(bucket == null) {
+                        bucket = new ArrayList<>(1);
+                        bucketLists.put(bandKey, bucket);
+                    }
+                    bucket.add(key);
+                }
+            }
+        }
+        Map<Long, long[]> buckets = new HashMap<>();
+        for(Entry<Long, List<Long>> entry: bucketLists.entrySet()) {
+            List<Long> bucket = entry.getValue();
+            long[] keys = new long[bucket.size()];
+            for(int i = 0; i < keys.length; i++) {
+                keys[i] = bucket.get(i);
+            }
+            buckets.put(entry.getKey(), keys);
+        }
+        return new ClassFingerprintIndex(candidateIndex, classHashcodes, Collections.unmodifiableMap(buckets));
+    }
+
+    private static int getHashcodeValue(String hashcode) {
+        return mix(hashcode.hashCode());
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int[] sortDistinct(int[] values) {
+        Arrays.sort(values);
+        int size = 0;
+        for(int i = 0; i < values.length; i++) {
+            if(size == 0 || values[size - 1] != values[i]) {
+                values[size++] = values[i];
+            }
+        }
+        return size == values.length ? values: Arrays.copyOf(values, size);
+    }
+
+    private static int[] computeSketch(int[] values) {
+        int[] sketch = new int[SKETCH_SIZE];
+        Arrays.fill(sketch, Integer.MAX_VALUE);
+        for(int value: values) {
+            for(int i = 0; i < SKETCH_SIZE; i++) {
+                int h = mix(value * 0x9E3779B9 + i * 0x7F4A7C15);
+                if(h < sketch[i]) {
+                    sketch[i] = h;
+                }
+            }
+        }
+        return sketch;
+    }
+
+    private static long[] getBandKeys(int[] sketch) {
+        long[] bandKeys = new long[BANDS];
+        for(int band = 0; band < BANDS; band++) {
+            long h = band;
+            for(int row = 0; row < ROWS; row++) {
+                h = h * 0x100000001B3L ^ sketch[band * ROWS + row];
+            }
+            bandKeys[band] = h;
+        }
+        return bandKeys;
+    }
+
+    /**
+     * Find the database classes whose hashcode set is the most similar to the one of a dex class.
+     *
+     * @param hashcodes tight hashcodes of dex class
+     * @param minSimilarity minimum Jaccard similarity (computed on hashcode sets) of returned classes
+     * @param max maximum number of classes (classes with same similarity than the last one are kept)
+     * @param accept filter of candidates
+     * @return sorted keys of classes
+     */
+    public long[] findSimilarClasses(Collection<String> hashcodes, double minSimilarity, int max,
+            LongPredicate accept) {
+        int[] values = new int[hashcodes.size()];
+        int i = 0;
+        for(String hashcode: hashcodes) {
+            values[i++] = getHashcodeValue(hashcode);
+        }
+        values = sortDistinct(values);
+        if(values.length < MIN_HASHCODES) {
+            return new long[0];
+        }
+        Map<Long, Double> similarities = new HashMap<>();
+        for(long bandKey: getBandKeys(computeSketch(values))) {
+            long[] bucket = buckets.get(bandKey);
+            if(bucket == null || bucket.length > MAX_BUCKET_SIZE) {
+                continue;
+            }
+            for(long key: bucket) {
+                if(similarities.containsKey(key)) {
+                    continue;
+                }
+                double similarity = 0.0;
+                if(accept.test(key)) {
+                    similarity = getSimilarity(values,
+                            classHashcodes[CandidateIndex.getFileId(key)][CandidateIndex.getClassId(key)]);
+                }
+                similarities.put(key, similarity);
+            }
+        }
+        List<Entry<Long, Double>> hits = new ArrayList<>();
+        for(Entry<Long, Double> entry: similarities.entrySet()) {
+            if(entry.getValue() > 0.0 && entry.getValue() >= minSimilarity) {
+                hits.add(entry);
+            }
+        }
+        if(hits.isEmpty()) {
+            return new long[0];
+        }
+        Collections.sort(hits, (e1, e2) -> Double.compare(e2.getValue(), e1.getValue()));
+        int count = Math.min(max, hits.size());
+        while(count < hits.size() && hits.get(count).getValue().equals(hits.get(count - 1).getValue())) {
+            count++;
+        }
+        long[] res = new long[count];
+        for(i = 0; i < count; i++) {
+            res[i] = hits.get(i).getKey();
+        }
+        Arrays.sort(res);
+        return res;
+    }
+
+    private static double getSimilarity(int[] values1, int[] values2) {
+        int i = 0;
+        int j = 0;
+        int common = 0;
+        while(i < values1.length && j < values2.length) {
+            if(values1[i] == values2[j]) {
+                common++;
+                i++;
+                j++;
+            }
+            else if(values1[i] < values2[j]) {
+                i++;
+            }
+            else {
+                j++;
+            }
+        }
+        return (double)common / (values1.length + values2.length - common);
+    }
+
+    public CandidateIndex getCandidateIndex() {
+        return candidateIndex;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import com.pnf.androsig.apply.util.DexUtilLocal;
+import com.pnfsoftware.jeb.util.format.Strings;
+
+/**
+ * Compact description of a signature class, stored in index file: inner level, anonymous flag,
+ * number of methods (all versions) and super type (when a single one is defined). Used to reject
+ * candidates without loading signature lines. Immutable.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class ClassShape {
+
+    /** number of ints of an encoded shape */
+    static final int SIZE = 4;
+
+    private static final int INNER_LEVEL_MASK = 0xFF;
+    private static final int ANONYMOUS_FLAG = 1 << 8;
+    private static final int SUPERTYPE_FLAG = 1 << 9;
+    private static final int PLATFORM_SUPERTYPE_FLAG = 1 << 10;
+
+    private final int flags;
+    private final int methodCount;
+    private final int emptyMethodCount;
+    private final int superTypeHash;
+
+    private ClassShape(int[] data, int offset) {
+        flags = data[offset];
+        methodCount = data[offset + 1];
+        emptyMethodCount = data[offset + 2];
+        superTypeHash = data[offset + 3];
+    }
+
+    /**
+     * @param methodCount number of distinct methods (name and prototype)
+     * @param emptyMethodCount number of distinct methods without code
+     * @param superType super type, or null if unknown or if several are defined
+     */
+    static int[] encode(String className, int methodCount, int emptyMethodCount, String superType) {
+        int flags = Math.min(DexUtilLocal.getInnerClassLevel(className), INNER_LEVEL_MASK);
+        if(DexUtilLocal.isAnonymous(className)) {
+            flags |= ANONYMOUS_FLAG;
+        }
+        int superTypeHash = 0;
+        if(!Strings.isBlank(superType)) {
+            flags |= SUPERTYPE_FLAG;
+            if(isPlatformClass(superType)) {
+                flags |= PLATFORM_SUPERTYPE_FLAG;
+            }
+            superTypeHash = superType.hashCode();
+        }
+        return new int[]{flags, methodCount, emptyMethodCount, superTypeHash};
+    }
+
+    static ClassShape decode(int[] data, int offset) {
+        return new ClassShape(data, offset);
+    }
+
+    private static boolean isPlatformClass(String type) {
+        return DexUtilLocal.isJavaPlatformClass(type) || DexUtilLocal.isAndroidPlatformClass(type);
+    }
+
+    public int getInnerLevel() {
+        return flags & INNER_LEVEL_MASK;
+    }
+
+    /**
+     * @return same result than {@link DexUtilLocal#isAnonymous(String)}
+     */
+    public boolean isAnonymous() {
+        return (flags & ANONYMOUS_FLAG) != 0;
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    public int getEmptyMethodCount() {
+        return emptyMethodCount;
+    }
+
+    /**
+     * Conservative check of {@link DexUtilLocal#isCompatibleClasses(String, String)} between super
+     * types.
+     *
+     * @param superType super type of dex class
+     * @return true if the super type of this class is known and can not be compatible
+     */
+    public boolean isIncompatibleSuperType(String superType) {
+        if((flags & SUPERTYPE_FLAG) == 0 || Strings.isBlank(superType) || superType.hashCode() == superTypeHash) {
+            return false;
+        }
+        // different names: only compatible if none is a platform class
+        return (flags & PLATFORM_SUPERTYPE_FLAG) != 0 || isPlatformClass(superType);
+    }
+}
@@ -7,8 +7,10 @@ package com.pnf.androsig.apply.model;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -23,6 +25,10 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
 /**
  * Reference Hashcode that are contained in android_sigs directory. It enables user to get the list
  * of files that defines a particular hashcode (tight or loose).
+ * <p>
+ * Hashcode maps are immutable once {@link #loadAllHashCodes(File)} returns, so a single instance can
+ * be shared by concurrent executions (see {@link DatabaseReferenceService}). Signature files are
+ * lazily loaded and accessed under their own lock.
  * 
  * @author Ruoxiao Wang, Cedric Lucas
  *
@@ -35,19 +41,43 @@ public class DatabaseReference {
     private Map<String, Set<String>> allLooseHashcodes = new HashMap<>();
     private Map<String, Set<String>> allClasses = new HashMap<>();
 
+    /** hashcodes resolved to (file, class) */
+    private CandidateIndex candidateIndex = new CandidateIndex();
+    /** built on first use */
+    private volatile ClassFingerprintIndex classFingerprintIndex;
+
     private SignatureFileFactory signatureFileFactory = new SignatureFileFactory();
 
+    /** maximum number of memoized signature line lookups */
+    private static final int LOOKUP_CACHE_SIZE = 1 << 16;
+    private final SignatureLookupCache lookupCache = new SignatureLookupCache(LOOKUP_CACHE_SIZE);
+
     private int allSignatureFileCount = 0;
 
+    /** loaded signature files, with absolute path as key and {length, last modification} as value */
+    private Map<String, long[]> manifest = new HashMap<>();
+
+    private boolean loaded = false;
+
     /**
-     * Load all hashcodes from signature files.
+     * Load all hashcodes from signature files. Can only be called once per instance.
      * 
      * @param sigFolder the signature folder
      */
     public void loadAllHashCodes(File sigFolder) {
+        if(loaded) {
+            throw new IllegalStateException("Hashcodes already loaded");
+        }
         logger.info("Hashcodes loading start...");
         final long startTime = System.currentTimeMillis();
         loadAllHashCodesTemp(sigFolder);
+        allTightHashcodes = Collections.unmodifiableMap(allTightHashcodes);
+        allLooseHashcodes = Collections.unmodifiableMap(allLooseHashcodes);
+        allClasses = Collections.unmodifiableMap(allClasses);
+        candidateIndex.freeze();
+        manifest = Collections.unmodifiableMap(manifest);
+        signatureFileFactory.setExpectedStamps(manifest);
+        loaded = true;
         final long endTime = System.currentTimeMillis();
         logger.info("Hashcodes loading completed! (Execution Time: " + (endTime - startTime) / 1000 + "s)");
         logger.info("allTightHashcodes: " + allTightHashcodes.size());
@@ -60,6 +90,7 @@ public class DatabaseReference {
         for(File f: sigFolder.listFiles()) {
             if(f.isFile() && f.getName().endsWith(".sig")) {
                 allSignatureFileCount++;
+                manifest.put(f.getAbsolutePath(), SignatureFileFactory.getFileStamp(f));
                 if(!loadHashCodes(f)) {
                     logger.error("Cannot load signatures files: %s", f);
                 }
@@ -77,7 +108,159 @@ public class DatabaseReference {
     }
 
     private boolean loadHashCodes(File sigFile) {
-        return SignatureFileFactory.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses);
+        return SignatureFileFactory.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses,
+                candidateIndex);
+    }
+
+    private static void listSignatureFiles(File sigFolder, Map<String, long[]> files) {
+        File[] children = sigFolder.listFiles();
+        if(children == null) {
+            return;
+        }
+        for(File f: children) {
+            if(f.isFile() && f.getName().endsWith(".sig")) {
+                files.put(f.getAbsolutePath(), SignatureFileFactory.getFileStamp(f));
+            }
+            else if(f.isDirectory()) {
+                listSignatureFiles(f, files);
+            }
+        }
+    }
+
+    /**
+     * Build an up-to-date database from this one, by only reindexing the signature files that were
+     * added, removed or modified in the signature folder since this database was loaded. Unchanged
+     * postings are shared with the new instance.
+     * <p>
+     * This instance is left untouched, and executions using it keep a consistent view: indexes of
+     * modified files are replaced atomically, and this instance never opens a signature file (nor
+     * its index) that does not match the size and modification date it indexed. Note that a
+     * signature file rewritten in place is not available to this instance anymore (its previous
+     * content is lost): lookups in this file return no signature, even if it was opened before the
+     * modification. Loaded files are marked so here, instead of checking their stamp on each read.
+     * 
+     * @param sigFolder the signature folder
+     * @return the refreshed database, or this instance if the folder did not change
+     */
+    public DatabaseReference refresh(File sigFolder) {
+        if(!loaded) {
+            throw new IllegalStateException("Hashcodes not loaded");
+        }
+        final long startTime = System.currentTimeMillis();
+        Map<String, long[]> newManifest = new HashMap<>();
+        listSignatureFiles(sigFolder, newManifest);
+
+        Set<String> removed = new HashSet<>();
+        Set<String> added = new HashSet<>();
+        Set<String> modified = new HashSet<>();
+        for(Entry<String, long[]> entry: manifest.entrySet()) {
+            long[] newStamp = newManifest.get(entry.getKey());
+            if(newStamp == null) {
+                removed.add(entry.getKey());
+            }
+            else if(newStamp[0] != entry.getValue()[0] || newStamp[1] != entry.getValue()[1]) {
+                modified.add(entry.getKey());
+            }
+        }
+        for(String f: newManifest.keySet()) {
+            if(!manifest.containsKey(f)) {
+                added.add(f);
+            }
+        }
+        if(removed.isEmpty() && added.isEmpty() && modified.isEmpty()) {
+            return this;
+        }
+
+        Set<String> obsolete = new HashSet<>(removed);
+        obsolete.addAll(modified);
+        // this instance may still be used by running executions
+        signatureFileFactory.setModified(obsolete);
+        DatabaseReference updated = new DatabaseReference();
+        updated.allTightHashcodes = removeFiles(allTightHashcodes, obsolete);
+        updated.allLooseHashcodes = removeFiles(allLooseHashcodes, obsolete);
+        updated.allClasses = removeFiles(allClasses, obsolete);
+        updated.candidateIndex = candidateIndex.without(obsolete);
+
+        Map<String, Set<String>> newTightHashcodes = new HashMap<>();
+        Map<String, Set<String>> newLooseHashcodes = new HashMap<>();
+        Map<String, Set<String>> newClasses = new HashMap<>();
+        Set<String> toLoad = new HashSet<>(added);
+        toLoad.addAll(modified);
+        for(String file: toLoad) {
+            File f = new File(file);
+            if(modified.contains(file)) {
+                // index only checks file size: force regeneration
+                IndexedSignatureFile.buildIndexFile(f, IndexedSignatureFile.getIndexFile(f));
+            }
+            if(!SignatureFileFactory.populate(f, newTightHashcodes, newLooseHashcodes, newClasses,
+                    updated.candidateIndex)) {
+                logger.error("Cannot load signatures files: %s", f);
+            }
+        }
+        addFiles(updated.allTightHashcodes, newTightHashcodes);
+        addFiles(updated.allLooseHashcodes, newLooseHashcodes);
+        addFiles(updated.allClasses, newClasses);
+
+        updated.allTightHashcodes = Collections.unmodifiableMap(updated.allTightHashcodes);
+        updated.allLooseHashcodes = Collections.unmodifiableMap(updated.allLooseHashcodes);
+        updated.allClasses = Collections.unmodifiableMap(updated.allClasses);
+        updated.candidateIndex.freeze();
+        updated.manifest = Collections.unmodifiableMap(newManifest);
+        updated.signatureFileFactory.setExpectedStamps(updated.manifest);
+        updated.allSignatureFileCount = newManifest.size();
+        updated.loaded = true;
+        logger.info("Hashcodes refreshed: %d added, %d removed, %d modified files (Execution Time: %dms)",
+                added.size(), removed.size(), modified.size(), System.currentTimeMillis() - startTime);
+        return updated;
+    }
+
+    /**
+     * Copy a hashcode map without some files. Sets that do not reference removed files are shared.
+     */
+    private static Map<String, Set<String>> removeFiles(Map<String, Set<String>> map, Set<String> files) {
+        Map<String, Set<String>> res = new HashMap<>(map);
+        if(files.isEmpty()) {
+            return res;
+        }
+        for(Entry<String, Set<String>> entry: map.entrySet()) {
+            Set<String> current = entry.getValue();
+            boolean impacted = false;
+            for(String f: files) {
+                if(current.contains(f)) {
+                    impacted = true;
+                    break;
+                }
+            }
+            if(!impacted) {
+                continue;
+            }
+            Set<String> filtered = new LinkedHashSet<>(current);
+            filtered.removeAll(files);
+            if(filtered.isEmpty()) {
+                res.remove(entry.getKey());
+            }
+            else {
+                res.put(entry.getKey(), filtered);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Merge new postings in a map. Shared sets are never modified: a copy is made instead.
+     */
+    private static void addFiles(Map<String, Set<String>> map, Map<String, Set<String>> newPostings) {
+        for(Entry<String, Set<String>> entry: newPostings.entrySet()) {
+            Set<String> current = map.get(entry.getKey());
+            if(current == null) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                Set<String> merged = new LinkedHashSet<>(current);
+                merged.addAll(entry.getValue());
+                map.put(entry.getKey(), merged);
+            }
+        }
     }
 
     /**
@@ -89,6 +272,33 @@ public class DatabaseReference {
         return allSignatureFileCount;
     }
 
+    /**
+     * @return index of classes per hashcode, used to score class candidates
+     */
+    public CandidateIndex getCandidateIndex() {
+        return candidateIndex;
+    }
+
+    /**
+     * @return class fingerprints, built from {@link #getCandidateIndex()} on first call
+     */
+    public ClassFingerprintIndex getClassFingerprintIndex() {
+        ClassFingerprintIndex res = classFingerprintIndex;
+        if(res == null) {
+            synchronized(this) {
+                res = classFingerprintIndex;
+                if(res == null) {
+                    final long startTime = System.currentTimeMillis();
+                    res = ClassFingerprintIndex.build(candidateIndex);
+                    classFingerprintIndex = res;
+                    logger.info("Class fingerprints built (Execution Time: %dms)",
+                            System.currentTimeMillis() - startTime);
+                }
+            }
+        }
+        return res;
+    }
+
     public List<String> getFilesContainingTightHashcode(String hashcode) {
         Set<String> res = allTightHashcodes.get(hashcode);
         return res == null ? null: new ArrayList<>(res);
@@ -104,22 +314,69 @@ public class DatabaseReference {
         return res == null ? null: new ArrayList<>(res);
     }
 
-    @SuppressWarnings("resource")
+    /**
+     * Signature lines of a hashcode. Results of signature line lookups are memoized (see
+     * {@link #getLookupCache()}): returned lists must not be modified.
+     */
     public List<MethodSignature> getSignatureLines(String file, String hashcode, boolean tight) {
-        ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
-        return tight ? sigFile.getTightSignatures(hashcode): sigFile.getLooseSignatures(hashcode);
+        return getSignatureLines(file, null, hashcode, tight, null);
     }
 
     public List<MethodSignature> getSignatureLines(DatabaseReferenceFile file, String hashcode, boolean tight) {
-        List<MethodSignature> sigs = getSignatureLines(file.file, hashcode, tight);
-        Set<String> versions = file.getAvailableVersions();
-        return filterVersions(sigs, versions);
+        return getSignatureLines(file.file, file.getAvailableVersions(), hashcode, tight, null);
+    }
+
+    /**
+     * Same as {@link #getSignatureLines(String, String, boolean)}, but only lines accepted by filter
+     * are loaded.
+     */
+    public List<MethodSignature> getSignatureLines(String file, String hashcode, boolean tight,
+            SignatureFilter filter) {
+        return getSignatureLines(file, null, hashcode, tight, filter);
+    }
+
+    public List<MethodSignature> getSignatureLines(DatabaseReferenceFile file, String hashcode, boolean tight,
+            SignatureFilter filter) {
+        return getSignatureLines(file.file, file.getAvailableVersions(), hashcode, tight, filter);
+    }
+
+    private List<MethodSignature> getSignatureLines(String file, Set<String> versions, String hashcode,
+            boolean tight, SignatureFilter filter) {
+        int fileId = candidateIndex.getFileId(file);
+        if(fileId < 0) {
+            return filterVersions(loadSignatureLines(file, hashcode, tight, filter), versions);
+        }
+        return lookupCache.get(fileId, hashcode, tight, filter, versions,
+                () -> filterVersions(loadSignatureLines(file, hashcode, tight, filter), versions));
+    }
+
+    @SuppressWarnings("resource")
+    private List<MethodSignature> loadSignatureLines(String file, String hashcode, boolean tight,
+            SignatureFilter filter) {
+        ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
+        synchronized(sigFile) {
+            if(filter == null) {
+                return tight ? sigFile.getTightSignatures(hashcode): sigFile.getLooseSignatures(hashcode);
+            }
+            return tight ? sigFile.getTightSignatures(hashcode, filter)
+                    : sigFile.getLooseSignatures(hashcode, filter);
+        }
+    }
+
+    /**
+     * @return memoized signature line lookups of this database (statistics are cumulated over
+     *         executions)
+     */
+    public SignatureLookupCache getLookupCache() {
+        return lookupCache;
     }
 
     @SuppressWarnings("resource")
     public List<MethodSignature> getSignaturesForClassname(String file, String className, boolean exactName) {
         ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
-        return sigFile.getSignaturesForClassname(className, exactName);
+        synchronized(sigFile) {
+            return sigFile.getSignaturesForClassname(className, exactName);
+        }
     }
 
     public List<MethodSignature> getSignaturesForClassname(DatabaseReferenceFile file, String className,
@@ -129,6 +386,27 @@ public class DatabaseReference {
         return filterVersions(sigs, versions);
     }
 
+    /**
+     * Resolve the signatures of a method without loading all signatures of its class.
+     * 
+     * @param prototype method prototype, or null to get all methods with this name
+     */
+    @SuppressWarnings("resource")
+    public List<MethodSignature> getSignaturesForMethod(String file, String className, String methodName,
+            String prototype) {
+        ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
+        synchronized(sigFile) {
+            return sigFile.getSignaturesForMethod(className, methodName, prototype);
+        }
+    }
+
+    public List<MethodSignature> getSignaturesForMethod(DatabaseReferenceFile file, String className,
+            String methodName, String prototype) {
+        List<MethodSignature> sigs = getSignaturesForMethod(file.file, className, methodName, prototype);
+        Set<String> versions = file.getAvailableVersions();
+        return filterVersions(sigs, versions);
+    }
+
     private List<MethodSignature> filterVersions(List<MethodSignature> sigs, Set<String> versions) {
         if(sigs != null && versions != null && !versions.isEmpty()) {
             List<MethodSignature> versioned = new ArrayList<>();
@@ -155,13 +433,19 @@ public class DatabaseReference {
         return false;
     }
 
+    /**
+     * @return a copy of the library infos of file (the database is shared: callers may complete it
+     *         with their own versions), or null if className is not null and not defined by file
+     */
     @SuppressWarnings("resource")
     public LibraryInfo getLibraryInfos(String file, String className) {
         ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
-        if(className != null && !sigFile.hasSignaturesForClassname(className)) {
-            return null;
+        synchronized(sigFile) {
+            if(className != null && !sigFile.hasSignaturesForClassname(className)) {
+                return null;
+            }
+            return sigFile.getLibraryInfos().copy();
         }
-        return sigFile.getLibraryInfos();
     }
 
     public Map<String, ISignatureFile> getLoadedSignatureFiles() {
@@ -175,7 +459,10 @@ public class DatabaseReference {
     @SuppressWarnings("resource")
     public Couple<String, List<String>> getParentForClassname(String file, String className) {
         ISignatureFile sigFile = signatureFileFactory.getSignatureFile(file);
-        List<MethodSignature> sigs = sigFile.getParent(className);
+        List<MethodSignature> sigs;
+        synchronized(sigFile) {
+            sigs = sigFile.getParent(className);
+        }
         if(sigs == null || sigs.size() != 1) {
             return null;
         }
@@ -185,7 +472,10 @@ public class DatabaseReference {
     @SuppressWarnings("resource")
     public Couple<String, List<String>> getParentForClassname(DatabaseReferenceFile refFile, String className) {
         ISignatureFile sigFile = signatureFileFactory.getSignatureFile(refFile.file);
-        List<MethodSignature> rawSigs = sigFile.getParent(className);
+        List<MethodSignature> rawSigs;
+        synchronized(sigFile) {
+            rawSigs = sigFile.getParent(className);
+        }
         if(rawSigs == null || rawSigs.isEmpty()) {
             return null;
         }
@@ -0,0 +1,209 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Process-wide access point to the signature database. A {@link DatabaseReference} is loaded once
+ * per signature folder and shared (read-only) by all executions that acquire it. References are
+ * counted: the database is closed when the last execution releases it.
+ * <p>
+ * The folder content is checked on each {@link #acquire(File)}: if a signature file was added,
+ * removed or modified, an updated database is built for the new acquirers (only changed files are
+ * reindexed, see {@link DatabaseReference#refresh(File)}) while executions still holding the
+ * previous one keep using it until they release it (without the signature files rewritten in place,
+ * whose previous content is not available anymore).
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DatabaseReferenceService {
+    private static final ILogger logger = GlobalLog.getLogger(DatabaseReferenceService.class);
+
+    /** current database holder, with canonical signature folder path as key */
+    private static final Map<String, FolderHolder> holders = new HashMap<>();
+
+    /** every acquired database (current or outdated) */
+    private static final Map<DatabaseReference, LoadedDatabase> loadedDatabases = new IdentityHashMap<>();
+
+    private static class LoadedDatabase {
+        private final FolderHolder holder;
+        private final DatabaseReference ref;
+        private long stamp;
+        private int refCount;
+
+        LoadedDatabase(FolderHolder holder, DatabaseReference ref, long stamp) {
+            this.holder = holder;
+            this.ref = ref;
+            this.stamp = stamp;
+        }
+    }
+
+    private static class FolderHolder {
+        private final File sigFolder;
+        private LoadedDatabase current;
+
+        FolderHolder(File sigFolder) {
+            this.sigFolder = sigFolder;
+        }
+
+        synchronized DatabaseReference acquire() {
+            long stamp = computeStamp(sigFolder);
+            LoadedDatabase db = current;
+            if(db != null && db.stamp != stamp) {
+                logger.info("Signature folder %s was modified: refreshing", sigFolder);
+                DatabaseReference refreshed = db.ref.refresh(sigFolder);
+                if(refreshed == db.ref) {
+                    db.stamp = stamp;
+                }
+                else {
+                    if(db.refCount == 0) {
+                        closeDatabase(db);
+                    }
+                    db = new LoadedDatabase(this, refreshed, stamp);
+                    current = db;
+                }
+            }
+            if(db == null) {
+                DatabaseReference ref = new DatabaseReference();
+                ref.loadAllHashCodes(sigFolder);
+                db = new LoadedDatabase(this, ref, stamp);
+                current = db;
+            }
+            db.refCount++;
+            synchronized(loadedDatabases) {
+                loadedDatabases.put(db.ref, db);
+            }
+            return db.ref;
+        }
+
+        synchronized void release(LoadedDatabase db) {
+            db.refCount--;
+            if(db.refCount > 0) {
+                return;
+            }
+            synchronized(loadedDatabases) {
+                loadedDatabases.remove(db.ref);
+            }
+            if(current == db) {
+                current = null;
+            }
+            closeDatabase(db);
+        }
+    }
+
+    private DatabaseReferenceService() {
+    }
+
+    /**
+     * Get the signature database for a folder, loading it if needed. Each call must be balanced by a
+     * call to {@link #release(DatabaseReference)}.
+     *
+     * @param sigFolder the signature folder
+     * @return the shared database (do not close it directly)
+     */
+    public static DatabaseReference acquire(File sigFolder) {
+        String key = getKey(sigFolder);
+        FolderHolder holder;
+        synchronized(holders) {
+            holder = holders.get(key);
+            if(holder == null) {
+                holder = new FolderHolder(sigFolder);
+                holders.put(key, holder);
+            }
+        }
+        return holder.acquire();
+    }
+
+    /**
+     * Release a database obtained by {@link #acquire(File)}. The database is closed when no
+     * execution holds it anymore.
+     *
+     * @param ref acquired database
+     */
+    public static void release(DatabaseReference ref) {
+        if(ref == null) {
+            return;
+        }
+        LoadedDatabase db;
+        synchronized(loadedDatabases) {
+            db = loadedDatabases.get(ref);
+        }
+        if(db == null) {
+            logger.warn("Release of an unknown signature database");
+            return;
+        }
+        db.holder.release(db);
+    }
+
+    /**
+     * Check whether an acquired database is the one currently given to new acquirers. The folder is
+     * not checked for modifications (see {@link #acquire(File)}).
+     *
+     * @param ref acquired database
+     * @return false if a newer database was built since, or if ref is unknown
+     */
+    public static boolean isCurrent(DatabaseReference ref) {
+        LoadedDatabase db;
+        synchronized(loadedDatabases) {
+            db = loadedDatabases.get(ref);
+        }
+        if(db == null) {
+            return false;
+        }
+        synchronized(db.holder) {
+            return db.holder.current == db;
+        }
+    }
+
+    private static void closeDatabase(LoadedDatabase db) {
+        db.ref.close();
+        // Just a hint to help jeb free memory consumption
+        System.gc();
+    }
+
+    private static String getKey(File sigFolder) {
+        try {
+            return sigFolder.getCanonicalPath();
+        }
+        catch(IOException e) {
+            return sigFolder.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Compute a cheap fingerprint of the signature folder, based on signature file names, sizes and
+     * modification dates.
+     */
+    static long computeStamp(File sigFolder) {
+        long stamp = 0;
+        File[] files = sigFolder.listFiles();
+        if(files == null) {
+            return stamp;
+        }
+        // order-independent: listFiles() does not guarantee any order
+        for(File f: files) {
+            if(f.isFile() && f.getName().endsWith(".sig")) {
+                long fileStamp = f.getAbsolutePath().hashCode();
+                fileStamp = 31 * fileStamp + f.length();
+                fileStamp = 31 * fileStamp + f.lastModified();
+                stamp += fileStamp * 0x9E3779B97F4A7C15L;
+            }
+            else if(f.isDirectory()) {
+                stamp += computeStamp(f);
+            }
+        }
+        return stamp;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstruction;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDalvikInstructionParameter;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
+
+/**
+ * Callers of each method of a dex unit, in compressed sparse row layout: callers of method
+ * <code>m</code> are stored in {@link #callers} (and the number of calls in {@link #counts}) from
+ * <code>offsets[m]</code> (inclusive) to <code>offsets[m + 1]</code> (exclusive), sorted by caller
+ * index.
+ * <p>
+ * Method indexes do not change on renaming: the graph is built once per dex unit (see
+ * {@link DexHashcodeList#getCallGraph(IDexUnit)}) and is immutable, so it can be read
+ * concurrently.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DexCallGraph {
+
+    private final int[] offsets;
+    private final int[] callers;
+    private final int[] counts;
+
+    private DexCallGraph(int[] offsets, int[] callers, int[] counts) {
+        this.offsets = offsets;
+        this.callers = callers;
+        this.counts = counts;
+    }
+
+    /**
+     * @param opcode dalvik opcode
+     * @return true if the instruction references a method to invoke
+     */
+    public static boolean isInvoke(int opcode) {
+        return (opcode >= 0x6E && opcode <= 0x72) // invoke-kind
+                || (opcode >= 0x74 && opcode <= 0x78) // invoke-kind/range
+                || opcode == 0xFA || opcode == 0xFB; // invoke-polymorphic(/range)
+    }
+
+    /**
+     * Build the caller graph, walking all instructions of internal methods once.
+     */
+    public static DexCallGraph build(IDexUnit unit) {
+        int methodCount = unit.getMethods().size();
+        // edges as (callee, caller, count) triples, aggregated per caller
+        IntArray edgeCallees = new IntArray();
+        IntArray edgeCallers = new IntArray();
+        IntArray edgeCounts = new IntArray();
+        IntArray callees = new IntArray();
+        List<? extends IDexClass> classes = unit.getClasses();
+        if(classes != null) {
+            for(IDexClass eClass: classes) {
+                List<? extends IDexMethod> methods = eClass.getMethods();
+                if(methods == null || methods.size() == 0) {
+                    continue;
+                }
+                for(IDexMethod m: methods) {
+                    if(!m.isInternal()) {
+                        continue;
+                    }
+                    IDexMethodData md = m.getData();
+                    if(md == null) {
+                        continue;
+                    }
+                    IDexCodeItem ci = md.getCodeItem();
+                    if(ci == null) {
+                        continue;
+                    }
+                    callees.clear();
+                    collectCallees(ci, methodCount, callees);
+                    if(callees.size == 0) {
+                        continue;
+                    }
+                    int[] sorted = callees.toArray();
+                    Arrays.sort(sorted);
+                    int caller = m.getIndex();
+                    for(int i = 0; i < sorted.length;) {
+                        int j = i + 1;
+                        while(j < sorted.length && sorted[j] == sorted[i]) {
+                            j++;
+                        }
+                        edgeCallees.add(sorted[i]);
+                        edgeCallers.add(caller);
+                        edgeCounts.add(j - i);
+                        i = j;
+                    }
+                }
+            }
+        }
+
+        // counting sort by callee
+        int[] offsets = new int[methodCount + 1];
+        for(int i = 0; i < edgeCallees.size; i++) {
+            offsets[edgeCallees.data[i] + 1]++;
+        }
+        for(int i = 0; i < methodCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] next = Arrays.copyOf(offsets, methodCount);
+        int[] callers = new int[edgeCallees.size];
+        int[] counts = new int[edgeCallees.size];
+        for(int i = 0; i < edgeCallees.size; i++) {
+            int pos = next[edgeCallees.data[i]]++;
+            callers[pos] = edgeCallers.data[i];
+            counts[pos] = edgeCounts.data[i];
+        }
+        DexCallGraph graph = new DexCallGraph(offsets, callers, counts);
+        // callers were added in class order, restore caller index order per callee
+        graph.sortCallers();
+        return graph;
+    }
+
+    private static void collectCallees(IDexCodeItem ci, int methodCount, IntArray callees) {
+        for(IDalvikInstruction insn: ci.getInstructions()) {
+            if(!isInvoke(insn.getOpcode())) {
+                continue;
+            }
+            if(insn.getParameterFirstIndexType() != IDalvikInstruction.INDEX_TO_METHOD) {
+                continue;
+            }
+            for(IDalvikInstructionParameter param: insn.getParameters()) {
+                if(param.getType() == IDalvikInstruction.TYPE_IDX) {
+                    int paraValue = (int)param.getValue();
+                    if(paraValue >= 0 && paraValue < methodCount) {
+                        callees.add(paraValue);
+                    }
+                }
+            }
+        }
+    }
+
+    private void sortCallers() {
+        for(int m = 0; m < offsets.length - 1; m++) {
+            int from = offsets[m];
+            int to = offsets[m + 1];
+            // insertion sort: caller lists are short
+            for(int i = from + 1; i < to; i++) {
+                int caller = callers[i];
+                int count = counts[i];
+                int j = i - 1;
+                while(j >= from && callers[j] > caller) {
+                    callers[j + 1] = callers[j];
+                    counts[j + 1] = counts[j];
+                    j--;
+                }
+                callers[j + 1] = caller;
+                counts[j + 1] = count;
+            }
+        }
+    }
+
+    private boolean isValid(int callee) {
+        return callee >= 0 && callee < offsets.length - 1;
+    }
+
+    /**
+     * @param callee method index
+     * @return number of distinct methods calling callee
+     */
+    public int getCallerCount(int callee) {
+        if(!isValid(callee)) {
+            return 0;
+        }
+        return offsets[callee + 1] - offsets[callee];
+    }
+
+    /**
+     * @param callee method index
+     * @param i caller position, from 0 to {@link #getCallerCount(int)} (exclusive)
+     * @return caller method index
+     */
+    public int getCaller(int callee, int i) {
+        return callers[offsets[callee] + i];
+    }
+
+    /**
+     * @param callee method index
+     * @param i caller position, from 0 to {@link #getCallerCount(int)} (exclusive)
+     * @return number of calls to callee performed by this caller
+     */
+    public int getCallCount(int callee, int i) {
+        return counts[offsets[callee] + i];
+    }
+
+    /**
+     * @return total number of distinct (caller, callee) edges
+     */
+    public int getEdgeCount() {
+        return callers.length;
+    }
+
+    private static class IntArray {
+        private int[] data = new int[16];
+        private int size;
+
+        void add(int value) {
+            if(size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.pnf.androsig.apply.util.DexUtilLocal;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexType;
+
+/**
+ * Reverse class references of a dex unit: for each class, the classes whose matching may benefit
+ * from a new match of this class. A class A depends on a class B when:
+ * <li>B is used in the prototype (parameters or return value) of a method of A</li>
+ * <li>a method of A calls a method of B or is called by a method of B</li>
+ * <li>A is an inner class of B, or B is an inner class of A</li>
+ * <li>B is the super class or an implemented interface of A, or the reverse</li>
+ * <p>
+ * Built once per dex unit, before any renaming: class indexes are stable afterward.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DexClassDependencies {
+
+    /** dependent classes, with class index as key */
+    private Map<Integer, Set<Integer>> dependents = new HashMap<>();
+
+    /** owner class index, with method index as key (internal methods only) */
+    private Map<Integer, Integer> methodOwners = new HashMap<>();
+
+    public DexClassDependencies(IDexUnit unit, DexCallGraph callGraph) {
+        List<? extends IDexClass> classes = unit.getClasses();
+        if(classes == null || classes.size() == 0) {
+            return;
+        }
+        Map<String, Integer> classIndexes = new HashMap<>();
+        for(IDexClass eClass: classes) {
+            classIndexes.put(eClass.getSignature(true), eClass.getIndex());
+        }
+        List<? extends IDexType> types = unit.getTypes();
+        for(IDexClass eClass: classes) {
+            int classIndex = eClass.getIndex();
+            String signature = eClass.getSignature(true);
+
+            // inner/outer
+            if(DexUtilLocal.isInnerClass(signature)) {
+                addBidirectional(classIndex, classIndexes.get(DexUtilLocal.getParentSignature(signature)));
+            }
+
+            // hierarchy
+            for(IDexType supertype: eClass.getSupertypes()) {
+                addBidirectional(classIndex, classIndexes.get(supertype.getSignature(true)));
+            }
+            for(IDexType itf: eClass.getImplementedInterfaces()) {
+                addBidirectional(classIndex, classIndexes.get(itf.getSignature(true)));
+            }
+
+            // prototypes
+            List<? extends IDexMethod> methods = eClass.getMethods();
+            if(methods == null || methods.size() == 0) {
+                continue;
+            }
+            for(IDexMethod m: methods) {
+                if(!m.isInternal()) {
+                    continue;
+                }
+                methodOwners.put(m.getIndex(), classIndex);
+                IDexPrototype proto = unit.getPrototype(m.getPrototypeIndex());
+                addDependent(getClassIndex(types, classIndexes, proto.getReturnTypeIndex()), classIndex);
+                for(int paramType: proto.getParameterTypeIndexes()) {
+                    addDependent(getClassIndex(types, classIndexes, paramType), classIndex);
+                }
+            }
+        }
+
+        // callers
+        for(Entry<Integer, Integer> callee: methodOwners.entrySet()) {
+            int calleeClass = callee.getValue();
+            int callerCount = callGraph.getCallerCount(callee.getKey());
+            for(int i = 0; i < callerCount; i++) {
+                Integer callerClass = methodOwners.get(callGraph.getCaller(callee.getKey(), i));
+                if(callerClass != null) {
+                    addBidirectional(callerClass, calleeClass);
+                }
+            }
+        }
+    }
+
+    private static Integer getClassIndex(List<? extends IDexType> types, Map<String, Integer> classIndexes,
+            int typeIndex) {
+        if(typeIndex < 0 || typeIndex >= types.size()) {
+            return null;
+        }
+        String typeSignature = types.get(typeIndex).getSignature(true);
+        int dim = 0;
+        while(dim < typeSignature.length() && typeSignature.charAt(dim) == '[') {
+            dim++;
+        }
+        return classIndexes.get(dim == 0 ? typeSignature: typeSignature.substring(dim));
+    }
+
+    private void addBidirectional(int classIndex, Integer otherIndex) {
+        if(otherIndex == null) {
+            return;
+        }
+        addDependent(otherIndex, classIndex);
+        addDependent(classIndex, otherIndex);
+    }
+
+    private void addDependent(Integer classIndex, int dependent) {
+        if(classIndex == null || classIndex == dependent) {
+            return;
+        }
+        Set<Integer> deps = dependents.get(classIndex);
+        if(deps == null) {
+            deps = new HashSet<>();
+            dependents.put(classIndex, deps);
+        }
+        deps.add(dependent);
+    }
+
+    /**
+     * @param methodIndex internal method index
+     * @return index of class declaring the method, or null
+     */
+    public Integer getMethodOwner(int methodIndex) {
+        return methodOwners.get(methodIndex);
+    }
+
+    /**
+     * Compute the classes impacted by modified classes: the modified classes themselves and their
+     * dependents.
+     *
+     * @param modifiedClasses class indexes
+     * @return impacted class indexes
+     */
+    public Set<Integer> getImpactedClasses(Collection<Integer> modifiedClasses) {
+        Set<Integer> impacted = new HashSet<>(modifiedClasses);
+        for(Integer classIndex: modifiedClasses) {
+            Set<Integer> deps = dependents.get(classIndex);
+            if(deps != null) {
+                impacted.addAll(deps);
+            }
+        }
+        return impacted;
+    }
+}
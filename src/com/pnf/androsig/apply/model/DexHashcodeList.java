@@ -5,9 +5,7 @@
  */
 package com.pnf.androsig.apply.model;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import com.pnf.androsig.common.SignatureHandler;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
@@ -24,8 +22,13 @@ import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
  */
 public class DexHashcodeList {
 
-    private static final String[] EMPTY = new String[]{null, null};
-    private Map<Integer, String[]> methodHashcodes = new HashMap<>();
+    /** hashcodes, with method index as key (null if method has no code) */
+    private String[] tightHashcodes = new String[0];
+    private String[] looseHashcodes = new String[0];
+
+    private DexSnapshot snapshot;
+
+    private DexCallGraph callGraph;
 
     /**
      * Load all current apk hash codes.
@@ -33,6 +36,10 @@ public class DexHashcodeList {
      * @param unit mandatory target unit
      */
     public void loadAPKHashcodes(IDexUnit unit) {
+        snapshot = new DexSnapshot(unit);
+        int methodCount = unit.getMethods().size();
+        tightHashcodes = new String[methodCount];
+        looseHashcodes = new String[methodCount];
         List<? extends IDexClass> classes = unit.getClasses();
         if(classes == null || classes.size() == 0) {
             return;
@@ -51,24 +58,46 @@ public class DexHashcodeList {
                     continue;
                 }
                 IDexCodeItem ci = md.getCodeItem();
-                if(ci == null) {
-                    methodHashcodes.put(m.getIndex(), EMPTY);
-                }
-                else {
-                    methodHashcodes.put(m.getIndex(), new String[]{SignatureHandler.generateTightHashcode(ci),
-                            SignatureHandler.generateLooseHashcode(ci)});
+                if(ci != null) {
+                    tightHashcodes[m.getIndex()] = SignatureHandler.generateTightHashcode(ci);
+                    looseHashcodes[m.getIndex()] = SignatureHandler.generateLooseHashcode(ci);
                 }
             }
         }
     }
 
     public String getTightHashcode(IDexMethod method) {
-        String[] hashcodes = methodHashcodes.get(method.getIndex());
-        return hashcodes == null ? null: hashcodes[0];
+        return getTightHashcode(method.getIndex());
+    }
+
+    public String getTightHashcode(int methodIndex) {
+        return methodIndex < tightHashcodes.length ? tightHashcodes[methodIndex]: null;
     }
 
     public String getLooseHashcode(IDexMethod method) {
-        String[] hashcodes = methodHashcodes.get(method.getIndex());
-        return hashcodes == null ? null: hashcodes[1];
+        return getLooseHashcode(method.getIndex());
+    }
+
+    public String getLooseHashcode(int methodIndex) {
+        return methodIndex < looseHashcodes.length ? looseHashcodes[methodIndex]: null;
+    }
+
+    /**
+     * Get the structure snapshot of the unit, built by {@link #loadAPKHashcodes(IDexUnit)}.
+     */
+    public DexSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the caller graph of the unit, built on first call and reused for all passes.
+     * 
+     * @param unit unit which hashcodes were loaded
+     */
+    public synchronized DexCallGraph getCallGraph(IDexUnit unit) {
+        if(callGraph == null) {
+            callGraph = DexCallGraph.build(unit);
+        }
+        return callGraph;
     }
 }
@@ -0,0 +1,555 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexCodeItem;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethodData;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexType;
+
+/**
+ * Compact copy of the dex unit structure used by matching hot loops, indexed by dex pool indexes:
+ * <li>per method: instruction count, internal flag, prototype, name and declaring class</li>
+ * <li>per class: method range, super type and interfaces</li>
+ * <li>per prototype: shorty and original/effective prototype strings</li>
+ * <li>per type: original signature</li>
+ * <p>
+ * Structure is immutable (indexes do not change on renaming), so the snapshot can be read
+ * concurrently.
+ * <p>
+ * The snapshot also holds a rename overlay: matching rounds record renames and package moves here
+ * (see {@link #renameClass(int, String)}, {@link #moveClass(int, String)},
+ * {@link #renameMethod(int, String)}) instead of modifying the unit, and effective names
+ * ({@link #getClassSignature(int)}, {@link #getMethodName(int)}, {@link #getEffectivePrototype(int)}...)
+ * are computed the same way JEB would. Renames are applied to the unit once matching is over. The
+ * overlay must only be modified when no concurrent read is performed.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class DexSnapshot {
+    /** instruction count for methods without code (abstract, native, external) */
+    public static final int NO_CODE = -1;
+
+    // methods
+    private final int[] instructionCounts;
+    private final boolean[] internals;
+    private final int[] methodPrototypes;
+    private final int[] methodNames;
+    private final int[] methodClasses;
+    private final int[] methodClassTypes;
+    /** method names when snapshot was built (may include previous renames) */
+    private final String[] methodBaseNames;
+
+    // classes
+    private final int[] classMethodOffsets;
+    private final int[] classMethods;
+    private final int[] classInstructionCounts;
+    private final int[] superTypes;
+    private final int[][] interfaces;
+    /** class signatures when snapshot was built (may include previous renames) */
+    private final String[] classBaseSignatures;
+    private final int[] parentClasses;
+
+    // prototypes and types
+    private final String[] shorties;
+    private final String[] prototypes;
+    private final int[] prototypeReturns;
+    private final int[][] prototypeParams;
+    private final String[] types;
+    /** class index of type (base type for arrays), -1 if not defined in unit */
+    private final int[] typeClasses;
+    private final int[] typeDimensions;
+
+    // rename overlay
+    private final String[] classRenames;
+    private final String[] classPackages;
+    private final String[] methodRenames;
+
+    private final PrototypeTable prototypeTable = new PrototypeTable();
+
+    // effective names caches, cleared on renaming
+    private volatile String[] effectiveClassSignatures;
+    private volatile String[] effectivePrototypes;
+    private volatile PrototypeDescriptor[] effectiveDescriptors;
+    private volatile Map<String, Integer> effectiveClassIndexes;
+    private volatile Map<String, Integer> effectiveMethodIndexes;
+
+    DexSnapshot(IDexUnit unit) {
+        List<? extends IDexMethod> allMethods = unit.getMethods();
+        int methodCount = allMethods.size();
+        instructionCounts = new int[methodCount];
+        internals = new boolean[methodCount];
+        methodPrototypes = new int[methodCount];
+        methodNames = new int[methodCount];
+        methodClasses = new int[methodCount];
+        methodClassTypes = new int[methodCount];
+        methodBaseNames = new String[methodCount];
+        methodRenames = new String[methodCount];
+        Arrays.fill(instructionCounts, NO_CODE);
+        Arrays.fill(methodClasses, -1);
+        for(IDexMethod m: allMethods) {
+            int index = m.getIndex();
+            methodPrototypes[index] = m.getPrototypeIndex();
+            methodNames[index] = m.getNameIndex();
+            methodClassTypes[index] = m.getClassTypeIndex();
+            methodBaseNames[index] = m.getName(true);
+        }
+
+        List<? extends IDexClass> classes = unit.getClasses();
+        int classCount = classes == null ? 0: classes.size();
+        classBaseSignatures = new String[classCount];
+        String[] originalSignatures = new String[classCount];
+        parentClasses = new int[classCount];
+        classRenames = new String[classCount];
+        classPackages = new String[classCount];
+        Map<String, Integer> originalClassIndexes = new HashMap<>();
+        for(int i = 0; i < classCount; i++) {
+            IDexClass eClass = classes.get(i);
+            classBaseSignatures[eClass.getIndex()] = eClass.getSignature(true);
+            originalSignatures[eClass.getIndex()] = eClass.getSignature(false);
+            originalClassIndexes.put(eClass.getSignature(false), eClass.getIndex());
+        }
+        for(int i = 0; i < classCount; i++) {
+            String signature = originalSignatures[i];
+            Integer parent = signature.contains("$")
+                    ? originalClassIndexes.get(signature.substring(0, signature.lastIndexOf("$")) + ";"): null;
+            parentClasses[i] = parent == null ? -1: parent;
+        }
+
+        List<? extends IDexType> allTypes = unit.getTypes();
+        types = new String[allTypes.size()];
+        typeClasses = new int[allTypes.size()];
+        typeDimensions = new int[allTypes.size()];
+        for(IDexType type: allTypes) {
+            int typeId = type.getIndex();
+            String signature = type.getSignature(false);
+            types[typeId] = signature;
+            int dim = 0;
+            while(dim < signature.length() && signature.charAt(dim) == '[') {
+                dim++;
+            }
+            typeDimensions[typeId] = dim;
+            Integer classIndex = originalClassIndexes.get(dim == 0 ? signature: signature.substring(dim));
+            typeClasses[typeId] = classIndex == null ? -1: classIndex;
+        }
+
+        List<? extends IDexPrototype> allPrototypes = unit.getPrototypes();
+        shorties = new String[allPrototypes.size()];
+        prototypes = new String[allPrototypes.size()];
+        prototypeReturns = new int[allPrototypes.size()];
+        prototypeParams = new int[allPrototypes.size()][];
+        for(int i = 0; i < allPrototypes.size(); i++) {
+            IDexPrototype proto = allPrototypes.get(i);
+            shorties[i] = proto.getShorty();
+            prototypes[i] = proto.generate(false);
+            prototypeReturns[i] = proto.getReturnTypeIndex();
+            prototypeParams[i] = proto.getParameterTypeIndexes();
+        }
+        effectivePrototypes = new String[prototypes.length];
+        effectiveDescriptors = new PrototypeDescriptor[prototypes.length];
+        effectiveClassSignatures = new String[classCount];
+
+        classMethodOffsets = new int[classCount + 1];
+        classInstructionCounts = new int[classCount];
+        superTypes = new int[classCount];
+        interfaces = new int[classCount][];
+        int total = 0;
+        for(int i = 0; i < classCount; i++) {
+            List<? extends IDexMethod> methods = classes.get(i).getMethods();
+            total += methods == null ? 0: methods.size();
+        }
+        classMethods = new int[total];
+        int pos = 0;
+        for(int i = 0; i < classCount; i++) {
+            IDexClass eClass = classes.get(i);
+            int classIndex = eClass.getIndex();
+            classMethodOffsets[classIndex] = pos;
+            List<? extends IDexType> supers = eClass.getSupertypes();
+            superTypes[classIndex] = supers == null || supers.isEmpty() ? -1: supers.get(0).getIndex();
+            List<? extends IDexType> itfs = eClass.getImplementedInterfaces();
+            int[] itfIds = new int[itfs == null ? 0: itfs.size()];
+            for(int j = 0; j < itfIds.length; j++) {
+                itfIds[j] = itfs.get(j).getIndex();
+            }
+            interfaces[classIndex] = itfIds;
+            List<? extends IDexMethod> methods = eClass.getMethods();
+            if(methods != null) {
+                for(IDexMethod m: methods) {
+                    int index = m.getIndex();
+                    classMethods[pos++] = index;
+                    methodClasses[index] = classIndex;
+                    if(!m.isInternal()) {
+                        continue;
+                    }
+                    internals[index] = true;
+                    IDexMethodData md = m.getData();
+                    if(md == null) {
+                        continue;
+                    }
+                    IDexCodeItem ci = md.getCodeItem();
+                    if(ci == null) {
+                        continue;
+                    }
+                    instructionCounts[index] = ci.getInstructions().size();
+                    classInstructionCounts[classIndex] += instructionCounts[index];
+                }
+            }
+            classMethodOffsets[classIndex + 1] = pos;
+        }
+    }
+
+    private void invalidateClassNames() {
+        effectiveClassSignatures = new String[effectiveClassSignatures.length];
+        effectivePrototypes = new String[prototypes.length];
+        effectiveDescriptors = new PrototypeDescriptor[prototypes.length];
+        effectiveClassIndexes = null;
+        effectiveMethodIndexes = null;
+    }
+
+    /**
+     * Rename a class (in overlay).
+     * 
+     * @param classIndex class to rename
+     * @param simpleName new simple name (without package or outer class)
+     */
+    public void renameClass(int classIndex, String simpleName) {
+        if(simpleName.equals(classRenames[classIndex])) {
+            return;
+        }
+        classRenames[classIndex] = simpleName;
+        invalidateClassNames();
+    }
+
+    /**
+     * Move a top-level class to another package (in overlay).
+     * 
+     * @param classIndex class to move
+     * @param packagePath target package, in the form <code>Lcom/foo;</code>
+     */
+    public void moveClass(int classIndex, String packagePath) {
+        String prefix = packagePath.substring(0, packagePath.length() - 1) + "/";
+        if(prefix.equals(classPackages[classIndex])) {
+            return;
+        }
+        classPackages[classIndex] = prefix;
+        invalidateClassNames();
+    }
+
+    /**
+     * Rename a method (in overlay).
+     */
+    public void renameMethod(int methodIndex, String name) {
+        if(name.equals(methodRenames[methodIndex])) {
+            return;
+        }
+        methodRenames[methodIndex] = name;
+        effectiveMethodIndexes = null;
+    }
+
+    /**
+     * @return new simple name of class recorded in overlay, or null
+     */
+    public String getClassRename(int classIndex) {
+        return classRenames[classIndex];
+    }
+
+    /**
+     * @return target package of class recorded in overlay (in the form <code>Lcom/foo;</code>), or
+     *         null
+     */
+    public String getClassMove(int classIndex) {
+        String prefix = classPackages[classIndex];
+        return prefix == null ? null: prefix.substring(0, prefix.length() - 1) + ";";
+    }
+
+    /**
+     * @return new name of method recorded in overlay, or null
+     */
+    public String getMethodRename(int methodIndex) {
+        return methodRenames[methodIndex];
+    }
+
+    public int getClassCount() {
+        return classBaseSignatures.length;
+    }
+
+    public int getMethodCount() {
+        return instructionCounts.length;
+    }
+
+    /**
+     * @return class signature with overlay renames (equivalent of getSignature(true))
+     */
+    public String getClassSignature(int classIndex) {
+        String[] cache = effectiveClassSignatures;
+        String signature = cache[classIndex];
+        if(signature == null) {
+            signature = buildClassSignature(classIndex);
+            cache[classIndex] = signature;
+        }
+        return signature;
+    }
+
+    private String buildClassSignature(int classIndex) {
+        String base = classBaseSignatures[classIndex];
+        String prefix;
+        int simpleStart;
+        int lastDollar = base.lastIndexOf('$');
+        if(lastDollar >= 0) {
+            simpleStart = lastDollar + 1;
+            int parent = parentClasses[classIndex];
+            if(parent >= 0) {
+                String parentSignature = getClassSignature(parent);
+                prefix = parentSignature.substring(0, parentSignature.length() - 1) + "$";
+            }
+            else {
+                prefix = base.substring(0, simpleStart);
+            }
+        }
+        else {
+            int lastSlash = base.lastIndexOf('/');
+            simpleStart = lastSlash >= 0 ? lastSlash + 1: 1;
+            prefix = classPackages[classIndex] != null ? classPackages[classIndex]: base.substring(0, simpleStart);
+        }
+        String simpleName = classRenames[classIndex] != null ? classRenames[classIndex]
+                : base.substring(simpleStart, base.length() - 1);
+        return prefix + simpleName + ";";
+    }
+
+    /**
+     * @param signature class signature with overlay renames
+     * @return class index, or -1 if no class of the unit has this signature
+     */
+    public int getClassIndex(String signature) {
+        Map<String, Integer> lookup = effectiveClassIndexes;
+        if(lookup == null) {
+            lookup = buildClassLookup();
+        }
+        Integer index = lookup.get(signature);
+        return index == null ? -1: index;
+    }
+
+    private synchronized Map<String, Integer> buildClassLookup() {
+        Map<String, Integer> lookup = effectiveClassIndexes;
+        if(lookup == null) {
+            lookup = new HashMap<>();
+            for(int i = 0; i < classBaseSignatures.length; i++) {
+                lookup.put(getClassSignature(i), i);
+            }
+            effectiveClassIndexes = lookup;
+        }
+        return lookup;
+    }
+
+    /**
+     * @param signature class signature with overlay renames
+     * @return class of the unit, or null
+     */
+    public IDexClass getClass(IDexUnit unit, String signature) {
+        int index = getClassIndex(signature);
+        return index < 0 ? null: unit.getClass(index);
+    }
+
+    /**
+     * @return type signature with overlay renames
+     */
+    public String getTypeEffectiveSignature(int typeId) {
+        if(typeId < 0) {
+            return null;
+        }
+        int classIndex = typeClasses[typeId];
+        if(classIndex < 0) {
+            return types[typeId];
+        }
+        String classSignature = getClassSignature(classIndex);
+        int dim = typeDimensions[typeId];
+        return dim == 0 ? classSignature: types[typeId].substring(0, dim) + classSignature;
+    }
+
+    /**
+     * @return method name with overlay renames (equivalent of getName(true))
+     */
+    public String getMethodName(int methodIndex) {
+        String name = methodRenames[methodIndex];
+        return name != null ? name: methodBaseNames[methodIndex];
+    }
+
+    /**
+     * @return method signature with overlay renames (equivalent of getSignature(true))
+     */
+    public String getMethodSignature(int methodIndex) {
+        return getTypeEffectiveSignature(methodClassTypes[methodIndex]) + "->" + getMethodName(methodIndex)
+                + getMethodEffectivePrototype(methodIndex);
+    }
+
+    /**
+     * @param signature method signature with overlay renames
+     * @return method index, or -1
+     */
+    public int getMethodIndex(String signature) {
+        Map<String, Integer> lookup = effectiveMethodIndexes;
+        if(lookup == null) {
+            lookup = buildMethodLookup();
+        }
+        Integer index = lookup.get(signature);
+        return index == null ? -1: index;
+    }
+
+    private synchronized Map<String, Integer> buildMethodLookup() {
+        Map<String, Integer> lookup = effectiveMethodIndexes;
+        if(lookup == null) {
+            lookup = new HashMap<>();
+            for(int i = 0; i < methodBaseNames.length; i++) {
+                lookup.put(getMethodSignature(i), i);
+            }
+            effectiveMethodIndexes = lookup;
+        }
+        return lookup;
+    }
+
+    /**
+     * @param signature method signature with overlay renames
+     * @return method of the unit, or null
+     */
+    public IDexMethod getMethod(IDexUnit unit, String signature) {
+        int index = getMethodIndex(signature);
+        return index < 0 ? null: unit.getMethod(index);
+    }
+
+    /**
+     * @return instruction count or {@link #NO_CODE}
+     */
+    public int getInstructionCount(int methodIndex) {
+        return instructionCounts[methodIndex];
+    }
+
+    public boolean isInternal(int methodIndex) {
+        return internals[methodIndex];
+    }
+
+    public int getPrototypeId(int methodIndex) {
+        return methodPrototypes[methodIndex];
+    }
+
+    public int getNameId(int methodIndex) {
+        return methodNames[methodIndex];
+    }
+
+    /**
+     * @return index of declaring class, or -1 for methods not defined in this unit
+     */
+    public int getClassId(int methodIndex) {
+        return methodClasses[methodIndex];
+    }
+
+    public int getClassMethodCount(int classIndex) {
+        return classMethodOffsets[classIndex + 1] - classMethodOffsets[classIndex];
+    }
+
+    /**
+     * @param i method position in class, from 0 to {@link #getClassMethodCount(int)} (exclusive)
+     * @return method index
+     */
+    public int getClassMethod(int classIndex, int i) {
+        return classMethods[classMethodOffsets[classIndex] + i];
+    }
+
+    /**
+     * @return total number of instructions of internal methods of the class
+     */
+    public int getClassInstructionCount(int classIndex) {
+        return classInstructionCounts[classIndex];
+    }
+
+    /**
+     * @return super type id, or -1
+     */
+    public int getSuperType(int classIndex) {
+        return superTypes[classIndex];
+    }
+
+    public int[] getInterfaces(int classIndex) {
+        return interfaces[classIndex];
+    }
+
+    /**
+     * @return original type signature
+     */
+    public String getTypeSignature(int typeId) {
+        return typeId < 0 ? null: types[typeId];
+    }
+
+    public String getShorty(int prototypeId) {
+        return shorties[prototypeId];
+    }
+
+    /**
+     * @return prototype with original class names
+     */
+    public String getPrototype(int prototypeId) {
+        return prototypes[prototypeId];
+    }
+
+    /**
+     * @return prototype with overlay renames (equivalent of generate(true))
+     */
+    public String getEffectivePrototype(int prototypeId) {
+        String[] cache = effectivePrototypes;
+        String proto = cache[prototypeId];
+        if(proto == null) {
+            // concurrent threads may compute the same value
+            StringBuilder stb = new StringBuilder("(");
+            for(int param: prototypeParams[prototypeId]) {
+                stb.append(getTypeEffectiveSignature(param));
+            }
+            stb.append(")").append(getTypeEffectiveSignature(prototypeReturns[prototypeId]));
+            proto = stb.toString();
+            cache[prototypeId] = proto;
+        }
+        return proto;
+    }
+
+    public String getMethodShorty(int methodIndex) {
+        return shorties[methodPrototypes[methodIndex]];
+    }
+
+    public String getMethodEffectivePrototype(int methodIndex) {
+        return getEffectivePrototype(methodPrototypes[methodIndex]);
+    }
+
+    /**
+     * @return table of parsed prototypes, to be shared with signature prototypes
+     */
+    public PrototypeTable getPrototypeTable() {
+        return prototypeTable;
+    }
+
+    /**
+     * @return parsed effective prototype
+     */
+    public PrototypeDescriptor getEffectivePrototypeDescriptor(int prototypeId) {
+        PrototypeDescriptor[] cache = effectiveDescriptors;
+        PrototypeDescriptor desc = cache[prototypeId];
+        if(desc == null) {
+            desc = prototypeTable.get(getEffectivePrototype(prototypeId));
+            cache[prototypeId] = desc;
+        }
+        return desc;
+    }
+
+    public PrototypeDescriptor getMethodEffectivePrototypeDescriptor(int methodIndex) {
+        return getEffectivePrototypeDescriptor(methodPrototypes[methodIndex]);
+    }
+}
@@ -20,10 +20,26 @@ public interface ISignatureFile extends Closeable {
 
     List<MethodSignature> getLooseSignatures(String hashcode);
 
+    /**
+     * @return tight signatures accepted by filter, or null if there is none
+     */
+    List<MethodSignature> getTightSignatures(String hashcode, SignatureFilter filter);
+
+    /**
+     * @return loose signatures accepted by filter, or null if there is none
+     */
+    List<MethodSignature> getLooseSignatures(String hashcode, SignatureFilter filter);
+
     boolean hasSignaturesForClassname(String className);
 
     List<MethodSignature> getSignaturesForClassname(String className, boolean exactName);
 
+    /**
+     * @param prototype method prototype, or null to get all methods with this name
+     * @return signatures of a method of class (empty list if there is none)
+     */
+    List<MethodSignature> getSignaturesForMethod(String className, String methodName, String prototype);
+
     int getAllSignatureCount();
 
     List<MethodSignature> getParent(String className);
@@ -13,16 +13,22 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 
 import com.pnfsoftware.jeb.util.encoding.Conversion;
+import com.pnfsoftware.jeb.util.format.Strings;
 import com.pnfsoftware.jeb.util.io.EndianUtil;
 import com.pnfsoftware.jeb.util.io.IO;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
@@ -37,37 +43,73 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
  */
 public class IndexedSignatureFile implements ISignatureFile {
 
-    private static final int CURRENT_INDEX_VERSION = 2;
+    private static final int CURRENT_INDEX_VERSION = 6;
     private static final boolean FORCE_GENERATION = false;
     private static final ILogger logger = GlobalLog.getLogger(IndexedSignatureFile.class);
 
+    /** index file sections, in file order */
+    private static final int SECTION_TIGHT = 0;
+    private static final int SECTION_LOOSE = 1;
+    private static final int SECTION_CLASSES = 2;
+    private static final int SECTION_METHODS = 3;
+    private static final int SECTION_TIGHT_CLASSES = 4;
+    private static final int SECTION_LOOSE_CLASSES = 5;
+    private static final int SECTION_CLASS_SHAPES = 6;
+
+    /** ints per line in classes and methods sections: start, end */
+    private static final int LINE_SIZE = 2;
+    /** ints per line in tight and loose sections: start, end, shorty hash, opcount, class id */
+    private static final int POSTING_SIZE = 5;
+
     private Map<String, List<Integer>> tightSignaturesIdx = new HashMap<>();
     private Map<String, List<Integer>> looseSignaturesIdx = new HashMap<>();
     private Map<String, List<Integer>> signaturesByClassnameIdx = new HashMap<>();
-    private Map<String, List<Integer>> signaturesByMethodsIdx = new HashMap<>();
+    /** lines of each method, with (class id, method name id) as key (see {@link #getMethodKey(String, String)}) */
+    private Map<Long, int[]> signaturesByMethodsIdx = new HashMap<>();
+    private Map<String, Integer> methodNameIds = new HashMap<>();
 
     private Map<String, List<MethodSignature>> tightSignatures = new HashMap<>();
     private Map<String, List<MethodSignature>> looseSignatures = new HashMap<>();
     private Map<String, List<MethodSignature>> signaturesByClassname = new HashMap<>();
-    private Map<String, List<MethodSignature>> signaturesByMethod = new HashMap<>();
+    /** merged signatures of each method name (all prototypes), with method key as key */
+    private Map<Long, List<MethodSignature>> signaturesByMethod = new HashMap<>();
     private Map<String, List<MethodSignature>> metaByClassname = new HashMap<>();
+    /** sorted class names: class id is the position in list */
+    private List<String> classNamesById = new ArrayList<>();
     private LibraryInfo libraryInfo;
     private int allSignatureCount = 0;
 
     private File sigFile;
     private RandomAccessFile f = null;
+    /** stamp of the signature file when it was indexed (see {@link SignatureFileFactory#getFileStamp(File)}) */
+    private long[] sigStamp;
+    /** true if signature file was modified since it was indexed */
+    private volatile boolean stale;
 
     public boolean loadSignatures(File sigFile) {
+        return loadSignatures(sigFile, null);
+    }
+
+    /**
+     * @param expectedStamp stamp of the signature file when the database indexed it, or null to use
+     *        its current stamp. If the file does not match it anymore, it was rewritten: its lines
+     *        are not available and this instance stays empty.
+     */
+    public boolean loadSignatures(File sigFile, long[] expectedStamp) {
         if(this.sigFile != null) {
             throw new RuntimeException("Can only load one signature file");
         }
         this.sigFile = sigFile;
+        sigStamp = expectedStamp == null ? SignatureFileFactory.getFileStamp(sigFile): expectedStamp;
+        Charset utf8 = Charset.forName("UTF-8");
+        libraryInfo = getLibraryInfo(sigFile, utf8);
+        if(checkModified()) {
+            return true;
+        }
         File indexFile = getIndexFile(sigFile);
         if(!indexFile.exists()) {
             return false;
         }
-        Charset utf8 = Charset.forName("UTF-8");
-        libraryInfo = getLibraryInfo(sigFile, utf8);
 
         try {
             byte[] data = Files.readAllBytes(indexFile.toPath());
@@ -83,34 +125,41 @@ public class IndexedSignatureFile implements ISignatureFile {
                     return false;
                 }
             }
+            startIndex = index;
             Map<String, List<Integer>> currentList = tightSignaturesIdx;
             while(index < data.length) {
+                if(index == startIndex && IndexLine.isSectionSeparator(data[index])) {
+                    // end of section (may be empty)
+                    index++;
+                    startIndex = index;
+                    if(currentList == tightSignaturesIdx) {
+                        currentList = looseSignaturesIdx;
+                    }
+                    else if(currentList == looseSignaturesIdx) {
+                        currentList = signaturesByClassnameIdx;
+                    }
+                    else if(currentList == signaturesByClassnameIdx) {
+                        currentList = null; // methods section
+                    }
+                    else {
+                        // class postings sections are only used by populate
+                        break;
+                    }
+                    continue;
+                }
                 if(IndexLine.isSeparator(data[index])) {
                     IndexLine line = IndexLine.parseLine(data, startIndex, index, utf8, false);
-                    currentList.put(line.mhash, line.indexes);
+                    if(currentList == null) {
+                        addMethodLines(line.mhash, line.indexes);
+                    }
+                    else {
+                        currentList.put(line.mhash, line.indexes);
+                    }
                     index = line.index;
                     startIndex = index;
                     if(currentList == signaturesByClassnameIdx) {
                         allSignatureCount += line.nb;
-                    }
-                    if(index >= data.length) {
-                        break;
-                    }
-                    if(IndexLine.isSectionSeparator(data[index])) {
-                        index++;
-                        startIndex = index;
-                        if(currentList == tightSignaturesIdx) {
-                            currentList = looseSignaturesIdx;
-                        }
-                        else if(currentList == looseSignaturesIdx) {
-                            currentList = signaturesByClassnameIdx;
-                        }
-                        else if(currentList == signaturesByClassnameIdx) {
-                            currentList = signaturesByMethodsIdx;
-                        }
-                        else {
-                            break;
-                        }
+                        classNamesById.add(line.mhash);
                     }
                     continue;
                 }
@@ -124,6 +173,45 @@ public class IndexedSignatureFile implements ISignatureFile {
         return true;
     }
 
+    /**
+     * Signature files may be rewritten in place while a database using them is still alive: the
+     * line addresses of this index would then point to another content. The stamp is checked when
+     * the file is loaded, then when the database notices a modification of its folder (see
+     * {@link #setModified()}), not on each read.
+     * 
+     * @return true if the signature file was modified since it was indexed (no line is read anymore)
+     */
+    private boolean checkModified() {
+        if(!stale && !Arrays.equals(sigStamp, SignatureFileFactory.getFileStamp(sigFile))) {
+            setModified();
+        }
+        return stale;
+    }
+
+    /**
+     * Signature file was modified or removed since it was indexed: no line is read anymore.
+     */
+    void setModified() {
+        if(!stale) {
+            logger.warn("Signature file %s was modified since it was indexed: ignored until database is refreshed",
+                    sigFile);
+            stale = true;
+        }
+    }
+
+    /**
+     * @return signature file, or null if it was modified since it was indexed
+     */
+    private RandomAccessFile openSigFile() throws IOException {
+        if(stale) {
+            return null;
+        }
+        if(f == null) {
+            f = new RandomAccessFile(sigFile, "r");
+        }
+        return f;
+    }
+
     private LibraryInfo getLibraryInfo(File sigFile, Charset encoding) {
         int version = 0;
         String libname = "Unknown library code";
@@ -178,6 +266,40 @@ public class IndexedSignatureFile implements ISignatureFile {
         return null;
     }
 
+    private void addMethodLines(String key, List<Integer> indexes) {
+        int sep = key.indexOf("->");
+        if(sep < 0) {
+            return;
+        }
+        int classId = Collections.binarySearch(classNamesById, key.substring(0, sep));
+        if(classId < 0) {
+            return;
+        }
+        String methodName = key.substring(sep + 2);
+        Integer nameId = methodNameIds.get(methodName);
+        if(nameId == null) {
+            nameId = methodNameIds.size();
+            methodNameIds.put(methodName, nameId);
+        }
+        int[] lines = new int[indexes.size()];
+        for(int i = 0; i < lines.length; i++) {
+            lines[i] = indexes.get(i);
+        }
+        signaturesByMethodsIdx.put(((long)classId << 32) | nameId, lines);
+    }
+
+    /**
+     * @return key of method in {@link #signaturesByMethodsIdx}, or -1 if method is not defined
+     */
+    private long getMethodKey(String className, String methodName) {
+        Integer nameId = methodNameIds.get(methodName);
+        if(nameId == null) {
+            return -1L;
+        }
+        int classId = Collections.binarySearch(classNamesById, className);
+        return classId < 0 ? -1L: ((long)classId << 32) | nameId;
+    }
+
     private static int readInt(byte[] data, int offset) {
         return EndianUtil.bigEndianBytesToInt(data, offset);
     }
@@ -238,20 +360,19 @@ public class IndexedSignatureFile implements ISignatureFile {
             // second, include same methods
             boolean shared = false;
             if(refreshClassname) {
-                String key = ref.getCname() + "->" + ref.getMname();
-                List<Integer> sameMethods = signaturesByMethodsIdx.get(key);
-                if(sameMethods == null || sameMethods.size() == 2) {
+                long key = getMethodKey(ref.getCname(), ref.getMname());
+                int[] sameMethods = key < 0 ? null: signaturesByMethodsIdx.get(key);
+                if(sameMethods == null || sameMethods.length == LINE_SIZE) {
                     continue; // only one
                 }
+                // merged signatures of class or of method name
                 allMethods = signaturesByClassname.get(ref.getCname());
                 if(allMethods == null) {
-                    allMethods = load(signaturesByMethodsIdx, key, signaturesByMethod, null);
-                }
-                else {
-                    shared = true;
+                    allMethods = getMethodSignatures(key);
                 }
+                shared = true;
             }
-            if(allMethods.size() == 1) {
+            else if(allMethods.size() == 1) {
                 continue;
             }
             for(MethodSignature m: allMethods) {
@@ -276,14 +397,15 @@ public class IndexedSignatureFile implements ISignatureFile {
         List<MethodSignature> metaSigs = new ArrayList<>();
         map.put(hashcode, sigs);
         try {
-            if(f == null) {
-                f = new RandomAccessFile(sigFile, "r");
+            if(openSigFile() == null) {
+                return sigs;
             }
             List<Integer> indexes = mapIdx.get(hashcode);
             if(indexes == null) {
                 return sigs;
             }
-            for(int i = 0; i < indexes.size(); i += 2) {
+            int stride = getStride(mapIdx);
+            for(int i = 0; i < indexes.size(); i += stride) {
                 int start = indexes.get(i);
                 int end = indexes.get(i + 1);
                 f.seek(start);
@@ -310,6 +432,78 @@ public class IndexedSignatureFile implements ISignatureFile {
         return sigs;
     }
 
+    /**
+     * @return merged signatures of all lines of a method name (all prototypes)
+     */
+    private List<MethodSignature> getMethodSignatures(long key) {
+        List<MethodSignature> res = signaturesByMethod.get(key);
+        if(res != null) {
+            return res;
+        }
+        res = new ArrayList<>();
+        int[] lines = signaturesByMethodsIdx.get(key);
+        try {
+            if(openSigFile() == null) {
+                return res;
+            }
+            for(int i = 0; i < lines.length; i += LINE_SIZE) {
+                f.seek(lines[i]);
+                byte[] lineBytes = new byte[lines[i + 1] - lines[i]];
+                f.read(lineBytes);
+                MethodSignature m = MethodSignature.parse(new String(lineBytes));
+                if(m != null) {
+                    res.add(m);
+                }
+            }
+        }
+        catch(IOException e) {
+            logger.error("Can not read %s", sigFile);
+        }
+        mergeSignatures(res, new ArrayList<>(res));
+        signaturesByMethod.put(key, res);
+        return res;
+    }
+
+    @Override
+    public List<MethodSignature> getSignaturesForMethod(String className, String methodName, String prototype) {
+        long key = getMethodKey(className, methodName);
+        if(key < 0) {
+            return new ArrayList<>();
+        }
+        List<MethodSignature> sigs = signaturesByMethod.get(key);
+        if(sigs == null) {
+            List<MethodSignature> classSigs = signaturesByClassname.get(className);
+            if(classSigs != null) {
+                // class lines are already loaded and merged: share them rather than reading again
+                sigs = new ArrayList<>();
+                for(MethodSignature sig: classSigs) {
+                    if(sig.getMname().equals(methodName)) {
+                        sigs.add(sig);
+                    }
+                }
+                signaturesByMethod.put(key, sigs);
+            }
+            else {
+                sigs = getMethodSignatures(key);
+            }
+        }
+        if(prototype == null) {
+            return new ArrayList<>(sigs);
+        }
+        // only overloads differ
+        List<MethodSignature> res = new ArrayList<>();
+        for(MethodSignature sig: sigs) {
+            if(sig.getPrototype().equals(prototype)) {
+                res.add(sig);
+            }
+        }
+        return res;
+    }
+
+    private int getStride(Map<String, List<Integer>> mapIdx) {
+        return mapIdx == tightSignaturesIdx || mapIdx == looseSignaturesIdx ? POSTING_SIZE: LINE_SIZE;
+    }
+
     @Override
     public List<MethodSignature> getLooseSignatures(String hashcode) {
         List<MethodSignature> res = looseSignatures.get(hashcode);
@@ -322,6 +516,70 @@ public class IndexedSignatureFile implements ISignatureFile {
         return res;
     }
 
+    @Override
+    public List<MethodSignature> getTightSignatures(String hashcode, SignatureFilter filter) {
+        return getSignatures(tightSignaturesIdx, hashcode, tightSignatures, filter);
+    }
+
+    @Override
+    public List<MethodSignature> getLooseSignatures(String hashcode, SignatureFilter filter) {
+        return getSignatures(looseSignaturesIdx, hashcode, looseSignatures, filter);
+    }
+
+    private List<MethodSignature> getSignatures(Map<String, List<Integer>> mapIdx, String hashcode,
+            Map<String, List<MethodSignature>> map, SignatureFilter filter) {
+        List<MethodSignature> res = map.get(hashcode);
+        if(res != null) {
+            // all lines already loaded
+            return filter.filter(res);
+        }
+        // filtered lines are not kept: lookups are memoized (bounded) by DatabaseReference
+        res = loadFiltered(mapIdx, hashcode, filter);
+        if(res.isEmpty()) {
+            return null;
+        }
+        return res;
+    }
+
+    /**
+     * Only read and parse the lines whose posting values are accepted by filter.
+     */
+    private List<MethodSignature> loadFiltered(Map<String, List<Integer>> mapIdx, String hashcode,
+            SignatureFilter filter) {
+        List<MethodSignature> sigs = new ArrayList<>();
+        List<Integer> indexes = mapIdx.get(hashcode);
+        if(indexes == null) {
+            return sigs;
+        }
+        try {
+            if(openSigFile() == null) {
+                return sigs;
+            }
+            for(int i = 0; i < indexes.size(); i += POSTING_SIZE) {
+                int classId = indexes.get(i + 4);
+                String className = classId >= 0 && classId < classNamesById.size() ? classNamesById.get(classId)
+                        : null;
+                if(!filter.accept(indexes.get(i + 2), indexes.get(i + 3), className)) {
+                    continue;
+                }
+                int start = indexes.get(i);
+                int end = indexes.get(i + 1);
+                f.seek(start);
+                byte[] lineBytes = new byte[end - start];
+                f.read(lineBytes);
+                MethodSignature m = MethodSignature.parse(new String(lineBytes));
+                if(m != null && filter.accept(m)) {
+                    sigs.add(m);
+                }
+            }
+        }
+        catch(IOException e) {
+            logger.error("Can not read %s", sigFile);
+        }
+        mergeSignatures(sigs);
+        return sigs;
+    }
+
     @Override
     public boolean hasSignaturesForClassname(String className) {
         return signaturesByClassnameIdx.get(className) != null;
@@ -372,8 +630,16 @@ public class IndexedSignatureFile implements ISignatureFile {
         Charset utf8 = Charset.forName("UTF-8");
         Map<String, List<Integer>> tightHashcodes = new HashMap<>();
         Map<String, List<Integer>> looseHashcodes = new HashMap<>();
-        Map<String, List<Integer>> classes = new HashMap<>();
+        // class of each line, with line start as key (class ids are only known once all lines are read)
+        Map<Integer, String> lineClasses = new HashMap<>();
+        // sorted: class ids are the positions in this map
+        Map<String, List<Integer>> classes = new TreeMap<>();
         Map<String, List<Integer>> methods = new HashMap<>();
+        Map<String, Set<String>> tightClasses = new HashMap<>();
+        Map<String, Set<String>> looseClasses = new HashMap<>();
+        // shape data: distinct methods per class, with true if method has code in one version
+        Map<String, Map<String, Boolean>> classMethods = new HashMap<>();
+        Map<String, List<String>> classParents = new HashMap<>();
         try {
             byte[] data = Files.readAllBytes(sigFile.toPath());
             int startIndex = 0;
@@ -398,8 +664,7 @@ public class IndexedSignatureFile implements ISignatureFile {
                         files = new ArrayList<>();
                         tightHashcodes.put(mhash_tight, files);
                     }
-                    files.add(startIndex);
-                    files.add(endIndex);
+                    addPosting(files, startIndex, endIndex, subLines);
                 }
                 String mhash_loose = MethodSignature.getLooseSignature(subLines);
                 if(mhash_loose != null && !mhash_loose.isEmpty() && !mhash_loose.equals("null")) {
@@ -408,8 +673,7 @@ public class IndexedSignatureFile implements ISignatureFile {
                         files = new ArrayList<>();
                         looseHashcodes.put(mhash_loose, files);
                     }
-                    files.add(startIndex);
-                    files.add(endIndex);
+                    addPosting(files, startIndex, endIndex, subLines);
                 }
                 String className = MethodSignature.getClassname(subLines);
                 if(className != null && !className.isEmpty()) {
@@ -420,6 +684,10 @@ public class IndexedSignatureFile implements ISignatureFile {
                     }
                     files.add(startIndex);
                     files.add(endIndex);
+                    lineClasses.put(startIndex, className);
+                    addClassPosting(tightClasses, mhash_tight, className);
+                    addClassPosting(looseClasses, mhash_loose, className);
+                    addShapeData(classMethods, classParents, className, subLines);
                     String methodName = MethodSignature.getMethodName(subLines);
                     if(methodName != null && !methodName.isEmpty()) {
                         String key = className + "->" + methodName;
@@ -444,21 +712,38 @@ public class IndexedSignatureFile implements ISignatureFile {
             bos.write('\n');
 
 
+            // class ids are the positions in classes section
+            Map<String, Integer> classIds = new HashMap<>();
+            for(String className: classes.keySet()) {
+                classIds.put(className, classIds.size());
+            }
+
             // tight section
-            writeSection(bos, utf8, buffInt, tightHashcodes);
+            writePostingSection(bos, utf8, buffInt, tightHashcodes, lineClasses, classIds);
 
             // loose section
             bos.write('\n');
-            writeSection(bos, utf8, buffInt, looseHashcodes);
+            writePostingSection(bos, utf8, buffInt, looseHashcodes, lineClasses, classIds);
 
             // classes section
             bos.write('\n');
             writeSection(bos, utf8, buffInt, classes);
 
+            // methods section: all methods, so that a method is resolved without loading its class
             bos.write('\n');
-            writeMethodSection(bos, utf8, buffInt, methods);
+            writeSection(bos, utf8, buffInt, methods);
 
-            IO.writeFile(indexFile, bos.toByteArray());
+            // class postings sections
+            bos.write('\n');
+            writeClassPostingSection(bos, utf8, buffInt, tightClasses, classIds);
+            bos.write('\n');
+            writeClassPostingSection(bos, utf8, buffInt, looseClasses, classIds);
+
+            // class shapes section, in classes order
+            bos.write('\n');
+            writeClassShapeSection(bos, utf8, buffInt, classes.keySet(), classMethods, classParents);
+
+            writeIndexFile(indexFile, bos.toByteArray());
         }
         catch(IOException e) {
             logger.catching(e);
@@ -467,6 +752,29 @@ public class IndexedSignatureFile implements ISignatureFile {
         return true;
     }
 
+    /**
+     * Replace index file atomically: a concurrent reader gets either the previous or the new index,
+     * never a partial one.
+     */
+    private static void writeIndexFile(File indexFile, byte[] data) throws IOException {
+        File tmp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile());
+        try {
+            IO.writeFile(tmp, data);
+            try {
+                Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            if(tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
     private static void writeSection(ByteArrayOutputStream bos, Charset utf8, byte[] buffInt,
             Map<String, List<Integer>> classes) throws IOException {
         for(Entry<String, List<Integer>> entry: classes.entrySet()) {
@@ -480,17 +788,115 @@ public class IndexedSignatureFile implements ISignatureFile {
         }
     }
 
-    private static void writeMethodSection(ByteArrayOutputStream bos, Charset utf8, byte[] buffInt,
-            Map<String, List<Integer>> classes) throws IOException {
-        for(Entry<String, List<Integer>> entry: classes.entrySet()) {
-            if(entry.getValue().size() == 2) {
-                continue; // only save duplicated entries
+    /**
+     * Add start, end, shorty hash and opcount of a line. Class id is set by
+     * {@link #writePostingSection(ByteArrayOutputStream, Charset, byte[], Map, Map, Map)}.
+     */
+    private static void addPosting(List<Integer> postings, int startIndex, int endIndex, String[] subLines) {
+        String shorty = MethodSignature.getShorty(subLines);
+        postings.add(startIndex);
+        postings.add(endIndex);
+        postings.add(shorty == null ? 0: shorty.hashCode());
+        postings.add(MethodSignature.getOpcount(subLines));
+    }
+
+    private static void writePostingSection(ByteArrayOutputStream bos, Charset utf8, byte[] buffInt,
+            Map<String, List<Integer>> hashcodes, Map<Integer, String> lineClasses, Map<String, Integer> classIds)
+            throws IOException {
+        for(Entry<String, List<Integer>> entry: hashcodes.entrySet()) {
+            List<Integer> postings = entry.getValue();
+            bos.write(entry.getKey().getBytes(utf8));
+            bos.write('=');
+            writeInt(buffInt, postings.size() / (POSTING_SIZE - 1) * POSTING_SIZE, bos);
+            for(int i = 0; i < postings.size(); i += POSTING_SIZE - 1) {
+                for(int j = 0; j < POSTING_SIZE - 1; j++) {
+                    writeInt(buffInt, postings.get(i + j), bos);
+                }
+                String className = lineClasses.get(postings.get(i));
+                Integer classId = className == null ? null: classIds.get(className);
+                writeInt(buffInt, classId == null ? -1: classId, bos);
             }
+            bos.write('\n');
+        }
+    }
+
+    private static void addClassPosting(Map<String, Set<String>> postings, String mhash, String className) {
+        if(mhash == null || mhash.isEmpty() || mhash.equals("null")) {
+            return;
+        }
+        Set<String> classes = postings.get(mhash);
+        if(classes == null) {
+            classes = new LinkedHashSet<>();
+            postings.put(mhash, classes);
+        }
+        classes.add(className);
+    }
+
+    private static void addShapeData(Map<String, Map<String, Boolean>> classMethods,
+            Map<String, List<String>> classParents, String className, String[] subLines) {
+        String shorty = MethodSignature.getShorty(subLines);
+        String prototype = MethodSignature.getPrototype(subLines);
+        if(Strings.isBlank(shorty) || Strings.isBlank(prototype)) {
+            // metadata line
+            if(MethodSignature.getCaller(subLines) != null) {
+                List<String> parents = classParents.get(className);
+                if(parents == null) {
+                    parents = new ArrayList<>();
+                    classParents.put(className, parents);
+                }
+                parents.add(MethodSignature.getCaller(subLines));
+            }
+            return;
+        }
+        Map<String, Boolean> methods = classMethods.get(className);
+        if(methods == null) {
+            methods = new HashMap<>();
+            classMethods.put(className, methods);
+        }
+        String key = MethodSignature.getMethodName(subLines) + prototype;
+        boolean hasCode = MethodSignature.getOpcount(subLines) != 0;
+        Boolean previous = methods.get(key);
+        methods.put(key, hasCode || (previous != null && previous));
+    }
+
+    private static void writeClassShapeSection(ByteArrayOutputStream bos, Charset utf8, byte[] buffInt,
+            Set<String> classes, Map<String, Map<String, Boolean>> classMethods,
+            Map<String, List<String>> classParents) throws IOException {
+        for(String className: classes) {
+            Map<String, Boolean> methods = classMethods.get(className);
+            int methodCount = 0;
+            int emptyMethodCount = 0;
+            if(methods != null) {
+                methodCount = methods.size();
+                for(Boolean hasCode: methods.values()) {
+                    if(!hasCode) {
+                        emptyMethodCount++;
+                    }
+                }
+            }
+            // super type is only reliable when one parent line is defined (see DatabaseReference#getParentForClassname)
+            List<String> parents = classParents.get(className);
+            String superType = parents == null || parents.size() != 1 ? null
+                    : MethodSignature.getTargetSuperType(parents.get(0));
+            int[] shape = ClassShape.encode(className, methodCount, emptyMethodCount, superType);
+            bos.write(className.getBytes(utf8));
+            bos.write('=');
+            writeInt(buffInt, shape.length, bos);
+            for(int value: shape) {
+                writeInt(buffInt, value, bos);
+            }
+            bos.write('\n');
+        }
+    }
+
+    private static void writeClassPostingSection(ByteArrayOutputStream bos, Charset utf8, byte[] buffInt,
+            Map<String, Set<String>> postings, Map<String, Integer> classIds) throws IOException {
+        for(Entry<String, Set<String>> entry: postings.entrySet()) {
             bos.write(entry.getKey().getBytes(utf8));
             bos.write('=');
             writeInt(buffInt, entry.getValue().size(), bos);
-            for(Integer address: entry.getValue()) {
-                writeInt(buffInt, address, bos);
+            for(String className: entry.getValue()) {
+                writeInt(buffInt, classIds.get(className), bos);
             }
             bos.write('\n');
         }
@@ -523,8 +929,15 @@ public class IndexedSignatureFile implements ISignatureFile {
                 sigFile.getName().substring(0, sigFile.getName().length() - 4) + ".idx");
     }
 
+    /**
+     * Add hashcodes of a signature file to the global maps (file absolute path is added to the set of
+     * each hashcode).
+     * 
+     * @param candidateIndex if not null, class postings of the file are added to the index
+     */
     public static boolean populate(File sigFile, Map<String, Set<String>> allTightHashcodes,
-            Map<String, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses) {
+            Map<String, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses,
+            CandidateIndex candidateIndex) {
         File indexFile = getIndexFile(sigFile);
         if(indexFile == null) {
             logger.error("Can not determine index file name. Is Signature extension is correct for %s?", sigFile);
@@ -550,39 +963,74 @@ public class IndexedSignatureFile implements ISignatureFile {
                     return false;
                 }
             }
-            Map<String, Set<String>> currentList = allTightHashcodes;
+            startIndex = index;
+            String path = sigFile.getAbsolutePath();
+            List<String> classNames = new ArrayList<>();
+            int fileId = -1;
+            int[] shapes = null;
+            int shapeIndex = 0;
+            int section = SECTION_TIGHT;
             while(index < data.length) {
-                if(IndexLine.isSeparator(data[index])) {
-                    IndexLine line = IndexLine.parseLine(data, startIndex, index, utf8, true);
-                    Set<String> files = currentList.get(line.mhash);
-                    if(files == null) {
-                        files = new LinkedHashSet<>();
-                        currentList.put(line.mhash, files);
-                    }
-                    files.add(sigFile.getAbsolutePath());
-
-                    index = line.index;
+                if(index == startIndex && IndexLine.isSectionSeparator(data[index])) {
+                    // end of section (may be empty)
+                    index++;
                     startIndex = index;
-                    if(index >= data.length) {
+                    section++;
+                    if(section == SECTION_METHODS) {
+                        if(candidateIndex == null) {
+                            break;
+                        }
+                        fileId = candidateIndex.addFile(path, classNames);
+                    }
+                    else if(section == SECTION_CLASS_SHAPES) {
+                        shapes = new int[classNames.size() * ClassShape.SIZE];
+                    }
+                    else if(section > SECTION_CLASS_SHAPES) {
                         break;
                     }
-                    if(IndexLine.isSectionSeparator(data[index])) {
-                        index++;
-                        startIndex = index;
-                        if(currentList == allTightHashcodes) {
-                            currentList = allLooseHashcodes;
+                    continue;
+                }
+                if(IndexLine.isSeparator(data[index])) {
+                    boolean postings = section == SECTION_TIGHT_CLASSES || section == SECTION_LOOSE_CLASSES
+                            || section == SECTION_CLASS_SHAPES;
+                    IndexLine line = IndexLine.parseLine(data, startIndex, index, utf8, !postings);
+                    if(section == SECTION_CLASS_SHAPES) {
+                        if(line.indexes.size() == ClassShape.SIZE && shapeIndex < shapes.length) {
+                            for(Integer value: line.indexes) {
+                                shapes[shapeIndex++] = value;
+                            }
                         }
-                        else if(currentList == allLooseHashcodes) {
-                            currentList = allClasses;
+                    }
+                    else if(postings) {
+                        candidateIndex.addPostings(section == SECTION_TIGHT_CLASSES, line.mhash, fileId,
+                                line.indexes);
+                    }
+                    else if(section != SECTION_METHODS) {
+                        Map<String, Set<String>> currentList = section == SECTION_TIGHT ? allTightHashcodes
+                                : section == SECTION_LOOSE ? allLooseHashcodes: allClasses;
+                        Set<String> files = currentList.get(line.mhash);
+                        if(files == null) {
+                            files = new LinkedHashSet<>();
+                            currentList.put(line.mhash, files);
                         }
-                        else {
-                            break;
+                        files.add(path);
+                        if(section == SECTION_CLASSES) {
+                            classNames.add(line.mhash);
                         }
                     }
+                    index = line.index;
+                    startIndex = index;
                     continue;
                 }
                 index++;
             }
+            if(candidateIndex != null && fileId < 0) {
+                // truncated index
+                candidateIndex.addFile(path, classNames);
+            }
+            else if(shapes != null && shapeIndex == shapes.length) {
+                candidateIndex.setClassShapes(fileId, shapes);
+            }
         }
         catch(IOException e) {
             logger.catching(e);
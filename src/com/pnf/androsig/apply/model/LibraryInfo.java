@@ -17,6 +17,8 @@
  */
 package com.pnf.androsig.apply.model;
 
+import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -89,4 +91,32 @@ public class LibraryInfo {
     public void setLibName(String libName) {
         this.libName = libName;
     }
+
+    /**
+     * @return a copy of this library info (versions set is copied)
+     */
+    public LibraryInfo copy() {
+        LibraryInfo res = new LibraryInfo();
+        res.author = author;
+        res.version = version;
+        res.versions = versions == null ? null: new HashSet<>(versions);
+        res.libName = libName;
+        return res;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(author, version, versions, libName);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj)
+            return true;
+        if(!(obj instanceof LibraryInfo))
+            return false;
+        LibraryInfo other = (LibraryInfo)obj;
+        return version == other.version && Objects.equals(author, other.author)
+                && Objects.equals(versions, other.versions) && Objects.equals(libName, other.libName);
+    }
 }
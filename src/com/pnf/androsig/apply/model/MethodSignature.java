@@ -28,7 +28,6 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import com.pnf.androsig.common.SignatureHandler;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
 import com.pnfsoftware.jeb.util.encoding.Conversion;
 import com.pnfsoftware.jeb.util.format.Strings;
 
@@ -267,7 +266,7 @@ public class MethodSignature {
         return getTargetSuperType(getParentField());
     }
 
-    private static String getTargetSuperType(String superT) {
+    static String getTargetSuperType(String superT) {
         if(superT == null) {
             return null;
         }
@@ -465,13 +464,16 @@ public class MethodSignature {
         int iStart = startIndex;
         for(int i = startIndex; i < endIndex; i++) {
             if(data[i] == ',') {
-                if(index == 0 || index == 1 || index == 5 || index == 6) {
+                if(index < 8) {
                     tokens[index] = new String(data, iStart, i - iStart);
                 }
                 index++;
                 iStart = i + 1;
             }
         }
+        if(index < 8) {
+            tokens[index] = new String(data, iStart, endIndex - iStart);
+        }
         index++;
         if(index < 8) {
             return null;
@@ -513,6 +515,14 @@ public class MethodSignature {
         return signatureLine[1];
     }
 
+    public static int getOpcount(String[] signatureLine) {
+        return Conversion.stringToInt(signatureLine[4]);
+    }
+
+    public static String getCaller(String[] signatureLine) {
+        return signatureLine[7];
+    }
+
     public static String[] getVersions(String[] signatureLine) {
         if(signatureLine.length <= 8 || signatureLine[8] == null) {
             return null;
@@ -538,17 +548,17 @@ public class MethodSignature {
      * 
      * @param results
      * @param mergeVersions
+     * @param mname current method name, preferred on conflicts
      * @return
      */
     public static MethodSignature mergeSignatures(List<MethodSignature> results, boolean mergeVersions,
-            IDexMethod eMethod) {
+            String mname) {
         if(results == null || results.isEmpty()) {
             return null;
         }
         if(results.size() == 1) {
             return results.get(0);
         }
-        String mname = eMethod.getName(true);
         List<MethodSignature> res2 = results.stream().filter(s -> s.getMname().equals(mname))
                 .collect(Collectors.toList());
         if(!res2.isEmpty()) {
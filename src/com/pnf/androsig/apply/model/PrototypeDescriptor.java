@@ -0,0 +1,156 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import com.pnf.androsig.apply.util.DexUtilLocal;
+
+/**
+ * Prototype parsed once (see {@link PrototypeTable#get(String)}): parameter types then return type,
+ * each with a type id (shared by all prototypes of the table) and precomputed flags. Immutable.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class PrototypeDescriptor {
+
+    private static final int DIMENSION_MASK = 0xFF;
+    private static final int KIND_SHIFT = 8;
+    private static final int KIND_MASK = 0xFFFF;
+    private static final int PLATFORM_FLAG = 1 << 24;
+
+    private final String prototype;
+    /** types: parameters, then return type */
+    private final String[] typeNames;
+    private final int[] typeIds;
+    private final int[] typeFlags;
+    /** true if a parameter or the return type is not a primitive (arrays included) */
+    private final boolean hasNonPrimitiveType;
+
+    PrototypeDescriptor(String prototype, String[] typeNames, int[] typeIds) {
+        this.prototype = prototype;
+        this.typeNames = typeNames;
+        this.typeIds = typeIds;
+        typeFlags = new int[typeNames.length];
+        boolean nonPrimitive = false;
+        for(int i = 0; i < typeNames.length; i++) {
+            typeFlags[i] = computeFlags(typeNames[i]);
+            if(typeNames[i].length() != 1) {
+                nonPrimitive = true;
+            }
+        }
+        hasNonPrimitiveType = nonPrimitive;
+    }
+
+    private static int computeFlags(String type) {
+        int dim = 0;
+        while(dim < type.length() && type.charAt(dim) == '[') {
+            dim++;
+        }
+        String base = type.substring(dim);
+        int flags = Math.min(dim, DIMENSION_MASK) | ((base.isEmpty() ? 0: base.charAt(0)) << KIND_SHIFT);
+        if(DexUtilLocal.isJavaPlatformClass(base) || DexUtilLocal.isAndroidPlatformClass(base)) {
+            flags |= PLATFORM_FLAG;
+        }
+        return flags;
+    }
+
+    private static int dimensionOf(int flags) {
+        return flags & DIMENSION_MASK;
+    }
+
+    private static char kindOf(int flags) {
+        return (char)((flags >> KIND_SHIFT) & KIND_MASK);
+    }
+
+    public String getPrototype() {
+        return prototype;
+    }
+
+    public int getParameterCount() {
+        return typeIds.length - 1;
+    }
+
+    /**
+     * @return type id of parameter, or of return type when i is {@link #getParameterCount()}
+     */
+    public int getTypeId(int i) {
+        return typeIds[i];
+    }
+
+    public int getReturnTypeId() {
+        return typeIds[typeIds.length - 1];
+    }
+
+    /**
+     * @return type of parameter, or return type when i is {@link #getParameterCount()}
+     */
+    public String getTypeName(int i) {
+        return typeNames[i];
+    }
+
+    public int getTypeCount() {
+        return typeIds.length;
+    }
+
+    /**
+     * @return array dimension of parameter (or return type)
+     */
+    public int getDimension(int i) {
+        return dimensionOf(typeFlags[i]);
+    }
+
+    /**
+     * @return true if parameter (or return type) is a primitive (not an array)
+     */
+    public boolean isPrimitive(int i) {
+        return dimensionOf(typeFlags[i]) == 0 && kindOf(typeFlags[i]) != 'L';
+    }
+
+    /**
+     * Int equivalent of {@link DexUtilLocal#isCompatibleClasses(String, String)}.
+     *
+     * @param i type position in this prototype (unstable)
+     * @param original original prototype
+     * @param j type position in original prototype
+     */
+    public boolean isCompatibleType(int i, PrototypeDescriptor original, int j) {
+        if(typeIds[i] == original.typeIds[j]) {
+            return true;
+        }
+        int flags1 = typeFlags[i];
+        int flags2 = original.typeFlags[j];
+        if(dimensionOf(flags1) != dimensionOf(flags2) || kindOf(flags1) != kindOf(flags2)) {
+            return false;
+        }
+        if(kindOf(flags1) != 'L') {
+            return true;
+        }
+        // names should be equal for platform classes
+        return ((flags1 | flags2) & PLATFORM_FLAG) == 0;
+    }
+
+    /**
+     * A prototype with several arguments (or one non primitive argument) is complex as soon as one of
+     * its types, return type included, is not a primitive (same rule as the former string based
+     * check of {@link com.pnf.androsig.apply.matcher.MatchingSearch}).
+     *
+     * @param complexSignatureParams minimum number of platform classes of prototypes made of
+     *        primitives only (which have none: only reached if not positive)
+     */
+    public boolean isComplex(int complexSignatureParams) {
+        // do not consider one argument methods
+        int paramCount = getParameterCount();
+        if(paramCount == 0 || (paramCount == 1 && typeNames[0].length() == 1)) {
+            return false;
+        }
+        return hasNonPrimitiveType || complexSignatureParams <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return prototype;
+    }
+}
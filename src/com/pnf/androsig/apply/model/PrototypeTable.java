@@ -0,0 +1,77 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pnf.androsig.apply.util.DexUtilLocal;
+
+/**
+ * Interned prototypes of an analysis, shared by dex side (effective prototypes) and signature side
+ * (database prototypes): type ids are comparable between all descriptors of the same table. Can be
+ * used concurrently.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class PrototypeTable {
+
+    private static final PrototypeDescriptor INVALID = new PrototypeDescriptor("", new String[0], new int[0]);
+
+    private final Map<String, Integer> typeIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTypeId = new AtomicInteger();
+    private final Map<String, PrototypeDescriptor> prototypes = new ConcurrentHashMap<>();
+
+    /**
+     * @param type type signature
+     * @return unique id of the type in this table
+     */
+    public int getTypeId(String type) {
+        Integer id = typeIds.get(type);
+        if(id == null) {
+            id = typeIds.computeIfAbsent(type, t -> nextTypeId.getAndIncrement());
+        }
+        return id;
+    }
+
+    /**
+     * @param prototype prototype in the form <code>(params)return</code>
+     * @return parsed prototype, or null if prototype is empty or invalid
+     */
+    public PrototypeDescriptor get(String prototype) {
+        PrototypeDescriptor desc = prototypes.get(prototype);
+        if(desc == null) {
+            desc = parse(prototype);
+            PrototypeDescriptor previous = prototypes.putIfAbsent(prototype, desc);
+            if(previous != null) {
+                desc = previous;
+            }
+        }
+        return desc == INVALID ? null: desc;
+    }
+
+    private PrototypeDescriptor parse(String prototype) {
+        int end = prototype.indexOf(')');
+        if(!prototype.startsWith("(") || end < 0 || end == prototype.length() - 1) {
+            return INVALID;
+        }
+        List<String> params = DexUtilLocal.parseSignatureParameters(prototype.substring(1, end));
+        if(params == null) {
+            return INVALID;
+        }
+        String returnType = prototype.substring(end + 1);
+        params.add(returnType);
+        String[] typeNames = params.toArray(new String[params.size()]);
+        int[] ids = new int[typeNames.length];
+        for(int i = 0; i < typeNames.length; i++) {
+            ids[i] = getTypeId(typeNames[i]);
+        }
+        return new PrototypeDescriptor(prototype, typeNames, ids);
+    }
+}
@@ -175,6 +175,11 @@ public class SignatureFile implements ISignatureFile {
         return allTightSignatures.get(hashcode);
     }
 
+    @Override
+    public List<MethodSignature> getTightSignatures(String hashcode, SignatureFilter filter) {
+        return filter.filter(getTightSignatures(hashcode));
+    }
+
     public long getTightSignaturesSize() {
         return allTightSignatures.size();
     }
@@ -197,6 +202,11 @@ public class SignatureFile implements ISignatureFile {
         return allLooseSignatures.get(hashcode);
     }
 
+    @Override
+    public List<MethodSignature> getLooseSignatures(String hashcode, SignatureFilter filter) {
+        return filter.filter(getLooseSignatures(hashcode));
+    }
+
     public long getLooseSignaturesSize() {
         return allLooseSignatures.size();
     }
@@ -228,6 +238,21 @@ public class SignatureFile implements ISignatureFile {
         return allSignaturesByClassname.containsKey(className);
     }
 
+    @Override
+    public List<MethodSignature> getSignaturesForMethod(String className, String methodName, String prototype) {
+        List<MethodSignature> res = new ArrayList<>();
+        List<MethodSignature> list = allSignaturesByClassname.get(className);
+        if(list != null) {
+            for(MethodSignature sig: list) {
+                if(sig.getMname().equals(methodName)
+                        && (prototype == null || sig.getPrototype().equals(prototype))) {
+                    res.add(sig);
+                }
+            }
+        }
+        return res;
+    }
+
     @Override
     public List<MethodSignature> getSignaturesForClassname(String className, boolean exactName) {
         List<MethodSignature> compatibleSignatures = new ArrayList<>();
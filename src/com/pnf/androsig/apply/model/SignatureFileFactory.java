@@ -8,6 +8,9 @@ package com.pnf.androsig.apply.model;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +20,12 @@ import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 
 /**
+ * Cache of loaded signature files. Thread-safe: the factory may be shared by concurrent executions.
+ * <p>
+ * Signature files are opened lazily: a file rewritten since the database indexed it (see
+ * {@link #setExpectedStamps(Map)}) is not read, since the hashcodes of the database refer to its
+ * previous content.
+ * 
  * @author Cedric Lucas
  *
  */
@@ -28,18 +37,39 @@ public class SignatureFileFactory {
     /** sigLines, with filename as key */
     private Map<String, ISignatureFile> sigLinePerFilename = new HashMap<>();
     private List<String> loadOrder = new ArrayList<>();
+    /** stamps of indexed files, with absolute path as key */
+    private Map<String, long[]> expectedStamps = Collections.emptyMap();
 
     public static boolean populate(File sigFile, Map<String, Set<String>> allTightHashcodes,
-            Map<String, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses) {
+            Map<String, Set<String>> allLooseHashcodes, Map<String, Set<String>> allClasses,
+            CandidateIndex candidateIndex) {
         //return SignatureFile.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses);
-        return IndexedSignatureFile.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses);
+        return IndexedSignatureFile.populate(sigFile, allTightHashcodes, allLooseHashcodes, allClasses,
+                candidateIndex);
     }
 
-    private static ISignatureFile getSignatureFile(File sigF) {
+    /**
+     * @return {length, last modification} of file ({0, 0} if it does not exist)
+     */
+    static long[] getFileStamp(File f) {
+        return new long[]{f.length(), f.lastModified()};
+    }
+
+    /**
+     * @param stamps stamps of indexed files when the database indexed them (not copied, must not be
+     *        modified)
+     */
+    synchronized void setExpectedStamps(Map<String, long[]> stamps) {
+        expectedStamps = stamps;
+    }
+
+    private static ISignatureFile getSignatureFile(File sigF, long[] expectedStamp) {
         File indexFile = IndexedSignatureFile.getIndexFile(sigF);
-        if(indexFile.exists()) {
+        boolean modified = expectedStamp != null && !Arrays.equals(expectedStamp, getFileStamp(sigF));
+        if(indexFile.exists() || modified) {
+            // a modified file is never parsed again: the indexed file stays empty
             IndexedSignatureFile newSigFile = new IndexedSignatureFile();
-            if(newSigFile.loadSignatures(sigF)) {
+            if(newSigFile.loadSignatures(sigF, expectedStamp)) {
                 return newSigFile;
             }
         }
@@ -50,8 +80,23 @@ public class SignatureFileFactory {
         return null;
     }
 
+    /**
+     * Stop reading loaded signature files which were modified or removed since the database
+     * indexed them. Files loaded later check their stamp when loaded.
+     * 
+     * @param files absolute paths
+     */
+    synchronized void setModified(Collection<String> files) {
+        for(String file: files) {
+            ISignatureFile sigFile = sigLinePerFilename.get(file);
+            if(sigFile instanceof IndexedSignatureFile) {
+                ((IndexedSignatureFile)sigFile).setModified();
+            }
+        }
+    }
+
     @SuppressWarnings("resource")
-    public ISignatureFile getSignatureFile(String file) {
+    public synchronized ISignatureFile getSignatureFile(String file) {
         ISignatureFile sigFile = sigLinePerFilename.get(file);
         if(sigFile == null) {
             if(loadOrder.size() >= LIMIT_LOAD) {
@@ -62,7 +107,7 @@ public class SignatureFileFactory {
                 }
             }
             File sigF = new File(file);
-            sigFile = SignatureFileFactory.getSignatureFile(sigF);
+            sigFile = SignatureFileFactory.getSignatureFile(sigF, expectedStamps.get(file));
             sigLinePerFilename.put(file, sigFile);
             // logger.info("Load %s", file);
         }
@@ -73,11 +118,11 @@ public class SignatureFileFactory {
         return sigFile;
     }
 
-    public Map<String, ISignatureFile> getLoadedSignatureFiles() {
-        return sigLinePerFilename;
+    public synchronized Map<String, ISignatureFile> getLoadedSignatureFiles() {
+        return new HashMap<>(sigLinePerFilename);
     }
 
-    public void close() {
+    public synchronized void close() {
         for(ISignatureFile sig: sigLinePerFilename.values()) {
             try {
                 sig.close();
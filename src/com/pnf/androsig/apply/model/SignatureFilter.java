@@ -0,0 +1,157 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filter of signature lines, applied on index postings (see
+ * {@link IndexedSignatureFile#getTightSignatures(String, SignatureFilter)}) so that only the lines
+ * passing it are read and parsed. A filter may be reused through {@link #reset}: lookups do not
+ * keep it (see {@link SignatureLookupCache}), so the owner of a scratch filter only needs to reset it
+ * from one thread.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureFilter {
+
+    /** null: any shorty */
+    private String shorty;
+    private int shortyHash;
+    /** null: any class */
+    private String className;
+    private boolean exactName;
+    private int minOpcount;
+    private int maxOpcount;
+
+    /**
+     * @param shorty expected shorty, or null
+     * @param className expected class name (or class name prefix if exactName is false), or null
+     */
+    public SignatureFilter(String shorty, String className, boolean exactName) {
+        this(shorty, className, exactName, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param minOpcount minimum opcount of a line (inclusive)
+     * @param maxOpcount maximum opcount of a line (inclusive)
+     */
+    public SignatureFilter(String shorty, String className, boolean exactName, int minOpcount, int maxOpcount) {
+        reset(shorty, className, exactName, minOpcount, maxOpcount);
+    }
+
+    /**
+     * Same as {@link #SignatureFilter(String, String, boolean)}, on this instance.
+     * 
+     * @return this filter
+     */
+    public SignatureFilter reset(String shorty, String className, boolean exactName) {
+        return reset(shorty, className, exactName, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #SignatureFilter(String, String, boolean, int, int)}, on this instance.
+     * 
+     * @return this filter
+     */
+    public SignatureFilter reset(String shorty, String className, boolean exactName, int minOpcount,
+            int maxOpcount) {
+        this.shorty = shorty;
+        this.shortyHash = shorty == null ? 0: shorty.hashCode();
+        this.className = className;
+        this.exactName = exactName;
+        this.minOpcount = minOpcount;
+        this.maxOpcount = maxOpcount;
+        return this;
+    }
+
+    /**
+     * Check index posting values. May accept lines which are rejected by
+     * {@link #accept(MethodSignature)} (shorty hash collisions).
+     *
+     * @param className class of line, or null if unknown
+     */
+    boolean accept(int shortyHash, int opcount, String className) {
+        if(shorty != null && shortyHash != this.shortyHash) {
+            return false;
+        }
+        if(opcount < minOpcount || opcount > maxOpcount) {
+            return false;
+        }
+        return className == null || acceptClassName(className);
+    }
+
+    public boolean accept(MethodSignature sig) {
+        if(shorty != null && !shorty.equals(sig.getShorty())) {
+            return false;
+        }
+        if(!acceptClassName(sig.getCname())) {
+            return false;
+        }
+        if(minOpcount <= 0 && maxOpcount == Integer.MAX_VALUE || sig.getRevisions().isEmpty()) {
+            return true;
+        }
+        for(MethodSignature.MethodSignatureRevision rev: sig.getRevisions()) {
+            if(rev.getOpcount() >= minOpcount && rev.getOpcount() <= maxOpcount) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean acceptClassName(String cname) {
+        if(className == null) {
+            return true;
+        }
+        return exactName ? className.equals(cname): cname.startsWith(className);
+    }
+
+    /**
+     * @param sigs signature lines (may be null)
+     * @return accepted lines, or null if there is none
+     */
+    public List<MethodSignature> filter(List<MethodSignature> sigs) {
+        if(sigs == null) {
+            return null;
+        }
+        List<MethodSignature> res = new ArrayList<>();
+        for(MethodSignature sig: sigs) {
+            if(accept(sig)) {
+                res.add(sig);
+            }
+        }
+        return res.isEmpty() ? null: res;
+    }
+
+    /**
+     * @return key identifying this filter (filters with same key accept same lines)
+     */
+    String getKey() {
+        return shorty + "," + className + "," + exactName + "," + minOpcount + "," + maxOpcount;
+    }
+
+    String getShorty() {
+        return shorty;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    boolean isExactName() {
+        return exactName;
+    }
+
+    int getMinOpcount() {
+        return minOpcount;
+    }
+
+    int getMaxOpcount() {
+        return maxOpcount;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Bounded memoization of signature line lookups of a {@link DatabaseReference}: results are kept
+ * per (file id, hashcode, tight/loose, filter, version set), version sets being interned to ids.
+ * Least recently used results are evicted first. Since results only depend on the hashcode, dex
+ * methods with same hashcode share one resolution. Cached lists are unmodifiable. Thread-safe.
+ *
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureLookupCache {
+
+    private static final List<MethodSignature> NULL_RESULT = Collections.unmodifiableList(new ArrayList<>());
+
+    private final int maxSize;
+    private final Map<LookupKey, List<MethodSignature>> entries;
+    private final Map<Set<String>, Integer> versionSetIds = new HashMap<>();
+    /** incremented when version set ids are reused: results loaded before are not stored */
+    private int generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static class LookupKey {
+        final int fileId;
+        final String hashcode;
+        final boolean tight;
+        final int versionSetId;
+        /** filter state (filters are reused by callers): filtered is false if lookup is not filtered */
+        final boolean filtered;
+        final String shorty;
+        final String className;
+        final boolean exactName;
+        final int minOpcount;
+        final int maxOpcount;
+
+        LookupKey(int fileId, String hashcode, boolean tight, SignatureFilter filter, int versionSetId) {
+            this.fileId = fileId;
+            this.hashcode = hashcode;
+            this.tight = tight;
+            this.versionSetId = versionSetId;
+            filtered = filter != null;
+            shorty = filtered ? filter.getShorty(): null;
+            className = filtered ? filter.getClassName(): null;
+            exactName = filtered && filter.isExactName();
+            minOpcount = filtered ? filter.getMinOpcount(): 0;
+            maxOpcount = filtered ? filter.getMaxOpcount(): 0;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + fileId;
+            result = prime * result + (hashcode == null ? 0: hashcode.hashCode());
+            result = prime * result + (tight ? 1231: 1237);
+            result = prime * result + versionSetId;
+            result = prime * result + (filtered ? 1231: 1237);
+            result = prime * result + (shorty == null ? 0: shorty.hashCode());
+            result = prime * result + (className == null ? 0: className.hashCode());
+            result = prime * result + (exactName ? 1231: 1237);
+            result = prime * result + minOpcount;
+            result = prime * result + maxOpcount;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj)
+                return true;
+            if(!(obj instanceof LookupKey))
+                return false;
+            LookupKey other = (LookupKey)obj;
+            return fileId == other.fileId && tight == other.tight && versionSetId == other.versionSetId
+                    && filtered == other.filtered && exactName == other.exactName
+                    && minOpcount == other.minOpcount && maxOpcount == other.maxOpcount
+                    && equals(hashcode, other.hashcode) && equals(shorty, other.shorty)
+                    && equals(className, other.className);
+        }
+
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null: s1.equals(s2);
+        }
+    }
+
+    /**
+     * @param maxSize maximum number of cached results
+     */
+    SignatureLookupCache(int maxSize) {
+        this.maxSize = maxSize;
+        entries = new LinkedHashMap<LookupKey, List<MethodSignature>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LookupKey, List<MethodSignature>> eldest) {
+                if(size() > SignatureLookupCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the cached result of a lookup, or compute it. Loader is called without lock: concurrent
+     * threads may compute the same result. A result is not stored if version set ids were reused
+     * while it was computed, since its key may then designate another version set.
+     *
+     * @param filter lookup filter, or null
+     * @param versions available versions (null or empty if all versions are available)
+     * @param loader lookup (result may be null)
+     */
+    List<MethodSignature> get(int fileId, String hashcode, boolean tight, SignatureFilter filter,
+            Set<String> versions, Supplier<List<MethodSignature>> loader) {
+        LookupKey key;
+        int keyGeneration;
+        synchronized(this) {
+            key = new LookupKey(fileId, hashcode, tight, filter, getVersionSetId(versions));
+            keyGeneration = generation;
+            List<MethodSignature> res = entries.get(key);
+            if(res != null) {
+                hits++;
+                return res == NULL_RESULT ? null: res;
+            }
+            misses++;
+        }
+        List<MethodSignature> res = loader.get();
+        res = res == null ? NULL_RESULT: Collections.unmodifiableList(res);
+        synchronized(this) {
+            if(keyGeneration == generation) {
+                entries.put(key, res);
+            }
+        }
+        return res == NULL_RESULT ? null: res;
+    }
+
+    private int getVersionSetId(Set<String> versions) {
+        if(versions == null || versions.isEmpty()) {
+            return 0;
+        }
+        Integer id = versionSetIds.get(versions);
+        if(id == null) {
+            if(versionSetIds.size() >= maxSize) {
+                // ids are reused: drop all results
+                versionSetIds.clear();
+                generation++;
+                evictions += entries.size();
+                entries.clear();
+            }
+            id = versionSetIds.size() + 1;
+            versionSetIds.put(new HashSet<>(versions), id);
+        }
+        return id;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return ratio of lookups served from cache (0 if there was no lookup)
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0: (double)hits / total;
+    }
+}
@@ -25,12 +25,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import com.pnf.androsig.apply.matcher.DatabaseMatcherFactory;
+import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
 import com.pnf.androsig.apply.matcher.IDatabaseMatcher;
+import com.pnf.androsig.apply.matcher.MatchDelta;
 import com.pnf.androsig.apply.util.DexUtilLocal;
 import com.pnf.androsig.apply.util.MetadataGroupHandler;
-import com.pnf.androsig.apply.util.StructureHandler;
+import com.pnf.androsig.apply.util.StructureBatch;
 import com.pnfsoftware.jeb.core.output.ItemClassIdentifiers;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
@@ -54,10 +57,27 @@ public class StructureInfo {
 
     private IDatabaseMatcher dbMatcher;
 
+    // Matching progress: elapsed time (ms) and number of matched classes at the end of each round
+    private long matchingStartTime;
+    private List<Long> roundTimes = new ArrayList<>();
+    private List<Integer> roundMatchedClasses = new ArrayList<>();
+
     public StructureInfo(Map<String, String> executionOptions, DatabaseReference ref) {
         dbMatcher = DatabaseMatcherFactory.build(executionOptions, ref);
     }
 
+    public StructureInfo(DatabaseMatcherParameters params, DatabaseReference ref) {
+        dbMatcher = DatabaseMatcherFactory.build(params, ref);
+    }
+
+    /**
+     * @param searchExecutor executor of candidate searches, shared by the dex units of an execution
+     *        (may be null, see {@link DatabaseMatcherFactory#newSearchExecutor(DatabaseMatcherParameters)})
+     */
+    public StructureInfo(DatabaseMatcherParameters params, DatabaseReference ref, ExecutorService searchExecutor) {
+        dbMatcher = DatabaseMatcherFactory.build(params, ref, searchExecutor);
+    }
+
     /**
      * Rebuild project structure using signatures.
      * 
@@ -66,14 +86,28 @@ public class StructureInfo {
      * @param dexHashCodeList
      */
     public void rebuildStructure(IDexUnit unit, DexHashcodeList dexHashCodeList) {
+        try {
+            matchStructure(unit, dexHashCodeList);
+        }
+        finally {
+            // no more matching: release search threads
+            dbMatcher.close();
+        }
+    }
+
+    private void matchStructure(IDexUnit unit, DexHashcodeList dexHashCodeList) {
         logger.info("methodSizeBar " + dbMatcher.getParameters().methodSizeBar);
         logger.info("matchedInstusPercentageBar " + dbMatcher.getParameters().matchedInstusPercentageBar);
 
         // First Round using tight signature and loose signature
         logger.info("Signature matching 1 start...");
         final long startTime = System.currentTimeMillis();
+        matchingStartTime = startTime;
+        roundTimes.clear();
+        roundMatchedClasses.clear();
 
         matchingVerOne(unit, dexHashCodeList);
+        recordRound();
 
         final long endTime = System.currentTimeMillis();
         logger.info("Signature matching 1 start completed! (Execution Time: " + (endTime - startTime) / 1000 + "s)");
@@ -85,6 +119,7 @@ public class StructureInfo {
         final long startTime1 = System.currentTimeMillis();
 
         if(Thread.currentThread().isInterrupted()) {
+            applyRenames(unit, dexHashCodeList.getSnapshot());
             return;
         }
 
@@ -101,7 +136,9 @@ public class StructureInfo {
         }
 
         // Move exceptional classes
-        moveExceptionalClasses(unit);
+        moveExceptionalClasses(unit, dexHashCodeList.getSnapshot());
+        // Apply renames and moves to unit
+        applyRenames(unit, dexHashCodeList.getSnapshot());
         // Store all matched methods
         structureResult.storeAllMatchedMethods_new_orgPath(unit, dbMatcher.getMatchedMethods());
         // Store all matched classes
@@ -111,13 +148,13 @@ public class StructureInfo {
     private void matchingVerOne(IDexUnit unit, DexHashcodeList dexHashCodeList) {
         dbMatcher.storeMatchedClassesAndMethods(unit, dexHashCodeList, true);
         // rename matched classes and methods
-        renameMatchedClassesAndMethods(unit);
+        renameMatchedClassesAndMethods(unit, dexHashCodeList.getSnapshot());
         // rename matched packages
-        renameMatchedPackages(unit);
+        renameMatchedPackages(dexHashCodeList.getSnapshot());
 
         Map<Integer, String> newClasses = dbMatcher.postProcessRenameClasses(unit, dexHashCodeList, true);
         Map<Integer, String> newMethods = dbMatcher.postProcessRenameMethods(unit, dexHashCodeList, true);
-        postProcess(unit, newClasses, newMethods);
+        postProcess(unit, dexHashCodeList.getSnapshot(), newClasses, newMethods);
 
         //SignatureHandler.loadAllCallerLists(unit, dbMatcher.getApkCallerLists(), dbMatcher.getMatchedClasses(),
         //        dbMatcher.getMatchedMethods());
@@ -126,13 +163,24 @@ public class StructureInfo {
     private void matchingVerTwo(IDexUnit unit, DexHashcodeList dexHashCodeList) {
         int matchedClassCount = dbMatcher.getMatchedClasses().size();
         logger.info("After matching ver 1 SIZE: " + dbMatcher.getMatchedClasses().size());
+        DexClassDependencies dependencies = dbMatcher.getParameters().worklistMatching
+                ? new DexClassDependencies(unit, dexHashCodeList.getCallGraph(unit)): null;
+        // first pass of ver 2 searches all classes, next ones only search classes impacted by new matches
+        Set<Integer> scope = null;
+        if(dependencies != null) {
+            // matches of ver 1
+            dbMatcher.pollMatchDelta();
+        }
         while(true) {
-            dbMatcher.storeMatchedClassesAndMethods(unit, dexHashCodeList, false);
-            renameMatchedClassesAndMethods(unit);
-            renameMatchedPackages(unit);
+            int previousUsedFiles = dbMatcher.getSignatureMetrics().getAllUsedSignatureFileCount();
+
+            dbMatcher.storeMatchedClassesAndMethods(unit, dexHashCodeList, false, scope);
+            renameMatchedClassesAndMethods(unit, dexHashCodeList.getSnapshot());
+            renameMatchedPackages(dexHashCodeList.getSnapshot());
             Map<Integer, String> newClasses = dbMatcher.postProcessRenameClasses(unit, dexHashCodeList, false);
             Map<Integer, String> newMethods = dbMatcher.postProcessRenameMethods(unit, dexHashCodeList, false);
-            postProcess(unit, newClasses, newMethods);
+            postProcess(unit, dexHashCodeList.getSnapshot(), newClasses, newMethods);
+            recordRound();
 
             logger.info("SIZE: " + dbMatcher.getMatchedClasses().size());
             if(dbMatcher.getMatchedClasses().size() == matchedClassCount) {
@@ -141,15 +189,91 @@ public class StructureInfo {
             else {
                 matchedClassCount = dbMatcher.getMatchedClasses().size();
             }
+            if(dependencies != null) {
+                MatchDelta delta = dbMatcher.pollMatchDelta();
+                if(dbMatcher.getSignatureMetrics().getAllUsedSignatureFileCount() != previousUsedFiles
+                        || !delta.getRemovedClasses().isEmpty()) {
+                    // new used files or freed class names open candidates for any class
+                    scope = null;
+                }
+                else {
+                    scope = dependencies.getImpactedClasses(getModifiedClasses(dependencies, delta));
+                    logger.info("Classes to process in next round: %d", scope.size());
+                }
+            }
             //SignatureHandler.loadAllCallerLists(unit, dbMatcher.getApkCallerLists(), dbMatcher.getMatchedClasses(),
             //        dbMatcher.getMatchedMethods());
         }
     }
 
-    private void postProcess(IDexUnit unit, Map<Integer, String> newClasses, Map<Integer, String> newMethods) {
+    private void recordRound() {
+        long elapsed = System.currentTimeMillis() - matchingStartTime;
+        int matched = dbMatcher.getMatchedClasses().size();
+        roundTimes.add(elapsed);
+        roundMatchedClasses.add(matched);
+        logger.info("Round %d: %d matched classes (%d ms)", roundTimes.size(), matched, elapsed);
+    }
+
+    /**
+     * @return number of matching rounds performed by last {@link #rebuildStructure(IDexUnit, DexHashcodeList)}
+     */
+    public int getRoundCount() {
+        return roundTimes.size();
+    }
+
+    /**
+     * @param coverage ratio of the final number of matched classes (0.0 - 1.0)
+     * @return first round (starting at 1) reaching coverage, or 0 if no round was performed
+     */
+    public int getRoundToCoverage(double coverage) {
+        if(roundMatchedClasses.isEmpty()) {
+            return 0;
+        }
+        int finalMatched = roundMatchedClasses.get(roundMatchedClasses.size() - 1);
+        for(int i = 0; i < roundMatchedClasses.size(); i++) {
+            if(roundMatchedClasses.get(i) >= coverage * finalMatched) {
+                return i + 1;
+            }
+        }
+        return roundMatchedClasses.size();
+    }
+
+    /**
+     * @param coverage ratio of the final number of matched classes (0.0 - 1.0)
+     * @return time (ms) from matching start to the end of the first round reaching coverage, or -1 if
+     *         no round was performed
+     */
+    public long getTimeToCoverage(double coverage) {
+        int round = getRoundToCoverage(coverage);
+        return round == 0 ? -1: roundTimes.get(round - 1);
+    }
+
+    /**
+     * Retrieve classes whose class match or method matches were modified.
+     */
+    private static Set<Integer> getModifiedClasses(DexClassDependencies dependencies, MatchDelta delta) {
+        Set<Integer> modified = new HashSet<>(delta.getClasses().keySet());
+        modified.addAll(delta.getRemovedClasses());
+        addMethodOwners(dependencies, delta.getMethods().keySet(), modified);
+        addMethodOwners(dependencies, delta.getRemovedMethods(), modified);
+        return modified;
+    }
+
+    private static void addMethodOwners(DexClassDependencies dependencies, Set<Integer> methodIndexes,
+            Set<Integer> classIndexes) {
+        for(Integer methodIndex: methodIndexes) {
+            Integer owner = dependencies.getMethodOwner(methodIndex);
+            if(owner != null) {
+                classIndexes.add(owner);
+            }
+        }
+    }
+
+    private void postProcess(IDexUnit unit, DexSnapshot names, Map<Integer, String> newClasses,
+            Map<Integer, String> newMethods) {
         for(Entry<Integer, String> each: newClasses.entrySet()) {
             IDexClass eClass = unit.getClass(each.getKey());
-            StructureHandler.rename(unit, each.getValue(), eClass.getItemId());
+            names.renameClass(each.getKey(), each.getValue());
             MetadataGroupHandler.getCodeGroupClass(unit).setData(eClass.getSignature(false),
                     ItemClassIdentifiers.CODE_ROUTINE.getId());
         }
@@ -157,15 +281,15 @@ public class StructureInfo {
         for(Entry<Integer, String> each: newMethods.entrySet()) {
             IDexMethod method = unit.getMethod(each.getKey());
             String temp = each.getValue();
-            if(temp != null && !method.getName(true).equals(temp)) {
-                StructureHandler.rename(unit, each.getValue(), method.getItemId());
+            if(temp != null && !names.getMethodName(each.getKey()).equals(temp)) {
+                names.renameMethod(each.getKey(), temp);
                 MetadataGroupHandler.getCodeGroupMethod(unit).setData(method.getSignature(false),
                         ItemClassIdentifiers.CODE_LIBRARY.getId());
             }
         }
     }
 
-    private void renameMatchedClassesAndMethods(IDexUnit unit) {
+    private void renameMatchedClassesAndMethods(IDexUnit unit, DexSnapshot names) {
         List<? extends IDexClass> classes = unit.getClasses();
         if(classes == null || classes.size() == 0) {
             return;
@@ -189,7 +313,7 @@ public class StructureInfo {
                     // (will maybe be fixed in future versions)
                 }
                 else {
-                    StructureHandler.rename(unit, className, eClass.getItemId());
+                    names.renameClass(eClass.getIndex(), className);
                 }
                 MetadataGroupHandler.getCodeGroupClass(unit).setData(eClass.getSignature(false),
                         ItemClassIdentifiers.CODE_ROUTINE.getId());
@@ -208,8 +332,8 @@ public class StructureInfo {
 
             for(IDexMethod eMethod: methods) {
                 String temp = dbMatcher.getMatchedMethods().get(eMethod.getIndex());
-                if(temp != null && !eMethod.getName(true).equals(temp)) {
-                    StructureHandler.rename(unit, temp, eMethod.getItemId());
+                if(temp != null && !names.getMethodName(eMethod.getIndex()).equals(temp)) {
+                    names.renameMethod(eMethod.getIndex(), temp);
                     MetadataGroupHandler.getCodeGroupMethod(unit).setData(eMethod.getSignature(false),
                             ItemClassIdentifiers.CODE_LIBRARY.getId());
                 }
@@ -217,7 +341,7 @@ public class StructureInfo {
         }
     }
 
-    private void renameMatchedPackages(IDexUnit unit) {
+    private void renameMatchedPackages(DexSnapshot names) {
         if(dbMatcher.getMatchedClasses() == null || dbMatcher.getMatchedClasses().size() == 0) {
             return;
         }
@@ -225,13 +349,12 @@ public class StructureInfo {
             int lastSlash = eClass.getValue().lastIndexOf("/");
             if(lastSlash >= 0 && !eClass.getValue().contains("$")) {
                 String packagePath = eClass.getValue().substring(0, lastSlash) + ";";
-                StructureHandler.createPackage(unit, packagePath);
-                StructureHandler.moveClass(unit, packagePath, unit.getClass(eClass.getKey()).getItemId());
+                names.moveClass(eClass.getKey(), packagePath);
             }
         }
     }
 
-    private void moveExceptionalClasses(IDexUnit unit) {
+    private void moveExceptionalClasses(IDexUnit unit, DexSnapshot names) {
         List<? extends IDexClass> classes = unit.getClasses();
         if(classes == null || classes.size() == 0) {
             return;
@@ -243,7 +366,7 @@ public class StructureInfo {
             }
             String classSigPath = dbMatcher.getMatchedClasses().get(classIndex);
             // If the class is located in the right package, continue
-            if(classSigPath.equals(eClass.getSignature(true)) || classSigPath.contains("$")) {
+            if(classSigPath.equals(names.getClassSignature(classIndex)) || classSigPath.contains("$")) {
                 continue;
             }
             int pos = classSigPath.lastIndexOf("/");
@@ -251,9 +374,34 @@ public class StructureInfo {
                 continue;  // package-less
             }
             String packageSigPath = classSigPath.substring(0, pos) + ";";
-            StructureHandler.createPackage(unit, packageSigPath);
-            StructureHandler.moveClass(unit, packageSigPath, eClass.getItemId());
+            names.moveClass(classIndex, packageSigPath);
+        }
+    }
+
+    /**
+     * Apply renames and moves recorded in overlay during matching rounds.
+     */
+    private void applyRenames(IDexUnit unit, DexSnapshot names) {
+        StructureBatch batch = new StructureBatch(unit);
+        for(int i = 0; i < names.getClassCount(); i++) {
+            String newName = names.getClassRename(i);
+            if(newName != null) {
+                batch.renameClass(unit.getClass(i), newName);
+            }
+            String packagePath = names.getClassMove(i);
+            if(packagePath != null) {
+                batch.moveClass(unit.getClass(i), packagePath);
+            }
+        }
+        for(int i = 0; i < names.getMethodCount(); i++) {
+            String newName = names.getMethodRename(i);
+            if(newName != null) {
+                batch.renameMethod(unit.getMethod(i), newName);
+            }
         }
+        int requested = batch.size();
+        int executed = batch.apply();
+        logger.info("Renaming: %d operations executed (%d requested)", executed, requested);
     }
 
     public IDatabaseMatcher getDbMatcher() {
@@ -40,6 +40,11 @@ public abstract class AbstractModule implements IAndrosigModule {
         return ref.getSignaturesForClassname(file, className, true);
     }
 
+    public List<MethodSignature> getSignaturesForMethod(DatabaseReferenceFile file, String className,
+            String methodName, String prototype) {
+        return ref.getSignaturesForMethod(file, className, methodName, prototype);
+    }
+
     public DatabaseReferenceFile getFileFromClass(IDexUnit dex, IDexClass dexClass) {
         return fileMatches.getFileFromClass(dex, dexClass);
     }
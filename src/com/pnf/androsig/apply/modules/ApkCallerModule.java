@@ -16,14 +16,17 @@ import java.util.Set;
 import com.pnf.androsig.apply.matcher.ContextMatches;
 import com.pnf.androsig.apply.matcher.DatabaseReferenceFile;
 import com.pnf.androsig.apply.matcher.FileMatches;
+import com.pnf.androsig.apply.matcher.MatchDelta;
 import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.DexCallGraph;
 import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.apply.model.DexSnapshot;
 import com.pnf.androsig.apply.model.MethodSignature;
 import com.pnf.androsig.apply.util.DexUtilLocal;
-import com.pnf.androsig.common.SignatureHandler;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+import com.pnfsoftware.jeb.util.base.Couple;
 import com.pnfsoftware.jeb.util.format.Strings;
 
 /**
@@ -33,7 +36,17 @@ import com.pnfsoftware.jeb.util.format.Strings;
 public class ApkCallerModule extends AbstractModule {
 
 
-    private Map<Integer, Map<Integer, Integer>> apkCallerLists = null;
+    /** callers of each method, built once per dex */
+    private DexCallGraph callGraph = null;
+
+    /** effective names of current unit */
+    private DexSnapshot snapshot = null;
+
+    /** callers are used to filter signatures once post-processing of the pass started */
+    private boolean callersAvailable = false;
+
+    /** matched method signature and callers, as they were when last processed (key: method index) */
+    private Map<Integer, Couple<MethodSignature, Map<String, Integer>>> processedMatches = new HashMap<>();
 
     public ApkCallerModule(ContextMatches contextMatches, FileMatches fileMatches,
             DatabaseReference ref) {
@@ -42,72 +55,99 @@ public class ApkCallerModule extends AbstractModule {
 
     @Override
     public void initNewPass(IDexUnit unit, DexHashcodeList dexHashCodeList, boolean firstRound) {
-        apkCallerLists = new HashMap<>();
+        callGraph = dexHashCodeList.getCallGraph(unit);
+        snapshot = dexHashCodeList.getSnapshot();
+        callersAvailable = false;
     }
 
     @Override
     public Map<Integer, String> postProcessRenameMethods(IDexUnit unit, DexHashcodeList dexHashCodeList,
             boolean firstRound) {
-        if(apkCallerLists.isEmpty()) {
-            SignatureHandler.loadAllCallerLists(unit, apkCallerLists);
+        callersAvailable = true;
+        for(Entry<Integer, MethodSignature> match: fileMatches.entrySetMatchedSigMethods()) {
+            processMatchedMethod(unit, match.getValue(), getCurrentCallers(unit, match.getKey()));
+        }
+        return new HashMap<>();
+    }
+
+    @Override
+    public Map<Integer, String> postProcessRenameMethods(IDexUnit unit, DexHashcodeList dexHashCodeList,
+            boolean firstRound, MatchDelta delta) {
+        for(Integer removed: delta.getRemovedMethods()) {
+            processedMatches.remove(removed);
         }
+        if(delta.isEmpty() && !processedMatches.isEmpty()) {
+            // nothing renamed: callers are the same
+            return new HashMap<>();
+        }
+        callersAvailable = true;
+        // only process matched methods which signature or callers changed since last call
         for(Entry<Integer, MethodSignature> match: fileMatches.entrySetMatchedSigMethods()) {
-            Map<Integer, Integer> callers = apkCallerLists.get(match.getKey());
-            Map<String, Integer> calls = new HashMap<>();
-            if(callers != null) {
-                for(Entry<Integer, Integer> caller: callers.entrySet()) {
-                    IDexMethod m = unit.getMethod(caller.getKey());
-                    Integer count = caller.getValue();
-                    calls.put(m.getSignature(true), count);
-                }
-            }
-            Map<String, Integer> expectedCallers = match.getValue().getTargetCaller();
-            if(expectedCallers.isEmpty() && calls.isEmpty()) {
+            Map<String, Integer> calls = getCurrentCallers(unit, match.getKey());
+            Couple<MethodSignature, Map<String, Integer>> processed = processedMatches.get(match.getKey());
+            if(processed != null && processed.getFirst() == match.getValue() && processed.getSecond().equals(calls)) {
                 continue;
             }
-            if(expectedCallers.isEmpty()) {
-                expectedCallers = getBestCallers(unit, match.getValue());
-                if(expectedCallers == null || expectedCallers.isEmpty()) {
-                    continue;
-                }
-            }
-            if(expectedCallers.size() == 1 && calls.size() == 1) {
-                String expected = expectedCallers.keySet().iterator().next();
-                String current = calls.keySet().iterator().next();
-                if(expectedCallers.get(expected).intValue() == calls.get(current)) {
-                    saveCallerMatching(unit, expected, current);
-                }
+            processedMatches.put(match.getKey(), new Couple<>(match.getValue(), calls));
+            processMatchedMethod(unit, match.getValue(), calls);
+        }
+        return new HashMap<>();
+    }
+
+    private Map<String, Integer> getCurrentCallers(IDexUnit unit, Integer methodIndex) {
+        Map<String, Integer> calls = new HashMap<>();
+        int callerCount = callGraph.getCallerCount(methodIndex);
+        for(int i = 0; i < callerCount; i++) {
+            calls.put(snapshot.getMethodSignature(callGraph.getCaller(methodIndex, i)),
+                    callGraph.getCallCount(methodIndex, i));
+        }
+        return calls;
+    }
+
+    private void processMatchedMethod(IDexUnit unit, MethodSignature match, Map<String, Integer> calls) {
+        Map<String, Integer> expectedCallers = match.getTargetCaller();
+        if(expectedCallers.isEmpty() && calls.isEmpty()) {
+            return;
+        }
+        if(expectedCallers.isEmpty()) {
+            expectedCallers = getBestCallers(unit, match);
+            if(expectedCallers == null || expectedCallers.isEmpty()) {
+                return;
             }
-            else {
-                // look for partial matches
-                saveCallerMatchings(unit, expectedCallers, calls);
+        }
+        if(expectedCallers.size() == 1 && calls.size() == 1) {
+            String expected = expectedCallers.keySet().iterator().next();
+            String current = calls.keySet().iterator().next();
+            if(expectedCallers.get(expected).intValue() == calls.get(current)) {
+                saveCallerMatching(unit, expected, current);
             }
         }
-        return new HashMap<>();
+        else {
+            // look for partial matches
+            saveCallerMatchings(unit, expectedCallers, calls);
+        }
     }
 
     @Override
     public Map<Integer, String> postProcessRenameClasses(IDexUnit dex, DexHashcodeList dexHashCodeList,
             boolean firstRound) {
-        if(apkCallerLists.isEmpty()) {
-            SignatureHandler.loadAllCallerLists(dex, apkCallerLists);
-        }
+        callersAvailable = true;
         return new HashMap<>();
     }
 
     private Map<String, Integer> getBestCallers(IDexUnit unit, MethodSignature value) {
         // wrong MethodSignature? (merged): retrieve the best caller
-        IDexClass cl = unit.getClass(value.getCname());
+        IDexClass cl = snapshot.getClass(unit, value.getCname());
         if(cl == null) {
             return null;
         }
         DatabaseReferenceFile f = getFileFromClass(unit, cl);
         if(f != null) {
             List<MethodSignature> candidates = new ArrayList<>();
-            List<MethodSignature> compatibleSignatures = getSignaturesForClassname(f, value.getCname());
+            List<MethodSignature> compatibleSignatures = getSignaturesForMethod(f, value.getCname(),
+                    value.getMname(), value.getPrototype());
             for(MethodSignature sig: compatibleSignatures) {
-                if(sig.getMname().equals(value.getMname()) && sig.getPrototype().equals(value.getPrototype())
-                        && sig.hasCaller()) {
+                if(sig.hasCaller()) {
                     candidates.add(sig);
                 }
             }
@@ -137,7 +177,7 @@ public class ApkCallerModule extends AbstractModule {
     }
 
     public void saveCallerMatching(IDexUnit unit, String expected, String current) {
-        IDexMethod m = unit.getMethod(current);
+        IDexMethod m = snapshot.getMethod(unit, current);
         if(m == null) {
             // trying to work on non renamed method. renaming failed or was not processed at this point
             return;
@@ -242,7 +282,7 @@ public class ApkCallerModule extends AbstractModule {
             List<String> currentParams = currentsParams.get(resol.getValue());
             String[] currentTokens = currentsSplits.get(resol.getValue());
             applyClassMatching(expectedTokens, currentTokens, null); // FIXME
-            IDexMethod m = unit.getMethod(resol.getValue());
+            IDexMethod m = snapshot.getMethod(unit, resol.getValue());
             if(m == null) {
                 // TODO cannot retrieve method??
                 continue;
@@ -406,9 +446,9 @@ public class ApkCallerModule extends AbstractModule {
             return false;
         }
         current = current.substring(typeChar);
-        IDexClass cl = unit.getClass(current); // must exist
+        IDexClass cl = snapshot.getClass(unit, current); // must exist
         expected = expected.substring(typeChar);
-        IDexClass clExp = unit.getClass(expected); // may be null (obfuscated)
+        IDexClass clExp = snapshot.getClass(unit, expected); // may be null (obfuscated)
         if(cl != null) {
             if(clExp != null) {
                 return false; // not the same class after naming is stable
@@ -426,8 +466,8 @@ public class ApkCallerModule extends AbstractModule {
                     String currentParentName = current.substring(0, currentIdx) + ";";
                     if(!expectedParentName.equals(currentParentName)) {
                         // are subclasses compatible
-                        IDexClass clParentExp = unit.getClass(expectedParentName);
-                        IDexClass clParent = unit.getClass(currentParentName);
+                        IDexClass clParentExp = snapshot.getClass(unit, expectedParentName);
+                        IDexClass clParent = snapshot.getClass(unit, currentParentName);
                         if(clParentExp != null) {
                             return false; // not the same class after naming is stable
                         }
@@ -452,11 +492,12 @@ public class ApkCallerModule extends AbstractModule {
     @Override
     public Set<MethodSignature> filterList(IDexUnit dex, IDexMethod eMethod, List<MethodSignature> results) {
         // secondly, filter by caller
-        if(apkCallerLists.isEmpty()) {
+        if(!callersAvailable) {
             return null;
         }
-        Map<Integer, Integer> callers = apkCallerLists.get(eMethod.getIndex());
-        if(callers == null) {
+        int callee = eMethod.getIndex();
+        int callerCount = callGraph.getCallerCount(callee);
+        if(callerCount == 0) {
             return null;
         }
         // caller may not be referenced in lib
@@ -466,12 +507,11 @@ public class ApkCallerModule extends AbstractModule {
             if(targets.isEmpty()) {
                 continue;
             }
-            for(Entry<Integer, Integer> c: callers.entrySet()) {
+            for(int i = 0; i < callerCount; i++) {
                 // is there a method matching?
                 // FIXME allow partial matching? maybe in later steps
-                IDexMethod cMethod = dex.getMethod(c.getKey());
-                Integer occ = targets.remove(cMethod.getSignature(true));
-                if(occ == null || occ != c.getValue()) {
+                Integer occ = targets.remove(snapshot.getMethodSignature(callGraph.getCaller(callee, i)));
+                if(occ == null || occ != callGraph.getCallCount(callee, i)) {
                     //not the same method
                     continue outer;
                 }
@@ -12,7 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeSet;
 
 import com.pnf.androsig.apply.matcher.ContextMatches;
 import com.pnf.androsig.apply.matcher.DatabaseMatcherParameters;
@@ -20,16 +20,16 @@ import com.pnf.androsig.apply.matcher.DatabaseReferenceFile;
 import com.pnf.androsig.apply.matcher.FileMatches;
 import com.pnf.androsig.apply.matcher.HierarchyMatcher;
 import com.pnf.androsig.apply.matcher.IAndrosigModule;
+import com.pnf.androsig.apply.matcher.MatchDelta;
 import com.pnf.androsig.apply.matcher.MatchingSearch;
 import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.apply.model.DexSnapshot;
 import com.pnf.androsig.apply.model.MethodSignature;
 import com.pnf.androsig.apply.util.DexUtilLocal;
-import com.pnfsoftware.jeb.core.units.code.IInstruction;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
 import com.pnfsoftware.jeb.util.base.Couple;
 import com.pnfsoftware.jeb.util.format.Strings;
 
@@ -42,6 +42,11 @@ public class MethodFinderModule extends AbstractModule {
     private DatabaseMatcherParameters params;
     private List<IAndrosigModule> modules;
 
+    /** matched classes which inheritance was already injected to context */
+    private Set<Integer> inheritanceInjected = new HashSet<>();
+    /** matched classes which were still incomplete when last processed */
+    private Set<Integer> incompleteClasses = new HashSet<>();
+
     public MethodFinderModule(ContextMatches contextMatches, FileMatches fileMatches,
             DatabaseReference ref, DatabaseMatcherParameters params, List<IAndrosigModule> modules) {
         super(contextMatches, fileMatches, ref);
@@ -63,198 +68,285 @@ public class MethodFinderModule extends AbstractModule {
                 // class not loaded in dex (maybe in another dex)
                 continue;
             }
-            DatabaseReferenceFile refFile = fileMatches.getFileFromClass(dex, eClass);
-            Set<DatabaseReferenceFile> refFiles = null;
-            if(refFile == null) {
-                // update matchedClassesFile
-                refFile = fileMatches.getMatchedClassFile(dex, eClass, entry.getValue(), ref);
-            }
-            List<? extends IDexMethod> methods = eClass.getMethods();
-            if(methods == null || methods.size() == 0) {
-                // empty class
+            processMatchedClass(dex, dexHashCodeList, firstRound, eClass, entry.getValue(), true);
+        }
+
+        return new HashMap<>();
+    }
+
+    @Override
+    public Map<Integer, String> postProcessRenameClasses(IDexUnit dex, DexHashcodeList dexHashCodeList,
+            boolean firstRound, MatchDelta delta) {
+        DexSnapshot snapshot = dexHashCodeList.getSnapshot();
+        for(Integer removed: delta.getRemovedClasses()) {
+            inheritanceInjected.remove(removed);
+            incompleteClasses.remove(removed);
+        }
+        // only process classes which were modified, whose methods were modified or which still have
+        // unmatched methods
+        Set<Integer> toProcess = new TreeSet<>(incompleteClasses);
+        for(Integer modified: delta.getClasses().keySet()) {
+            inheritanceInjected.remove(modified);
+            toProcess.add(modified);
+        }
+        addDeclaringClasses(snapshot, delta.getMethods().keySet(), toProcess);
+        addDeclaringClasses(snapshot, delta.getRemovedMethods(), toProcess);
+        for(Integer classIndex: toProcess) {
+            String className = fileMatches.getMatchedClass(classIndex);
+            IDexClass eClass = dex.getClass(classIndex);
+            if(className == null || eClass == null) {
+                // not matched or class not loaded in dex (maybe in another dex)
+                incompleteClasses.remove(classIndex);
                 continue;
             }
-            String className = entry.getValue(); //eClass.getSignature(true); // watch out!! if class was not renamed (for example, anonymous classes)
+            boolean injectInheritance = !inheritanceInjected.contains(classIndex);
+            processMatchedClass(dex, dexHashCodeList, firstRound, eClass, className, injectInheritance);
+            if(isIncomplete(eClass)) {
+                incompleteClasses.add(classIndex);
+            }
+            else {
+                incompleteClasses.remove(classIndex);
+            }
+        }
 
-            MatchingSearch search = new MatchingSearch(dex, dexHashCodeList, ref, params, fileMatches,
-                    modules, firstRound, false);
-            List<MethodSignature> alreadyMatches = getAlreadyMatched(dex, className, methods, search, refFile);
-            int matchedMethodsSize = alreadyMatches.size();
-            do {
-                matchedMethodsSize = alreadyMatches.size();
-                for(IDexMethod eMethod: methods) {
-                    if(!eMethod.isInternal() || fileMatches.containsMatchedMethod(eMethod)) {
-                        continue;
-                    }
+        return new HashMap<>();
+    }
+
+    private static void addDeclaringClasses(DexSnapshot snapshot, Set<Integer> methodIndexes,
+            Set<Integer> classIndexes) {
+        for(Integer methodIndex: methodIndexes) {
+            int classIndex = snapshot.getClassId(methodIndex);
+            if(classIndex >= 0) {
+                classIndexes.add(classIndex);
+            }
+        }
+    }
+
+    /**
+     * @return true if the matched class may be completed later: unmatched methods or inheritance
+     *         not injected yet (file not determined)
+     */
+    private boolean isIncomplete(IDexClass eClass) {
+        List<? extends IDexMethod> methods = eClass.getMethods();
+        if(methods == null || methods.size() == 0) {
+            // empty class: nothing more can be found
+            return false;
+        }
+        if(!inheritanceInjected.contains(eClass.getIndex())) {
+            return true;
+        }
+        for(IDexMethod eMethod: methods) {
+            if(eMethod.isInternal() && !fileMatches.containsMatchedMethod(eMethod)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Search unmatched methods of a matched class.
+     * 
+     * @param className matched class name (watch out!! can be different from
+     *        eClass.getSignature(true) if class was not renamed, for example, anonymous classes)
+     * @param injectInheritance inject hierarchy of signature class as context matches
+     */
+    private void processMatchedClass(IDexUnit dex, DexHashcodeList dexHashCodeList, boolean firstRound,
+            IDexClass eClass, String className, boolean injectInheritance) {
+        DatabaseReferenceFile refFile = fileMatches.getFileFromClass(dex, eClass);
+        Set<DatabaseReferenceFile> refFiles = null;
+        if(refFile == null) {
+            // update matchedClassesFile
+            refFile = fileMatches.getMatchedClassFile(dex, eClass, className, ref);
+        }
+        List<? extends IDexMethod> methods = eClass.getMethods();
+        if(methods == null || methods.size() == 0) {
+            // empty class
+            return;
+        }
+
+        DexSnapshot snapshot = dexHashCodeList.getSnapshot();
+        MatchingSearch search = new MatchingSearch(dex, dexHashCodeList, ref, params, fileMatches,
+                modules, firstRound, false);
+        List<MethodSignature> alreadyMatches = getAlreadyMatched(dex, snapshot, className, methods, search, refFile);
+        int matchedMethodsSize = alreadyMatches.size();
+        do {
+            matchedMethodsSize = alreadyMatches.size();
+            for(IDexMethod eMethod: methods) {
+                if(!eMethod.isInternal() || fileMatches.containsMatchedMethod(eMethod)) {
+                    continue;
+                }
+
+                if(refFiles == null) {
+                    // lazy file init of files
+                    if(refFile != null) {
+                        refFiles = new HashSet<>();
+                        refFiles.add(refFile);
+                    }
+                    else {
+                        refFiles = fileMatches.getCandidateFilesFromClass(dex, eClass);
+                    }
                     if(refFiles == null) {
-                        // lazy file init of files
-                        if(refFile != null) {
-                            refFiles = new HashSet<>();
-                            refFiles.add(refFile);
-                        }
-                        else {
-                            refFiles = fileMatches.getCandidateFilesFromClass(dex, eClass);
-                        }
-                        if(refFiles == null) {
-                            break;
-                        }
+                        break;
                     }
+                }
 
-                    List<? extends IInstruction> instructions = eMethod.getInstructions();
-                    String methodHint = getHintMethodName(eMethod);
+                int instructionCount = snapshot.getInstructionCount(eMethod.getIndex());
+                String methodHint = getHintMethodName(eMethod);
 
-                    String methodNameMerged = "";
-                    List<MethodSignature> strArrays = new ArrayList<>();
-                    IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
-                    String prototypes = proto.generate(true);
-                    String shorty = proto.getShorty();
-                    if(methodHint == null && instructions != null && instructions.size() > params.methodSizeBar) {
-                        String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
-                        if(mhash_tight == null) {
-                            continue;
-                        }
-                        for(DatabaseReferenceFile file: refFiles) {
-                            MethodSignature strArray = search.findMethodMatch(file, mhash_tight, prototypes, shorty,
-                                    className, alreadyMatches, eMethod, false);
-                            if(strArray != null) {
-                                String newMethodName = strArray.getMname();
-                                if(newMethodName.isEmpty()) {
-                                    methodNameMerged = null;
-                                    break;
-                                }
-                                else if(methodNameMerged.isEmpty()) {
-                                    methodNameMerged = newMethodName;
-                                    strArrays.add(strArray);
-                                }
-                                else if(!methodNameMerged.equals(newMethodName)) {
-                                    methodNameMerged = null;
-                                    break;
-                                }
-                            }
-                            else {
+                String methodNameMerged = "";
+                List<MethodSignature> strArrays = new ArrayList<>();
+                String prototypes = snapshot.getMethodEffectivePrototype(eMethod.getIndex());
+                String shorty = snapshot.getMethodShorty(eMethod.getIndex());
+                if(methodHint == null && instructionCount > params.methodSizeBar) {
+                    String mhash_tight = dexHashCodeList.getTightHashcode(eMethod);
+                    if(mhash_tight == null) {
+                        continue;
+                    }
+                    for(DatabaseReferenceFile file: refFiles) {
+                        MethodSignature strArray = search.findMethodMatch(file, mhash_tight, prototypes, shorty,
+                                className, alreadyMatches, eMethod, false);
+                        if(strArray != null) {
+                            String newMethodName = strArray.getMname();
+                            if(newMethodName.isEmpty()) {
                                 methodNameMerged = null;
                                 break;
                             }
-                        }
-                    } // no instructions == no hash
-                    if(methodHint != null || (Strings.isBlank(methodNameMerged) && !firstRound)) {
-                        // attempt signature matching only
-                        methodNameMerged = "";
-                        Map<String, Map<DatabaseReferenceFile, MethodSignature>> strArraysMap = new HashMap<>();
-                        List<DatabaseReferenceFile> toRemove = new ArrayList<>();
-                        for(DatabaseReferenceFile file: refFiles) {
-                            List<MethodSignature> sigs = search.getSignaturesForClassname(file, className, true,
-                                    eMethod);
-                            if(sigs.isEmpty()) {
-                                continue;
-                            }
-                            if(methodHint != null) {
-                                sigs = sigs.stream().filter(s -> methodHint.equals(s.getMname()))
-                                        .collect(Collectors.toList());
-                            }
-                            MethodSignature strArray = search.findMethodName(sigs, prototypes, shorty, className,
-                                    alreadyMatches, eMethod);
-                            if(strArray != null) {
-                                Map<DatabaseReferenceFile, MethodSignature> map = strArraysMap.get(strArray.getMname());
-                                if(map == null) {
-                                    map = new HashMap<>();
-                                    strArraysMap.put(strArray.getMname(), map);
-                                }
-                                map.put(file, strArray);
-                            }
-                            else {
-                                toRemove.add(file); // no method match in this file => not a good one
+                            else if(methodNameMerged.isEmpty()) {
+                                methodNameMerged = newMethodName;
+                                strArrays.add(strArray);
                             }
-                        }
-                        if(!toRemove.isEmpty() && toRemove.size() != refFiles.size()) {
-                            // not a single reference found for signature
-                            for(DatabaseReferenceFile r: toRemove) {
-                                fileMatches.removeCandidateFile(r);
+                            else if(!methodNameMerged.equals(newMethodName)) {
+                                methodNameMerged = null;
+                                break;
                             }
                         }
-                        if(strArraysMap.size() == 1) {
-                            Map<DatabaseReferenceFile, MethodSignature> map = strArraysMap.values().iterator().next();
-                            strArrays = new ArrayList<>(map.values());
-                            methodNameMerged = strArraysMap.keySet().iterator().next();
+                        else {
+                            methodNameMerged = null;
+                            break;
                         }
                     }
-
-                    if(!Strings.isBlank(methodNameMerged)) {//&& !eMethod.getName(true).equals(methodName)) {
-                        MethodSignature strArray = null;
-                        if(strArrays.size() == 1) {
-                            strArray = strArrays.get(0);
+                } // no instructions == no hash
+                if(methodHint != null || (Strings.isBlank(methodNameMerged) && !firstRound)) {
+                    // attempt signature matching only
+                    methodNameMerged = "";
+                    Map<String, Map<DatabaseReferenceFile, MethodSignature>> strArraysMap = new HashMap<>();
+                    List<DatabaseReferenceFile> toRemove = new ArrayList<>();
+                    for(DatabaseReferenceFile file: refFiles) {
+                        List<MethodSignature> sigs;
+                        if(methodHint != null) {
+                            sigs = search.getSignaturesForMethod(file, className, methodHint, eMethod);
+                            if(sigs.isEmpty()
+                                    && search.getSignaturesForClassname(file, className, true, eMethod).isEmpty()) {
+                                continue;
+                            }
                         }
                         else {
-                            strArray = MethodSignature.mergeSignatures(strArrays, false, eMethod);
-                            if(strArray.getPrototype().isEmpty()) {
-                                strArray = null;
+                            sigs = search.getSignaturesForClassname(file, className, true, eMethod);
+                            if(sigs.isEmpty()) {
+                                continue;
                             }
                         }
-                        if(strArray == null) {
-                            // classes renamed or moved
-                            saveMethodMatch(eMethod.getIndex(), methodNameMerged);
+                        MethodSignature strArray = search.findMethodName(sigs, prototypes, shorty, className,
+                                alreadyMatches, eMethod);
+                        if(strArray != null) {
+                            Map<DatabaseReferenceFile, MethodSignature> map = strArraysMap.get(strArray.getMname());
+                            if(map == null) {
+                                map = new HashMap<>();
+                                strArraysMap.put(strArray.getMname(), map);
+                            }
+                            map.put(file, strArray);
                         }
                         else {
-                            fileMatches.addMatchedMethod(dex, eMethod.getIndex(), strArray);
-                            alreadyMatches.add(strArray);
+                            toRemove.add(file); // no method match in this file => not a good one
+                        }
+                    }
+                    if(!toRemove.isEmpty() && toRemove.size() != refFiles.size()) {
+                        // not a single reference found for signature
+                        for(DatabaseReferenceFile r: toRemove) {
+                            fileMatches.removeCandidateFile(r);
                         }
                     }
+                    if(strArraysMap.size() == 1) {
+                        Map<DatabaseReferenceFile, MethodSignature> map = strArraysMap.values().iterator().next();
+                        strArrays = new ArrayList<>(map.values());
+                        methodNameMerged = strArraysMap.keySet().iterator().next();
+                    }
                 }
-            }
-            while(matchedMethodsSize != alreadyMatches.size());
 
-            // inject inheritance (sometimes only way for empty classes)
-            if(refFile != null) {
-                Couple<String, List<String>> hierarchy = ref.getParentForClassname(refFile, className);
-                if(hierarchy != null) {
-                    HierarchyMatcher hierarchyMgr = new HierarchyMatcher(eClass);
-                    String supertype = hierarchy.getFirst();
-                    List<String> interfaces = hierarchy.getSecond();
-                    if(supertype != null) {
-                        saveClassMatchInherit(hierarchyMgr.getSuperType(),
-                                supertype, className);
+                if(!Strings.isBlank(methodNameMerged)) {//&& !eMethod.getName(true).equals(methodName)) {
+                    MethodSignature strArray = null;
+                    if(strArrays.size() == 1) {
+                        strArray = strArrays.get(0);
                     }
-                    if(interfaces != null && !interfaces.isEmpty()) {
-                        List<String> realInterfaces = hierarchyMgr.getInterfaces();
-                        // remove same name
-                        for(int i = 0; i < realInterfaces.size(); i++) {
-                            String realSig = realInterfaces.get(i);
-                            for(int j = 0; j < interfaces.size(); j++) {
-                                String sig = interfaces.get(j);
-                                if(realSig.equals(sig)) {
-                                    realInterfaces.remove(i);
-                                    i--;
-                                    interfaces.remove(j);
-                                    break;
-                                }
-                            }
+                    else {
+                        strArray = MethodSignature.mergeSignatures(strArrays, false,
+                                snapshot.getMethodName(eMethod.getIndex()));
+                        if(strArray.getPrototype().isEmpty()) {
+                            strArray = null;
                         }
-                        if(realInterfaces.size() == 1 && interfaces.size() == 1) {
-                            saveClassMatchInherit(realInterfaces.get(0), interfaces.get(0), className);
+                    }
+                    if(strArray == null) {
+                        // classes renamed or moved
+                        saveMethodMatch(eMethod.getIndex(), methodNameMerged);
+                    }
+                    else {
+                        fileMatches.addMatchedMethod(dex, eMethod.getIndex(), strArray);
+                        alreadyMatches.add(strArray);
+                    }
+                }
+            }
+        }
+        while(matchedMethodsSize != alreadyMatches.size());
+
+        // inject inheritance (sometimes only way for empty classes)
+        if(refFile != null && injectInheritance) {
+            inheritanceInjected.add(eClass.getIndex());
+            Couple<String, List<String>> hierarchy = ref.getParentForClassname(refFile, className);
+            if(hierarchy != null) {
+                HierarchyMatcher hierarchyMgr = new HierarchyMatcher(snapshot, eClass);
+                String supertype = hierarchy.getFirst();
+                List<String> interfaces = hierarchy.getSecond();
+                if(supertype != null) {
+                    saveClassMatchInherit(hierarchyMgr.getSuperType(),
+                            supertype, className);
+                }
+                if(interfaces != null && !interfaces.isEmpty()) {
+                    List<String> realInterfaces = hierarchyMgr.getInterfaces();
+                    // remove same name
+                    for(int i = 0; i < realInterfaces.size(); i++) {
+                        String realSig = realInterfaces.get(i);
+                        for(int j = 0; j < interfaces.size(); j++) {
+                            String sig = interfaces.get(j);
+                            if(realSig.equals(sig)) {
+                                realInterfaces.remove(i);
+                                i--;
+                                interfaces.remove(j);
+                                break;
+                            }
                         }
-                        else if(!realInterfaces.isEmpty() && !interfaces.isEmpty()) {
-                            // attempt to bind them
-                            for(String interName: realInterfaces) {
-                                // interfaces may not all be imported (obfuscation)
-                                List<String> candidates = new ArrayList<>();
-                                for(String c: interfaces) {
-                                    if(DexUtilLocal.isCompatibleClasses(c, interName)) {
-                                        candidates.add(c);
-                                    }
-                                }
-                                if(candidates.size() == 1) {
-                                    saveClassMatchInherit(interName, candidates.get(0), className);
-                                    interfaces.remove(candidates.get(0));
+                    }
+                    if(realInterfaces.size() == 1 && interfaces.size() == 1) {
+                        saveClassMatchInherit(realInterfaces.get(0), interfaces.get(0), className);
+                    }
+                    else if(!realInterfaces.isEmpty() && !interfaces.isEmpty()) {
+                        // attempt to bind them
+                        for(String interName: realInterfaces) {
+                            // interfaces may not all be imported (obfuscation)
+                            List<String> candidates = new ArrayList<>();
+                            for(String c: interfaces) {
+                                if(DexUtilLocal.isCompatibleClasses(c, interName)) {
+                                    candidates.add(c);
                                 }
                             }
+                            if(candidates.size() == 1) {
+                                saveClassMatchInherit(interName, candidates.get(0), className);
+                                interfaces.remove(candidates.get(0));
+                            }
                         }
                     }
-                } // else wait for right version or parent data not available
-            }
+                }
+            } // else wait for right version or parent data not available
         }
-
-        return new HashMap<>();
     }
 
     private String getHintMethodName(IDexMethod eMethod) {
@@ -276,8 +368,8 @@ public class MethodFinderModule extends AbstractModule {
         return null;
     }
 
-    private List<MethodSignature> getAlreadyMatched(IDexUnit dex, String className, List<? extends IDexMethod> methods,
-            MatchingSearch search, DatabaseReferenceFile file) {
+    private List<MethodSignature> getAlreadyMatched(IDexUnit dex, DexSnapshot snapshot, String className,
+            List<? extends IDexMethod> methods, MatchingSearch search, DatabaseReferenceFile file) {
         List<MethodSignature> alreadyMatches = new ArrayList<>();
         for(IDexMethod eMethod: methods) {
             String methodName = fileMatches.getMatchedMethod(eMethod);
@@ -294,9 +386,8 @@ public class MethodFinderModule extends AbstractModule {
                     fileMatches.bindMatchedSigMethod(dex, eMethod, ms);
                 }
                 else {
-                    IDexPrototype proto = dex.getPrototype(eMethod.getPrototypeIndex());
-                    String prototypes = proto.generate(true);
-                    String shorty = proto.getShorty();
+                    String prototypes = snapshot.getMethodEffectivePrototype(eMethod.getIndex());
+                    String shorty = snapshot.getMethodShorty(eMethod.getIndex());
                     ms = new MethodSignature(className, methodName, shorty, prototypes, null);
                 }
             }
@@ -6,12 +6,14 @@
 package com.pnf.androsig.apply.modules;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 
 import com.pnf.androsig.apply.matcher.ContextMatches;
@@ -22,19 +24,24 @@ import com.pnf.androsig.apply.matcher.IAndrosigModule;
 import com.pnf.androsig.apply.matcher.MatchingSearch;
 import com.pnf.androsig.apply.model.DatabaseReference;
 import com.pnf.androsig.apply.model.DexHashcodeList;
+import com.pnf.androsig.apply.model.DexSnapshot;
 import com.pnf.androsig.apply.model.MethodSignature;
+import com.pnf.androsig.apply.model.PrototypeDescriptor;
+import com.pnf.androsig.apply.model.PrototypeTable;
 import com.pnf.androsig.apply.util.DexUtilLocal;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
 import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
-import com.pnfsoftware.jeb.core.units.code.android.dex.IDexPrototype;
 import com.pnfsoftware.jeb.util.format.Strings;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
 
 /**
  * @author Cedric Lucas
  *
  */
 public class ReverseMatchingModule extends AbstractModule {
+    private static final ILogger logger = GlobalLog.getLogger(ReverseMatchingModule.class);
 
     private DatabaseMatcherParameters params;
     private List<IAndrosigModule> modules;
@@ -56,31 +63,51 @@ public class ReverseMatchingModule extends AbstractModule {
         if(!firstRound) {
             // search in used files if there are matching class that can apply to current project
             Map<DatabaseReferenceFile, List<ClassInfo>> mostUsed = getMostUsedFiles();
+            if(mostUsed.isEmpty()) {
+                return new HashMap<>();
+            }
             MatchingSearch mSearch = new MatchingSearch(dex, dexHashCodeList, ref, params, fileMatches,
                     modules, firstRound, false);
-            List<? extends IDexClass> classes = dex.getClasses();
-            for(Entry<DatabaseReferenceFile, List<ClassInfo>> entry: mostUsed.entrySet()) {
+            DexSnapshot snapshot = dexHashCodeList.getSnapshot();
+            PrototypeTable table = snapshot.getPrototypeTable();
+            int objectType = table.getTypeId("Ljava/lang/Object;");
+            int stringType = table.getTypeId("Ljava/lang/String;");
+            DexShapeIndex shapes = new DexShapeIndex(dex.getClasses(), snapshot,
+                    params.reverseMatchingMethodThreshold, this::hasMatchedClass);
+            long t0 = System.currentTimeMillis();
+            int libraryClasses = 0;
+            int comparisons = 0;
+            int pruned = 0;
+            boolean budgetExceeded = false;
+            loop: for(Entry<DatabaseReferenceFile, List<ClassInfo>> entry: mostUsed.entrySet()) {
                 // is there a class in project that match?
                 for(ClassInfo cl: entry.getValue()) {
+                    if(params.reverseMatchingTimeBudget > 0
+                            && System.currentTimeMillis() - t0 > params.reverseMatchingTimeBudget) {
+                        budgetExceeded = true;
+                        break loop;
+                    }
+                    libraryClasses++;
+                    int[] maxMatchesPerShorty = shapes.getMaxMatchesPerShorty(cl.signatures);
                     Map<Integer, MethodSignature> bestCandidate = new HashMap<>();
                     IDexClass classCandidate = null;
-                    List<MethodSignature> alreadyMatches = new ArrayList<>();
-                    Map<Integer, MethodSignature> current = new HashMap<>();
-                    long t0 = System.currentTimeMillis();
-                    for(IDexClass eClass: classes) {
+                    int candidatePosition = -1;
+                    // only dex classes with an acceptable number of methods
+                    for(int i = shapes.getFirstClass(params.reverseMatchingMethodThreshold); i < shapes.size()
+                            && shapes.getMethodCount(i) <= cl.distinctSignaturesSize; i++) {
+                        IDexClass eClass = shapes.getClass(i);
                         if(hasMatchedClass(eClass.getIndex())) {
                             continue;
                         }
-                        // candidate?
-                        List<? extends IDexMethod> methods = eClass.getMethods();
-                        if(methods == null || methods.size() == 0
-                                || methods.size() < params.reverseMatchingMethodThreshold
-                                || methods.size() > cl.distinctSignaturesSize) {
-                            // empty class or not enough methods or much methods regarding current class
+                        if(shapes.getMaxMatches(i, maxMatchesPerShorty) < params.reverseMatchingMethodThreshold) {
+                            // not enough methods with a compatible shorty
+                            pruned++;
                             continue;
                         }
-
-                        for(IDexMethod m: methods) {
+                        comparisons++;
+                        List<MethodSignature> alreadyMatches = new ArrayList<>();
+                        Map<Integer, MethodSignature> current = new HashMap<>();
+                        for(IDexMethod m: eClass.getMethods()) {
                             if(!m.isInternal()) {
                                 continue;
                             }
@@ -96,12 +123,14 @@ public class ReverseMatchingModule extends AbstractModule {
                             }
                         }
 
-                        if(current.size() > bestCandidate.size()) {
+                        // on equality, first class in dex order
+                        if(current.size() > bestCandidate.size() || (classCandidate != null
+                                && current.size() == bestCandidate.size() && shapes.getPosition(i) < candidatePosition)) {
                             bestCandidate = current;
                             classCandidate = eClass;
+                            candidatePosition = shapes.getPosition(i);
                         }
                     }
-                    System.out.println("took " + (System.currentTimeMillis() - t0));
 
                     if(bestCandidate.size() < params.reverseMatchingMethodThreshold) {
                         continue;
@@ -109,33 +138,32 @@ public class ReverseMatchingModule extends AbstractModule {
                     // is best candidate a valid one?
                     int nbObjParam = 0;
                     for(Entry<Integer, MethodSignature> en: bestCandidate.entrySet()) {
-                        String[] mparams = en.getValue().getPrototype().substring(1).split("\\)");
-                        List<String> mparamsList = DexUtilLocal.parseSignatureParameters(mparams[0]);
-                        mparamsList.add(mparams[1]); // return value
-
-                        IDexPrototype proto = dex.getPrototype(dex.getMethod(en.getKey()).getPrototypeIndex());
-                        String prototypes = proto.generate(true);
-                        String[] realParams = prototypes.substring(1).split("\\)");
-                        List<String> realParamList = DexUtilLocal.parseSignatureParameters(realParams[0]);
-                        realParamList.add(realParams[1]); // return value
-
-                        for(int i = 0; i < mparamsList.size(); i++) {
-                            String p = mparamsList.get(i);
-                            String r = realParamList.get(i);
-                            if(p.length() == 1) {
+                        PrototypeDescriptor expected = table.get(en.getValue().getPrototype());
+                        PrototypeDescriptor real = snapshot.getMethodEffectivePrototypeDescriptor(en.getKey());
+                        if(expected == null || real == null) {
+                            continue;
+                        }
+                        for(int i = 0; i < expected.getTypeCount(); i++) {
+                            if(expected.isPrimitive(i)) {
                                 //native
                                 continue;
                             }
-                            else if(!p.equals("Ljava/lang/Object;") && !p.equals("Ljava/lang/String;") && p.equals(r)) {
+                            int typeId = expected.getTypeId(i);
+                            if(typeId != objectType && typeId != stringType && i < real.getTypeCount()
+                                    && typeId == real.getTypeId(i)) {
                                 nbObjParam++;
                             }
                         }
                     }
                     if(nbObjParam >= params.reverseMatchingComplexObjectThreshold) {
-                        saveClassMatchInherit(classCandidate.getSignature(true), cl.classname, "");
+                        saveClassMatchInherit(snapshot.getClassSignature(classCandidate.getIndex()), cl.classname,
+                                "");
                     }
                 }
             }
+            logger.debug("Reverse matching: %d library classes, %d class comparisons (%d pruned by shape) in %dms%s",
+                    libraryClasses, comparisons, pruned, System.currentTimeMillis() - t0,
+                    budgetExceeded ? " (time budget exceeded)": "");
         }
         return new HashMap<>();
     }
@@ -166,6 +194,137 @@ public class ReverseMatchingModule extends AbstractModule {
 
     }
 
+    /**
+     * Unmatched dex classes, sorted by number of methods, with the shorty ids of their internal methods.
+     * A dex method can only be matched by a signature with the same shorty: the number of methods of a
+     * class that can be matched has an upper bound, computed without loading anything.
+     */
+    private static class DexShapeIndex {
+        private Map<String, Integer> shortyIds = new HashMap<>();
+        private IDexClass[] classes;
+        /** position in dex class list */
+        private int[] positions;
+        private int[] methodCounts;
+        /** sorted shorty ids, with class position as index */
+        private int[][] shorties;
+
+        /**
+         * @param minMethods classes with less methods are not indexed
+         * @param matched classes already matched (by index), not indexed
+         */
+        DexShapeIndex(List<? extends IDexClass> dexClasses, DexSnapshot snapshot, int minMethods,
+                IntPredicate matched) {
+            List<Integer> sorted = new ArrayList<>();
+            for(int i = 0; i < dexClasses.size(); i++) {
+                List<? extends IDexMethod> methods = dexClasses.get(i).getMethods();
+                if(methods != null && !methods.isEmpty() && methods.size() >= minMethods
+                        && !matched.test(dexClasses.get(i).getIndex())) {
+                    sorted.add(i);
+                }
+            }
+            // stable: dex order for same number of methods
+            sorted.sort((p1, p2) -> Integer.compare(dexClasses.get(p1).getMethods().size(),
+                    dexClasses.get(p2).getMethods().size()));
+            classes = new IDexClass[sorted.size()];
+            positions = new int[classes.length];
+            for(int i = 0; i < classes.length; i++) {
+                positions[i] = sorted.get(i);
+                classes[i] = dexClasses.get(positions[i]);
+            }
+            methodCounts = new int[classes.length];
+            shorties = new int[classes.length][];
+            for(int i = 0; i < classes.length; i++) {
+                List<? extends IDexMethod> methods = classes[i].getMethods();
+                methodCounts[i] = methods.size();
+                int[] ids = new int[methods.size()];
+                int size = 0;
+                for(IDexMethod m: methods) {
+                    if(m.isInternal()) {
+                        String shorty = snapshot.getMethodShorty(m.getIndex());
+                        Integer id = shortyIds.get(shorty);
+                        if(id == null) {
+                            id = shortyIds.size();
+                            shortyIds.put(shorty, id);
+                        }
+                        ids[size++] = id;
+                    }
+                }
+                ids = Arrays.copyOf(ids, size);
+                Arrays.sort(ids);
+                shorties[i] = ids;
+            }
+        }
+
+        int size() {
+            return classes.length;
+        }
+
+        IDexClass getClass(int i) {
+            return classes[i];
+        }
+
+        int getPosition(int i) {
+            return positions[i];
+        }
+
+        int getMethodCount(int i) {
+            return methodCounts[i];
+        }
+
+        /**
+         * @return position of first class with at least minMethods methods
+         */
+        int getFirstClass(int minMethods) {
+            int low = 0;
+            int high = methodCounts.length;
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(methodCounts[mid] < minMethods) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return maximum number of dex methods that can be matched per shorty id (distinct signatures
+         *         having this shorty)
+         */
+        int[] getMaxMatchesPerShorty(List<MethodSignature> signatures) {
+            int[] res = new int[shortyIds.size()];
+            Set<String> distinctSignatures = new HashSet<>();
+            for(MethodSignature sig: signatures) {
+                Integer id = shortyIds.get(sig.getShorty());
+                if(id != null && distinctSignatures.add(sig.getMname() + sig.getPrototype())) {
+                    res[id]++;
+                }
+            }
+            return res;
+        }
+
+        /**
+         * @return upper bound of the number of methods of class at position i that can be matched
+         */
+        int getMaxMatches(int i, int[] maxMatchesPerShorty) {
+            int[] ids = shorties[i];
+            int res = 0;
+            int j = 0;
+            while(j < ids.length) {
+                int id = ids[j];
+                int count = 0;
+                while(j < ids.length && ids[j] == id) {
+                    count++;
+                    j++;
+                }
+                res += Math.min(count, maxMatchesPerShorty[id]);
+            }
+            return res;
+        }
+    }
+
     private ClassInfo buildClassInfo(DatabaseReferenceFile refFile, String classname) {
         if(containsMatchedClassValue(classname)) {
             return null;
@@ -6,16 +6,20 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 
+import com.pnf.androsig.apply.matcher.IDatabaseMatcher;
 import com.pnf.androsig.apply.model.DatabaseReference;
+import com.pnf.androsig.apply.model.ISignatureFile;
 import com.pnf.androsig.apply.model.LibraryInfo;
 import com.pnf.androsig.apply.model.StructureInfo;
 import com.pnfsoftware.jeb.core.units.code.IInstruction;
@@ -29,6 +33,9 @@ import com.pnfsoftware.jeb.util.logging.ILogger;
 public class ReportHandler {
     private static final ILogger logger = GlobalLog.getLogger(ReportHandler.class);
 
+    /** ratio of the final number of matched classes used to report matching progress */
+    private static final double PROGRESS_COVERAGE = 0.9;
+
     /**
      * Generate report.
      * 
@@ -37,8 +44,17 @@ public class ReportHandler {
      * @param sig Signature Object which contains signature informations
      */
     public static void generateRecord(IDexUnit unit, StructureInfo struInfo, DatabaseReference ref) {
-        Map<Integer, String> matchedClasses = struInfo.getDbMatcher().getMatchedClasses();
-        Map<Integer, String> matchedMethods = struInfo.getDbMatcher().getMatchedMethods();
+        generateRecord(Arrays.asList(unit), Arrays.asList(struInfo), ref);
+    }
+
+    /**
+     * Generate one combined report for several units.
+     * 
+     * @param units target units
+     * @param struInfos StructureInfo Objects, one per unit (same order)
+     * @param ref signature database shared by all units
+     */
+    public static void generateRecord(List<IDexUnit> units, List<StructureInfo> struInfos, DatabaseReference ref) {
         DecimalFormat df = new DecimalFormat("#.00");
         // Generate mapping file
         File mapping = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping.txt");
@@ -47,74 +63,8 @@ public class ReportHandler {
         try(BufferedWriter writer = new BufferedWriter(new FileWriter(mapping));
                 BufferedWriter writerMini = new BufferedWriter(new FileWriter(mappingMini));
                 BufferedWriter writerTiny = new BufferedWriter(new FileWriter(mappingTiny));) {
-            List<? extends IDexClass> classes = unit.getClasses();
-            if(classes == null || classes.size() == 0) {
-                return;
-            }
-            Map<String, IDexClass> classesMapped = new TreeMap<>();
-            for(IDexClass eClass: classes) {
-                String classPath = matchedClasses.get(eClass.getIndex());
-                if(classPath != null) {
-                    classesMapped.put(classPath, eClass);
-                }
-            }
-            for(Entry<String, IDexClass> cl: classesMapped.entrySet()) {
-                String eClassSigFalse = cl.getValue().getSignature(false);
-                String classMapping = eClassSigFalse + " -> " + cl.getKey() + "\n";
-                writer.write(classMapping);
-                boolean classWritten = false;
-                boolean tinyClassWritten = false;
-                boolean classDifferent = !eClassSigFalse.equals(cl.getKey());
-                if(classDifferent) {
-                    classWritten = true;
-                    writerMini.write(classMapping);
-                    if(!isSamePackage(eClassSigFalse, cl.getKey(), 2)) {
-                        tinyClassWritten = true;
-                        writerTiny.write(classMapping);
-                    }
-                }
-                List<? extends IDexMethod> methods = cl.getValue().getMethods();
-                if(methods == null || methods.size() == 0)
-                    continue;
-                double total = 0;
-                double matched = 0;
-                for(IDexMethod m: methods) {
-                    if(!m.isInternal()) {
-                        continue;
-                    }
-                    List<? extends IInstruction> inst = m.getInstructions();
-                    String methodPath = matchedMethods.get(m.getIndex());
-                    String eMethodSigFalse = m.getSignature(false);
-                    int instSize = inst == null ? 0: inst.size();
-                    total += instSize;
-                    if(methodPath == null) {
-                        continue;
-                    }else {
-                        matched += instSize;
-                        String mMethodName = eMethodSigFalse.split("->")[1];
-                        String mNewMethodName = m.getSignature(true).split("->")[1];
-                        String mMapping = "\t(" + instSize + ")" + mMethodName + " -> " + mNewMethodName + "\n";
-                        writer.write(mMapping);
-                        if(classDifferent || !mMethodName.equals(mNewMethodName)) {
-                            if(!classWritten) {
-                                classWritten = true;
-                                writerMini.write(classMapping);
-                            }
-                            writerMini.write(mMapping);
-                            if(tinyClassWritten) {
-                                writerTiny.write(mMapping);
-                            }
-                        }
-                    }
-                }
-                String coverage = df.format(total == 0 ? 0: (matched / total)) + "\n";
-                writer.write(coverage);
-                if(classWritten) {
-                    writerMini.write(coverage);
-                }
-                if(tinyClassWritten) {
-                    writerTiny.write(coverage);
-                }
+            for(int i = 0; i < units.size(); i++) {
+                writeMapping(units.get(i), struInfos.get(i), df, writer, writerMini, writerTiny);
             }
         }
         catch(IOException e) {
@@ -123,13 +73,50 @@ public class ReportHandler {
 
         // Generate report
         int allSignatureFileCount = ref.getAllSignatureFileCount();
-        int allSignatureCount = struInfo.getDbMatcher().getSignatureMetrics().getAllSignatureCount();
-        int allUsedSignatureFileCount = struInfo.getDbMatcher().getSignatureMetrics().getAllUsedSignatureFileCount();
-        int allClassCount = unit.getClasses().size();
-        int allMatchedClassCount = struInfo.getDbMatcher().getMatchedClasses().size();
+        Set<String> usedSignatureFiles = new HashSet<>();
+        int allClassCount = 0;
+        int allMatchedClassCount = 0;
+        int allMatchedMethodCount = 0;
+        int allInterfaceAndEmptyClassCount = 0;
+        Map<String, LibraryInfo> libraryInfos = new HashMap<>();
+        List<String> allMatchedClasses = new ArrayList<>();
+        for(int i = 0; i < units.size(); i++) {
+            IDatabaseMatcher dbMatcher = struInfos.get(i).getDbMatcher();
+            usedSignatureFiles.addAll(dbMatcher.getSignatureMetrics().getUsedSignatureFiles());
+            allClassCount += units.get(i).getClasses().size();
+            allMatchedClassCount += dbMatcher.getMatchedClasses().size();
+            allMatchedMethodCount += dbMatcher.getMatchedMethods().size();
+            allInterfaceAndEmptyClassCount += getInterfaceAndEmptyClassCount(units.get(i));
+            libraryInfos.putAll(dbMatcher.getSignatureMetrics().getAllLibraryInfos());
+            allMatchedClasses.addAll(dbMatcher.getMatchedClasses().values());
+        }
+        // Matching progress (units may be processed concurrently: all figures come from the slowest unit)
+        StructureInfo slowest = null;
+        long timeToCoverage = -1;
+        for(StructureInfo struInfo: struInfos) {
+            long time = struInfo.getTimeToCoverage(PROGRESS_COVERAGE);
+            if(slowest == null || time > timeToCoverage) {
+                slowest = struInfo;
+                timeToCoverage = time;
+            }
+        }
+        int roundCount = slowest == null ? 0: slowest.getRoundCount();
+        int roundToCoverage = slowest == null ? 0: slowest.getRoundToCoverage(PROGRESS_COVERAGE);
+        int allSignatureCount = 0;
+        if(units.size() == 1) {
+            allSignatureCount = struInfos.get(0).getDbMatcher().getSignatureMetrics().getAllSignatureCount();
+        }
+        else {
+            Map<String, ISignatureFile> loadedFiles = ref.getLoadedSignatureFiles();
+            for(String f: usedSignatureFiles) {
+                ISignatureFile sigFile = loadedFiles.get(f);
+                if(sigFile != null) {
+                    allSignatureCount += sigFile.getAllSignatureCount();
+                }
+            }
+        }
+        int allUsedSignatureFileCount = usedSignatureFiles.size();
         String matchedClassCountP = df.format((allMatchedClassCount * 100.0) / allClassCount);
-        int allMatchedMethodCount = struInfo.getDbMatcher().getMatchedMethods().size();
-        int allInterfaceAndEmptyClassCount = getInterfaceAndEmptyClassCount(unit);
         String interfaceAndEmptyClassCountP = df.format((allInterfaceAndEmptyClassCount * 100.0) / allClassCount);
         int allUnmatchedClassCount = allClassCount - allMatchedClassCount - allInterfaceAndEmptyClassCount;
         String unmatchedClassCountP = df.format((allUnmatchedClassCount * 100.0) / allClassCount);
@@ -137,9 +124,8 @@ public class ReportHandler {
         
         // Library distribution
         
-        Map<String, LibraryInfo> libraryInfos = struInfo.getDbMatcher().getSignatureMetrics().getAllLibraryInfos();
         Map<LibraryInfo, Integer> libraryMap = new HashMap<>();
-        for(String s : matchedClasses.values()) {
+        for(String s : allMatchedClasses) {
             LibraryInfo lib = libraryInfos.get(s);
             if(lib == null) {
                 // reference to external class (not necessary in libs), matched by param matcher for example
@@ -166,6 +152,14 @@ public class ReportHandler {
         stb.append("Total number of signatures: ").append(allSignatureCount).append("\n");
         stb.append("Total number of used signature files: ").append(allUsedSignatureFileCount).append("\n");
         stb.append("Total number of classes in app: ").append(allClassCount).append("\n");
+        if(units.size() > 1) {
+            stb.append("Total number of dex units: ").append(units.size()).append("\n");
+        }
+        stb.append("Number of matching rounds: ").append(roundCount).append("\n");
+        if(timeToCoverage >= 0) {
+            stb.append("Time to reach ").append((int)(PROGRESS_COVERAGE * 100)).append("% of matched classes: ")
+                    .append(timeToCoverage).append("ms (round ").append(roundToCoverage).append(")\n");
+        }
         stb.append("*************** Details ***************\n");
         stb.append("Total number of matched classes: ").append(allMatchedClassCount).append(" (")
                 .append(matchedClassCountP).append("%)\n");
@@ -207,6 +201,81 @@ public class ReportHandler {
         logger.info(reportContent);
     }
     
+    private static void writeMapping(IDexUnit unit, StructureInfo struInfo, DecimalFormat df, BufferedWriter writer,
+            BufferedWriter writerMini, BufferedWriter writerTiny) throws IOException {
+        Map<Integer, String> matchedClasses = struInfo.getDbMatcher().getMatchedClasses();
+        Map<Integer, String> matchedMethods = struInfo.getDbMatcher().getMatchedMethods();
+        List<? extends IDexClass> classes = unit.getClasses();
+        if(classes == null || classes.size() == 0) {
+            return;
+        }
+        Map<String, IDexClass> classesMapped = new TreeMap<>();
+        for(IDexClass eClass: classes) {
+            String classPath = matchedClasses.get(eClass.getIndex());
+            if(classPath != null) {
+                classesMapped.put(classPath, eClass);
+            }
+        }
+        for(Entry<String, IDexClass> cl: classesMapped.entrySet()) {
+            String eClassSigFalse = cl.getValue().getSignature(false);
+            String classMapping = eClassSigFalse + " -> " + cl.getKey() + "\n";
+            writer.write(classMapping);
+            boolean classWritten = false;
+            boolean tinyClassWritten = false;
+            boolean classDifferent = !eClassSigFalse.equals(cl.getKey());
+            if(classDifferent) {
+                classWritten = true;
+                writerMini.write(classMapping);
+                if(!isSamePackage(eClassSigFalse, cl.getKey(), 2)) {
+                    tinyClassWritten = true;
+                    writerTiny.write(classMapping);
+                }
+            }
+            List<? extends IDexMethod> methods = cl.getValue().getMethods();
+            if(methods == null || methods.size() == 0)
+                continue;
+            double total = 0;
+            double matched = 0;
+            for(IDexMethod m: methods) {
+                if(!m.isInternal()) {
+                    continue;
+                }
+                List<? extends IInstruction> inst = m.getInstructions();
+                String methodPath = matchedMethods.get(m.getIndex());
+                String eMethodSigFalse = m.getSignature(false);
+                int instSize = inst == null ? 0: inst.size();
+                total += instSize;
+                if(methodPath == null) {
+                    continue;
+                }else {
+                    matched += instSize;
+                    String mMethodName = eMethodSigFalse.split("->")[1];
+                    String mNewMethodName = m.getSignature(true).split("->")[1];
+                    String mMapping = "\t(" + instSize + ")" + mMethodName + " -> " + mNewMethodName + "\n";
+                    writer.write(mMapping);
+                    if(classDifferent || !mMethodName.equals(mNewMethodName)) {
+                        if(!classWritten) {
+                            classWritten = true;
+                            writerMini.write(classMapping);
+                        }
+                        writerMini.write(mMapping);
+                        if(tinyClassWritten) {
+                            writerTiny.write(mMapping);
+                        }
+                    }
+                }
+            }
+            String coverage = df.format(total == 0 ? 0: (matched / total)) + "\n";
+            writer.write(coverage);
+            if(classWritten) {
+                writerMini.write(coverage);
+            }
+            if(tinyClassWritten) {
+                writerTiny.write(coverage);
+            }
+        }
+    }
+
     private static boolean isSamePackage(String c1, String c2, int depth) {
         //c2 = c2.replace("Lretrofit2/", "Lb/");
         //c2 = c2.replace("Lokio/", "La/");
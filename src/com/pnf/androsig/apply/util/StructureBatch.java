@@ -0,0 +1,125 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.pnfsoftware.jeb.core.events.J;
+import com.pnfsoftware.jeb.core.events.JebEvent;
+import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexClass;
+import com.pnfsoftware.jeb.core.units.code.android.dex.IDexMethod;
+
+/**
+ * Batch of unit modifications. Operations are deduplicated (last one wins), operations that would
+ * not modify the unit are skipped, and the batch is applied at once: class renames, method renames,
+ * then package moves grouped by target package (each package is created once). A single
+ * {@link J#UnitChange} is emitted when the unit was modified.
+ * 
+ * @author Cedric Lucas
+ *
+ */
+public class StructureBatch {
+
+    private final IDexUnit unit;
+
+    private Map<IDexClass, String> classRenames = new LinkedHashMap<>();
+    private Map<IDexMethod, String> methodRenames = new LinkedHashMap<>();
+    /** target package path, with class as key */
+    private Map<IDexClass, String> classMoves = new LinkedHashMap<>();
+
+    public StructureBatch(IDexUnit unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * @param eClass class to rename
+     * @param newName new simple name
+     */
+    public void renameClass(IDexClass eClass, String newName) {
+        classRenames.put(eClass, newName);
+    }
+
+    public void renameMethod(IDexMethod eMethod, String newName) {
+        methodRenames.put(eMethod, newName);
+    }
+
+    /**
+     * @param eClass class to move
+     * @param packagePath path of the target package (in the form <code>Lcom/foo;</code>)
+     */
+    public void moveClass(IDexClass eClass, String packagePath) {
+        classMoves.put(eClass, packagePath);
+    }
+
+    public int size() {
+        return classRenames.size() + methodRenames.size() + classMoves.size();
+    }
+
+    /**
+     * Apply modifications to unit. Calls to {@link StructureHandler} are serialized for the whole
+     * batch.
+     *
+     * @return number of operations executed
+     */
+    public int apply() {
+        int executed = 0;
+        synchronized(StructureHandler.class) {
+            for(Entry<IDexClass, String> entry: classRenames.entrySet()) {
+                if(!entry.getValue().equals(entry.getKey().getName(true))) {
+                    StructureHandler.rename(unit, entry.getValue(), entry.getKey().getItemId());
+                    executed++;
+                }
+            }
+            for(Entry<IDexMethod, String> entry: methodRenames.entrySet()) {
+                if(!entry.getValue().equals(entry.getKey().getName(true))) {
+                    StructureHandler.rename(unit, entry.getValue(), entry.getKey().getItemId());
+                    executed++;
+                }
+            }
+            // parent packages first
+            Map<String, List<IDexClass>> packages = new TreeMap<>();
+            for(Entry<IDexClass, String> entry: classMoves.entrySet()) {
+                String packagePath = entry.getValue();
+                if(packagePath.equals(getPackagePath(entry.getKey().getSignature(true)))) {
+                    continue;
+                }
+                String key = packagePath.substring(0, packagePath.length() - 1);
+                List<IDexClass> classes = packages.get(key);
+                if(classes == null) {
+                    classes = new ArrayList<>();
+                    packages.put(key, classes);
+                }
+                classes.add(entry.getKey());
+            }
+            for(Entry<String, List<IDexClass>> entry: packages.entrySet()) {
+                String packagePath = entry.getKey() + ";";
+                StructureHandler.createPackage(unit, packagePath);
+                for(IDexClass eClass: entry.getValue()) {
+                    StructureHandler.moveClass(unit, packagePath, eClass.getItemId());
+                    executed++;
+                }
+            }
+        }
+        classRenames.clear();
+        methodRenames.clear();
+        classMoves.clear();
+        if(executed > 0) {
+            unit.notifyListeners(new JebEvent(J.UnitChange));
+        }
+        return executed;
+    }
+
+    private static String getPackagePath(String classSignature) {
+        int lastSlash = classSignature.lastIndexOf('/');
+        return lastSlash < 0 ? null: classSignature.substring(0, lastSlash) + ";";
+    }
+}
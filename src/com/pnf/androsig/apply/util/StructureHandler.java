@@ -7,6 +7,9 @@ import com.pnfsoftware.jeb.core.actions.ActionRenameData;
 import com.pnfsoftware.jeb.core.actions.Actions;
 import com.pnfsoftware.jeb.core.units.code.android.IDexUnit;
 
+/**
+ * Unit modifications. Calls are serialized, since several units may be processed concurrently.
+ */
 public class StructureHandler {
     
     /**
@@ -16,7 +19,7 @@ public class StructureHandler {
      * @param newName new name of a method, class or package
      * @param itemId target itemId of a method, class or package
      */
-    public static void rename(IDexUnit unit, String newName, long itemId) {
+    public static synchronized void rename(IDexUnit unit, String newName, long itemId) {
         ActionRenameData data = new ActionRenameData();
         data.setNewName(newName);
         ActionContext action = new ActionContext(unit, Actions.RENAME, itemId);
@@ -32,7 +35,7 @@ public class StructureHandler {
      * @param packagePath path of the target package (targetPackage.getSignature(true))
      * @param itemId the itemId of the class
      */
-    public static void moveClass(IDexUnit unit, String packagePath, long itemId) {
+    public static synchronized void moveClass(IDexUnit unit, String packagePath, long itemId) {
         String processedPath = packagePath.substring(1, packagePath.length() - 1).replace("/", ".");
         ActionMoveToPackageData data = new ActionMoveToPackageData();
         data.setDstPackageFqname(processedPath);
@@ -48,7 +51,7 @@ public class StructureHandler {
      * @param unit mandatory target unit
      * @param packagePath path of the package to be created
      */
-    public static void createPackage(IDexUnit unit, String packagePath) {
+    public static synchronized void createPackage(IDexUnit unit, String packagePath) {
         String processedPath = packagePath.substring(1, packagePath.length() - 1).replace("/", ".");
         ActionCreatePackageData data = new ActionCreatePackageData();
         data.setFqname(processedPath);
@@ -10,6 +10,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.junit.Test;
 
@@ -31,6 +32,36 @@ public class AndroidSigApplyTest {
 
     protected void simpleTest() throws JebException, IOException {
         File generatedReport = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping.txt");
+        applyOnObfuscatedDex(new HashMap<>());
+
+        // assertions
+        assertTrue(IO.compareFiles(new File("testdata/mapping", "androsig-mapping.txt"), generatedReport));
+        // TODO validate classes are updated
+    }
+
+    @Test
+    public void testGenSigGen() throws JebException, IOException {
+        new File("testdata/out/android_sigs").mkdirs();
+        File generated = new File("testdata/out/android_sigs/sig-gen-test_dex.sig");
+        File orig = new File("testdata/sig/sig-gen-test.sig");
+        IO.copyFile(orig, generated, true);
+
+        try {
+            simpleTest();
+        }
+        finally {
+            // clean up
+            if(generated.exists()) {
+                generated.delete();
+            }
+            File generatedReport = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping.txt");
+            if(generatedReport.exists()) {
+                generatedReport.delete();
+            }
+        }
+    }
+
+    private void applyOnObfuscatedDex(Map<String, String> executionOptions) throws JebException, IOException {
         IEnginesContext context = JebContext.getEnginesContext();
         context.getDataProvider().getPluginStore().getStoreLocation();
         IRuntimeProject prj = context.loadProject("sig-gen-test-obf.dex");
@@ -39,32 +70,76 @@ public class AndroidSigApplyTest {
         /*ILiveArtifact art =*/ prj.processArtifact(artifact);
 
         AndroidSigApplyPlugin plugin = new AndroidSigApplyPlugin();
-        plugin.execute(context, new HashMap<>());
+        plugin.execute(context, executionOptions);
+    }
 
-        // assertions
-        assertTrue(IO.compareFiles(new File("testdata/mapping", "androsig-mapping.txt"), generatedReport));
-        // TODO validate classes are updated
+    @Test
+    public void testParallelSearchSameAsSequential() throws JebException, IOException {
+        new File("testdata/out/android_sigs").mkdirs();
+        File generated = new File("testdata/out/android_sigs/sig-gen-test_dex.sig");
+        File orig = new File("testdata/sig/sig-gen-test.sig");
+        IO.copyFile(orig, generated, true);
+        File generatedReport = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping.txt");
+        File sequentialReport = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping-sequential.txt");
+
+        try {
+            Map<String, String> options = new HashMap<>();
+            options.put("matcherThreads", "1");
+            applyOnObfuscatedDex(options);
+            IO.copyFile(generatedReport, sequentialReport, true);
+
+            options.put("matcherThreads", "4");
+            applyOnObfuscatedDex(options);
+
+            // same matched classes and methods
+            assertTrue(IO.compareFiles(sequentialReport, generatedReport));
+        }
+        finally {
+            // clean up
+            if(generated.exists()) {
+                generated.delete();
+            }
+            if(generatedReport.exists()) {
+                generatedReport.delete();
+            }
+            if(sequentialReport.exists()) {
+                sequentialReport.delete();
+            }
+        }
     }
 
     @Test
-    public void testGenSigGen() throws JebException, IOException {
+    public void testWorklistSameAsFullScan() throws JebException, IOException {
         new File("testdata/out/android_sigs").mkdirs();
         File generated = new File("testdata/out/android_sigs/sig-gen-test_dex.sig");
         File orig = new File("testdata/sig/sig-gen-test.sig");
         IO.copyFile(orig, generated, true);
+        File generatedReport = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping.txt");
+        File fullScanReport = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping-fullscan.txt");
 
         try {
-            simpleTest();
+            Map<String, String> options = new HashMap<>();
+            options.put("worklistMatching", "false");
+            applyOnObfuscatedDex(options);
+            IO.copyFile(generatedReport, fullScanReport, true);
+
+            options.put("worklistMatching", "true");
+            applyOnObfuscatedDex(options);
+
+            // same matched classes and methods
+            assertTrue(IO.compareFiles(fullScanReport, generatedReport));
         }
         finally {
             // clean up
             if(generated.exists()) {
                 generated.delete();
             }
-            File generatedReport = new File(System.getProperty("java.io.tmpdir"), "androsig-mapping.txt");
             if(generatedReport.exists()) {
                 generatedReport.delete();
             }
+            if(fullScanReport.exists()) {
+                fullScanReport.delete();
+            }
         }
     }
 
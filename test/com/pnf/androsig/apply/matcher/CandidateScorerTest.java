@@ -0,0 +1,86 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class CandidateScorerTest {
+
+    @Test
+    public void testTopK() {
+        CandidateScorer scorer = new CandidateScorer();
+        scorer.add(5L, 3);
+        scorer.add(7L, 10);
+        scorer.add(5L, 4);
+        scorer.add(9L, 1);
+        scorer.add(11L, 2);
+        assertEquals(4, scorer.size());
+        // 7: 10, 5: 7, 11: 2, 9: 1
+        assertArrayEquals(new long[]{5L, 7L}, scorer.selectTopK(2, key -> true));
+        assertArrayEquals(new long[]{5L, 7L, 9L, 11L}, scorer.selectTopK(10, key -> true));
+    }
+
+    @Test
+    public void testTopKKeepsTies() {
+        CandidateScorer scorer = new CandidateScorer();
+        scorer.add(1L, 5);
+        scorer.add(2L, 3);
+        scorer.add(3L, 3);
+        scorer.add(4L, 3);
+        scorer.add(5L, 1);
+        // k-th best score is shared by 3 candidates: all kept, whatever the table order
+        assertArrayEquals(new long[]{1L, 2L, 3L, 4L}, scorer.selectTopK(2, key -> true));
+        assertArrayEquals(new long[]{1L}, scorer.selectTopK(1, key -> true));
+    }
+
+    @Test
+    public void testTopKFilter() {
+        CandidateScorer scorer = new CandidateScorer();
+        scorer.add(1L, 10);
+        scorer.add(2L, 8);
+        scorer.add(3L, 6);
+        scorer.add(4L, 4);
+        assertArrayEquals(new long[]{2L, 4L}, scorer.selectTopK(2, key -> key % 2 == 0));
+        assertArrayEquals(new long[0], scorer.selectTopK(2, key -> false));
+    }
+
+    @Test
+    public void testGrowKeepsScores() {
+        CandidateScorer scorer = new CandidateScorer();
+        for(long key = 0; key < 1000; key++) {
+            scorer.add(key << 32 | key, (int)(key % 100) + 1);
+        }
+        for(long key = 0; key < 1000; key++) {
+            scorer.add(key << 32 | key, 1);
+        }
+        assertEquals(1000, scorer.size());
+        // best score 101 is reached by keys 99, 199... 999
+        long[] best = scorer.selectTopK(1, key -> true);
+        assertEquals(10, best.length);
+        for(long key: best) {
+            assertEquals(99, (key & 0xFFFFFFFFL) % 100);
+        }
+    }
+
+    @Test
+    public void testWeight() {
+        assertEquals(1, CandidateScorer.getWeight(0, 100));
+        assertEquals(1, CandidateScorer.getWeight(100, 100));
+        assertEquals(1, CandidateScorer.getWeight(150, 100));
+        int rare = CandidateScorer.getWeight(1, 100);
+        int common = CandidateScorer.getWeight(50, 100);
+        assertTrue(rare > common);
+        assertTrue(common > 1);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.pnf.androsig.apply.matcher.ContextMatches.CMatch;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class ContextMatchesTest {
+
+    @Test
+    public void testBindingsResolvedOnFirstEvidence() {
+        ContextMatches contextMatches = new ContextMatches();
+        Map<String, Integer> classIndexes = new HashMap<>();
+        classIndexes.put("La/a;", 4);
+        contextMatches.setClassIndexes(className -> classIndexes.getOrDefault(className, -1));
+
+        contextMatches.saveClassMatchUnkownFile("La/a;", "Lcom/lib/A;");
+        contextMatches.saveClassMatchUnkownFile("La/b;", "Lcom/lib/A;");
+        contextMatches.saveClassMatchUnkownFile("La/b;", "Lcom/lib/B;");
+        assertEquals(2, contextMatches.size());
+        assertEquals(2, contextMatches.getNameCount());
+
+        CMatch a = contextMatches.get(0);
+        CMatch b = contextMatches.get(1);
+        assertSame(a, contextMatches.get("La/a;"));
+        assertEquals("La/b;", b.key);
+        assertEquals(4, a.classIndex);
+        assertEquals(-1, b.classIndex);
+        // same candidate name, same id
+        assertEquals(a.matches.get(0).nameId, b.matches.get(0).nameId);
+        assertEquals(1, b.matches.get(1).nameId);
+
+        // resolved once: later renames do not move evidence to another class
+        classIndexes.put("La/b;", 7);
+        contextMatches.saveClassMatchUnkownFile("La/b;", "Lcom/lib/B;");
+        assertEquals(-1, b.classIndex);
+        assertEquals(2, b.matches.get(1).count);
+    }
+
+    @Test
+    public void testPollModifiedClasses() {
+        ContextMatches contextMatches = new ContextMatches();
+        contextMatches.saveClassMatchUnkownFile("La/a;", "Lcom/lib/A;");
+        contextMatches.saveClassMatchUnkownFile("La/b;", "Lcom/lib/B;");
+        BitSet modified = contextMatches.pollModifiedClasses();
+        assertEquals(2, modified.cardinality());
+        assertTrue(contextMatches.pollModifiedClasses().isEmpty());
+
+        contextMatches.saveClassMatchUnkownFile("La/b;", "Lcom/lib/C;");
+        modified = contextMatches.pollModifiedClasses();
+        assertEquals(1, modified.cardinality());
+        assertTrue(modified.get(1));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class RejectedClassesTest {
+
+    @Test
+    public void testDependenciesIntersection() {
+        SearchDependencies deps = new SearchDependencies();
+        deps.addClassValue("Lcom/a/B;");
+        deps.addMethod(12);
+        deps.addFile("a.sig");
+
+        assertFalse(deps.isInvalidatedBy(null));
+        assertFalse(deps.isInvalidatedBy(new SearchDependencies()));
+
+        SearchDependencies changes = new SearchDependencies();
+        changes.addClassValue("Lcom/a/C;");
+        changes.addMethod(13);
+        changes.addFile("b.sig");
+        changes.setUsedFiles();
+        assertFalse(deps.isInvalidatedBy(changes));
+
+        changes.addMethod(12);
+        assertTrue(deps.isInvalidatedBy(changes));
+
+        changes = new SearchDependencies();
+        changes.addClassValue("Lcom/a/B;");
+        assertTrue(deps.isInvalidatedBy(changes));
+
+        changes = new SearchDependencies();
+        changes.addFile("a.sig");
+        assertTrue(deps.isInvalidatedBy(changes));
+
+        // used file set is only a dependency when observed
+        changes = new SearchDependencies();
+        changes.setUsedFiles();
+        deps.setUsedFiles();
+        assertTrue(deps.isInvalidatedBy(changes));
+    }
+
+    @Test
+    public void testRejectionInvalidatedByModification() {
+        FileMatches fileMatches = new FileMatches(new ContextMatches());
+        RejectedClasses rejected = new RejectedClasses();
+
+        SearchDependencies deps1 = new SearchDependencies();
+        deps1.addMethod(1);
+        SearchDependencies deps2 = new SearchDependencies();
+        deps2.addMethod(2);
+        rejected.reject(10, true, RejectedClasses.Reason.NO_CANDIDATE, deps1, fileMatches);
+        rejected.reject(20, true, RejectedClasses.Reason.HIERARCHY_MISMATCH, deps2, fileMatches);
+        assertEquals(2, rejected.size());
+
+        // modes are separate
+        assertFalse(rejected.isRejected(10, false, fileMatches));
+        assertTrue(rejected.isRejected(10, true, fileMatches));
+        assertTrue(rejected.contains(20, true, fileMatches));
+        assertEquals(1, rejected.getSkippedCount(RejectedClasses.Reason.NO_CANDIDATE));
+        assertEquals(0, rejected.getSkippedCount(RejectedClasses.Reason.HIERARCHY_MISMATCH));
+
+        // modification of a dependency: only impacted rejection is dropped
+        fileMatches.removeMatchedMethod(1);
+        assertFalse(rejected.isRejected(10, true, fileMatches));
+        assertTrue(rejected.isRejected(20, true, fileMatches));
+        assertEquals(1, rejected.size());
+
+        rejected.remove(20);
+        assertFalse(rejected.contains(20, true, fileMatches));
+        assertEquals(0, rejected.size());
+    }
+
+    @Test
+    public void testModificationBeforeRejectionIsIgnored() {
+        FileMatches fileMatches = new FileMatches(new ContextMatches());
+        RejectedClasses rejected = new RejectedClasses();
+
+        // modification was visible to the search which failed
+        fileMatches.removeMatchedMethod(1);
+        SearchDependencies deps = new SearchDependencies();
+        deps.addMethod(1);
+        rejected.reject(10, false, RejectedClasses.Reason.NO_CANDIDATE, deps, fileMatches);
+        assertTrue(rejected.isRejected(10, false, fileMatches));
+
+        fileMatches.removeMatchedMethod(1);
+        assertFalse(rejected.isRejected(10, false, fileMatches));
+    }
+
+    @Test
+    public void testHierarchyRejectionInvalidatedByParentRename() {
+        FileMatches fileMatches = new FileMatches(new ContextMatches());
+        RejectedClasses rejected = new RejectedClasses();
+        Map<Integer, String> typeNames = new HashMap<>();
+        typeNames.put(1, "La/a;");
+        typeNames.put(2, "La/b;");
+        rejected.setEffectiveTypeNames(typeNames::get);
+
+        // super type and interface of rejected class
+        SearchDependencies deps = new SearchDependencies();
+        deps.addMethod(1);
+        deps.addTypeName(1, "La/a;");
+        deps.addTypeName(2, "La/b;");
+        rejected.reject(10, true, RejectedClasses.Reason.HIERARCHY_MISMATCH, deps, fileMatches);
+        assertTrue(rejected.isRejected(10, true, fileMatches));
+
+        // unrelated type renamed
+        typeNames.put(3, "Lcom/lib/Other;");
+        assertTrue(rejected.isRejected(10, true, fileMatches));
+
+        // parent class matched and renamed
+        typeNames.put(1, "Lcom/lib/Parent;");
+        assertFalse(rejected.isRejected(10, true, fileMatches));
+        assertEquals(0, rejected.size());
+    }
+
+    @Test
+    public void testTypeRenamed() {
+        Map<Integer, String> typeNames = new HashMap<>();
+        typeNames.put(1, "La/a;");
+        SearchDependencies deps = new SearchDependencies();
+        assertFalse(deps.isTypeRenamed(typeNames::get));
+        deps.addTypeName(1, "La/a;");
+        assertFalse(deps.isEmpty());
+        assertFalse(deps.isTypeRenamed(typeNames::get));
+        typeNames.put(1, "Lcom/a/A;");
+        assertTrue(deps.isTypeRenamed(typeNames::get));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class IndexedSignatureFileTest {
+
+    private static final String GREAT_CLASS = "Lcom/pnf/testandrosig/GreatClass;";
+
+    private static File prepareSignatureFile() throws IOException {
+        File outDir = new File("testdata/out/index");
+        outDir.mkdirs();
+        File sigFile = new File(outDir, "sig-gen-test-3.sig");
+        Files.copy(new File("testdata/sig", "sig-gen-test-3.sig").toPath(), sigFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        File indexFile = IndexedSignatureFile.getIndexFile(sigFile);
+        assertTrue(IndexedSignatureFile.buildIndexFile(sigFile, indexFile));
+        return sigFile;
+    }
+
+    private static List<MethodSignature> readLines(File sigFile) throws IOException {
+        List<MethodSignature> res = new ArrayList<>();
+        for(String line: Files.readAllLines(sigFile.toPath(), StandardCharsets.UTF_8)) {
+            if(line.startsWith(";")) {
+                continue;
+            }
+            MethodSignature sig = MethodSignature.parse(line);
+            if(sig != null) {
+                res.add(sig);
+            }
+        }
+        return res;
+    }
+
+    private static IndexedSignatureFile load(File sigFile) {
+        IndexedSignatureFile indexed = new IndexedSignatureFile();
+        assertTrue(indexed.loadSignatures(sigFile));
+        return indexed;
+    }
+
+    private static List<String> toStrings(List<MethodSignature> sigs) {
+        List<String> res = new ArrayList<>();
+        if(sigs != null) {
+            for(MethodSignature sig: sigs) {
+                res.add(sig.getCname() + "->" + sig.getMname() + sig.getPrototype());
+            }
+        }
+        res.sort(null);
+        return res;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File sigFile = prepareSignatureFile();
+        List<MethodSignature> lines = readLines(sigFile);
+        try(IndexedSignatureFile indexed = load(sigFile)) {
+            assertEquals("sig-gen-test-3.dex", indexed.getLibraryInfos().getLibName());
+            for(MethodSignature line: lines) {
+                String tight = line.getOwnRevision().getMhash_tight();
+                String loose = line.getOwnRevision().getMhash_loose();
+                String expected = toStrings(Arrays.asList(line)).get(0);
+                assertTrue(toStrings(indexed.getTightSignatures(tight)).contains(expected));
+                assertTrue(toStrings(indexed.getLooseSignatures(loose)).contains(expected));
+                assertTrue(indexed.hasSignaturesForClassname(line.getCname()));
+            }
+            assertNull(indexed.getTightSignatures("unknown"));
+            assertEquals(lines.size(), indexed.getSignaturesForClassname("Lcom/pnf/testandrosig/", false).size());
+        }
+    }
+
+    @Test
+    public void testFilteredLookupsSameAsFilteredLines() throws IOException {
+        File sigFile = prepareSignatureFile();
+        List<MethodSignature> lines = readLines(sigFile);
+        Set<String> hashcodes = new LinkedHashSet<>();
+        for(MethodSignature line: lines) {
+            hashcodes.add(line.getOwnRevision().getMhash_tight());
+        }
+        List<SignatureFilter> filters = Arrays.asList(new SignatureFilter("I", null, false),
+                new SignatureFilter(null, GREAT_CLASS, true), new SignatureFilter(null, GREAT_CLASS, false),
+                new SignatureFilter("V", "Lcom/pnf/testandrosig/", false),
+                new SignatureFilter(null, null, false, 3, Integer.MAX_VALUE),
+                new SignatureFilter("VL", null, false, 16, 16));
+        try(IndexedSignatureFile all = load(sigFile)) {
+            for(SignatureFilter filter: filters) {
+                // new instance: filtered lines are read from postings, not from already loaded lines
+                try(IndexedSignatureFile filtered = load(sigFile)) {
+                    for(String hashcode: hashcodes) {
+                        List<MethodSignature> expected = filter.filter(all.getTightSignatures(hashcode));
+                        List<MethodSignature> res = filtered.getTightSignatures(hashcode, filter);
+                        assertEquals(filter.getKey() + " " + hashcode, toStrings(expected), toStrings(res));
+                        assertEquals(expected == null, res == null);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFilteredLookups() throws IOException {
+        File sigFile = prepareSignatureFile();
+        try(IndexedSignatureFile indexed = load(sigFile)) {
+            // <init> of GreatClass and GreatLongClass
+            String initHash = "8bac4558d5d8c2a8ab063772fc4381e4c3994cb0a35d7c525ae387a24f715998";
+            assertEquals(Arrays.asList(GREAT_CLASS + "-><init>()V"),
+                    toStrings(indexed.getTightSignatures(initHash, new SignatureFilter("V", GREAT_CLASS, true))));
+            assertEquals(2, indexed.getTightSignatures(initHash, new SignatureFilter("V", null, false)).size());
+            assertNull(indexed.getTightSignatures(initHash, new SignatureFilter("I", null, false)));
+            assertNull(indexed.getTightSignatures(initHash, new SignatureFilter(null, null, false, 3, 10)));
+        }
+    }
+
+    @Test
+    public void testSignaturesForMethod() throws IOException {
+        File sigFile = prepareSignatureFile();
+        try(IndexedSignatureFile indexed = load(sigFile)) {
+            List<MethodSignature> res = indexed.getSignaturesForMethod(GREAT_CLASS, "setGreatField", "(I)V");
+            assertEquals(Arrays.asList(GREAT_CLASS + "->setGreatField(I)V"), toStrings(res));
+            res = indexed.getSignaturesForMethod(GREAT_CLASS, "setGreatField", null);
+            assertEquals(1, res.size());
+            assertTrue(indexed.getSignaturesForMethod(GREAT_CLASS, "setGreatField", "(J)V").isEmpty());
+            assertTrue(indexed.getSignaturesForMethod(GREAT_CLASS, "unknown", null).isEmpty());
+            assertTrue(indexed.getSignaturesForMethod("Lcom/a/Unknown;", "main", null).isEmpty());
+        }
+        // same result once class lines are loaded
+        try(IndexedSignatureFile indexed = load(sigFile)) {
+            assertNotNull(indexed.getSignaturesForClassname(GREAT_CLASS, true));
+            List<MethodSignature> res = indexed.getSignaturesForMethod(GREAT_CLASS, "setGreatField", "(I)V");
+            assertEquals(Arrays.asList(GREAT_CLASS + "->setGreatField(I)V"), toStrings(res));
+        }
+    }
+
+    @Test
+    public void testModifiedSignatureFileIsNotRead() throws IOException {
+        File sigFile = prepareSignatureFile();
+        long[] stamp = SignatureFileFactory.getFileStamp(sigFile);
+        long[] outdated = {stamp[0] + 1, stamp[1]};
+        try(IndexedSignatureFile indexed = new IndexedSignatureFile()) {
+            assertTrue(indexed.loadSignatures(sigFile, outdated));
+            assertEquals(0, indexed.getAllSignatureCount());
+            assertFalse(indexed.hasSignaturesForClassname(GREAT_CLASS));
+        }
+    }
+
+    @Test
+    public void testLinesNotReadOnceModified() throws IOException {
+        File sigFile = prepareSignatureFile();
+        String initHash = "8bac4558d5d8c2a8ab063772fc4381e4c3994cb0a35d7c525ae387a24f715998";
+        try(IndexedSignatureFile indexed = load(sigFile)) {
+            // modification noticed by database: lines not loaded yet are not read anymore
+            indexed.setModified();
+            assertNull(indexed.getTightSignatures(initHash));
+            assertTrue(indexed.getSignaturesForMethod(GREAT_CLASS, "setGreatField", null).isEmpty());
+        }
+    }
+}
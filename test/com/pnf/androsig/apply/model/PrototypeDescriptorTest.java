@@ -0,0 +1,114 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.pnf.androsig.apply.util.DexUtilLocal;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class PrototypeDescriptorTest {
+
+    private static final String[] TYPES = {"I", "J", "Z", "[I", "[[I", "[J", "Ljava/lang/String;",
+            "Ljava/lang/Object;", "[Ljava/lang/String;", "Landroid/content/Context;", "Landroid/view/View;",
+            "Landroid/support/v4/app/Fragment;", "Lcom/a/b;", "Lcom/a/c;", "[Lcom/a/b;", "[[Lcom/a/c;", "La;",
+            "Lb;"};
+
+    @Test
+    public void testCompatibleTypeSameAsDexUtil() {
+        PrototypeTable table = new PrototypeTable();
+        for(String unstable: TYPES) {
+            PrototypeDescriptor desc1 = table.get("(" + unstable + ")V");
+            for(String original: TYPES) {
+                PrototypeDescriptor desc2 = table.get("(I" + original + ")V");
+                assertEquals(unstable + " / " + original, DexUtilLocal.isCompatibleClasses(unstable, original),
+                        desc1.isCompatibleType(0, desc2, 1));
+            }
+        }
+    }
+
+    /**
+     * String based check used before descriptors (MatchingSearch.isComplexSignature).
+     */
+    private static boolean isComplexSignature(String prototypes, int complexSignatureParams) {
+        String params1 = DexUtilLocal.extractParamsFromSignature(prototypes);
+        List<String> paramList = DexUtilLocal.parseSignatureParameters(params1);
+        // do not consider one argument methods
+        if(paramList.isEmpty() || (paramList.size() == 1 && paramList.get(0).length() == 1)) {
+            return false;
+        }
+        paramList.add(DexUtilLocal.extractReturnValueFromSignature(prototypes));
+        int genericApiParams = 0;
+        for(String param: paramList) {
+            if(param.length() == 1) {
+                continue;
+            }
+            if(DexUtilLocal.isAndroidPlatformClass(param) || DexUtilLocal.isJavaPlatformClass(param)) {
+                genericApiParams++;
+            }
+            return true;
+        }
+        return genericApiParams >= complexSignatureParams;
+    }
+
+    @Test
+    public void testComplexSameAsStringCheck() {
+        PrototypeTable table = new PrototypeTable();
+        List<String> prototypes = new ArrayList<>();
+        prototypes.add("()V");
+        prototypes.add("()Ljava/lang/String;");
+        prototypes.add("(II)V");
+        prototypes.add("(IJ)Z");
+        for(String t1: TYPES) {
+            prototypes.add("(" + t1 + ")V");
+            prototypes.add("(" + t1 + ")" + t1);
+            for(String t2: TYPES) {
+                prototypes.add("(" + t1 + t2 + ")V");
+                prototypes.add("(" + t1 + "I)" + t2);
+            }
+        }
+        for(String prototype: prototypes) {
+            PrototypeDescriptor desc = table.get(prototype);
+            for(int complexSignatureParams = 0; complexSignatureParams <= 3; complexSignatureParams++) {
+                assertEquals(prototype + " " + complexSignatureParams,
+                        isComplexSignature(prototype, complexSignatureParams),
+                        desc.isComplex(complexSignatureParams));
+            }
+        }
+        // one application class among primitives
+        assertTrue(table.get("(Lcom/foo/Bar;I)V").isComplex(2));
+    }
+
+    @Test
+    public void testReturnType() {
+        PrototypeTable table = new PrototypeTable();
+        PrototypeDescriptor desc1 = table.get("(La;)Lcom/a/b;");
+        PrototypeDescriptor desc2 = table.get("()Lcom/a/c;");
+        assertEquals(1, desc1.getParameterCount());
+        assertEquals(0, desc2.getParameterCount());
+        assertEquals(desc1.getTypeId(0), table.getTypeId("La;"));
+        assertEquals(DexUtilLocal.isCompatibleClasses("Lcom/a/b;", "Lcom/a/c;"),
+                desc1.isCompatibleType(desc1.getParameterCount(), desc2, desc2.getParameterCount()));
+    }
+
+    @Test
+    public void testInvalidPrototype() {
+        PrototypeTable table = new PrototypeTable();
+        assertNull(table.get(""));
+        assertNull(table.get("(I"));
+        assertNull(table.get("(I)"));
+    }
+}
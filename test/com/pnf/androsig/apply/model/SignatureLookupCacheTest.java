@@ -0,0 +1,162 @@
+/*
+ * JEB Copyright (c) PNF Software, Inc.
+ * All rights reserved.
+ * This file shall not be distributed or reused, in part or in whole.
+ */
+package com.pnf.androsig.apply.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * @author Cedric Lucas
+ *
+ */
+public class SignatureLookupCacheTest {
+
+    private static Supplier<List<MethodSignature>> loader(AtomicInteger calls, String mname) {
+        return () -> {
+            calls.incrementAndGet();
+            if(mname == null) {
+                return null;
+            }
+            List<MethodSignature> res = new ArrayList<>();
+            res.add(new MethodSignature("Lcom/a/B;", mname, "V", "()V", null));
+            return res;
+        };
+    }
+
+    private static Set<String> versions(String... versions) {
+        return new HashSet<>(Arrays.asList(versions));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        SignatureLookupCache cache = new SignatureLookupCache(2);
+        AtomicInteger calls = new AtomicInteger();
+        List<MethodSignature> a = cache.get(0, "a", true, null, null, loader(calls, "a"));
+        cache.get(0, "b", true, null, null, loader(calls, "b"));
+        assertEquals(2, calls.get());
+
+        // a becomes most recently used: b is evicted by c
+        assertSame(a, cache.get(0, "a", true, null, null, loader(calls, "a")));
+        cache.get(0, "c", true, null, null, loader(calls, "c"));
+        assertEquals(3, calls.get());
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+
+        assertSame(a, cache.get(0, "a", true, null, null, loader(calls, "a")));
+        assertEquals(3, calls.get());
+        cache.get(0, "b", true, null, null, loader(calls, "b"));
+        assertEquals(4, calls.get());
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertEquals(2.0 / 6, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testKeyParts() {
+        SignatureLookupCache cache = new SignatureLookupCache(16);
+        AtomicInteger calls = new AtomicInteger();
+        SignatureFilter filter = new SignatureFilter("V", null, false);
+        cache.get(0, "a", true, null, null, loader(calls, "a"));
+        cache.get(1, "a", true, null, null, loader(calls, "a"));
+        cache.get(0, "a", false, null, null, loader(calls, "a"));
+        cache.get(0, "a", true, filter, null, loader(calls, "a"));
+        assertEquals(4, calls.get());
+
+        // same filter key
+        cache.get(0, "a", true, new SignatureFilter("V", null, false), null, loader(calls, "a"));
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testReusedFilter() {
+        SignatureLookupCache cache = new SignatureLookupCache(16);
+        AtomicInteger calls = new AtomicInteger();
+        SignatureFilter filter = new SignatureFilter("V", null, false);
+        cache.get(0, "a", true, filter, null, loader(calls, "a"));
+
+        // stored key does not follow the filter
+        filter.reset("I", null, false);
+        cache.get(0, "a", true, filter, null, loader(calls, "a"));
+        assertEquals(2, calls.get());
+        cache.get(0, "a", true, filter.reset("V", null, false), null, loader(calls, "a"));
+        assertEquals(2, calls.get());
+        cache.get(0, "a", true, filter.reset("V", null, false, 1, 10), null, loader(calls, "a"));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testNullResultIsCached() {
+        SignatureLookupCache cache = new SignatureLookupCache(16);
+        AtomicInteger calls = new AtomicInteger();
+        assertNull(cache.get(0, "a", true, null, null, loader(calls, null)));
+        assertNull(cache.get(0, "a", true, null, null, loader(calls, null)));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testVersionSets() {
+        SignatureLookupCache cache = new SignatureLookupCache(16);
+        AtomicInteger calls = new AtomicInteger();
+        cache.get(0, "a", true, null, null, loader(calls, "a"));
+        // empty version set: all versions available
+        cache.get(0, "a", true, null, versions(), loader(calls, "a"));
+        assertEquals(1, calls.get());
+
+        cache.get(0, "a", true, null, versions("1.0", "1.1"), loader(calls, "a"));
+        assertEquals(2, calls.get());
+        cache.get(0, "a", true, null, versions("1.1", "1.0"), loader(calls, "a"));
+        assertEquals(2, calls.get());
+        cache.get(0, "a", true, null, versions("1.0"), loader(calls, "a"));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testVersionSetIdsReused() {
+        SignatureLookupCache cache = new SignatureLookupCache(2);
+        AtomicInteger calls = new AtomicInteger();
+        cache.get(0, "a", true, null, versions("1"), loader(calls, "a"));
+        cache.get(0, "a", true, null, versions("2"), loader(calls, "a"));
+        assertEquals(2, cache.size());
+
+        // too many version sets: ids are reused and all results dropped
+        cache.get(0, "a", true, null, versions("3"), loader(calls, "a"));
+        assertEquals(1, cache.size());
+        cache.get(0, "a", true, null, versions("1"), loader(calls, "a"));
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testStaleResultNotStored() {
+        SignatureLookupCache cache = new SignatureLookupCache(2);
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger otherCalls = new AtomicInteger();
+        cache.get(0, "x", true, null, versions("1"), loader(otherCalls, "x"));
+        Supplier<List<MethodSignature>> base = loader(calls, "a");
+        // version set ids are reused while "a" is loaded for version set "2"
+        List<MethodSignature> res = cache.get(0, "a", true, null, versions("2"), () -> {
+            cache.get(0, "y", true, null, versions("3"), loader(otherCalls, "y"));
+            cache.get(0, "y", true, null, versions("4"), loader(otherCalls, "y"));
+            return base.get();
+        });
+        assertEquals("a", res.get(0).getMname());
+
+        // id of version set "2" was given to another set: result was not stored
+        cache.get(0, "a", true, null, versions("4"), loader(calls, "a"));
+        assertEquals(2, calls.get());
+    }
+}